@@ -30,7 +30,16 @@
  * GAME ENGINE PRIMITIVES (base classes)
  * Point - 2D integer point.
  * GameEntity - Moving object within the game that has a position.
+ * OccupancyMap - Hash index from grid cells to the objects on them.
  * CollisionMap - Handles collision between entities and walls.
+ * WritableCollisionMap (extends CollisionMap) - Collision map whose walls can be changed.
+ * DenseCollisionMap (extends WritableCollisionMap) - Collision map held entirely in memory.
+ * MapGenerator - Generates random maps of rooms and corridors.
+ * ChunkedCollisionMap (extends WritableCollisionMap) - Collision map loaded in chunks, for huge worlds.
+ * RoomChunkLoader - Generates chunks of rooms and corridors.
+ * MappedCollisionMap (extends CollisionMap) - Collision map read from a memory-mapped file.
+ * MapFile - Reads and writes map files.
+ * SpawnTable - Table of free tiles that things can spawn on.
  * 
  * GAME OBJECTS
  * Player - the player. According to lore, it's a robot, but I haven't bothered renaming it.
@@ -42,16 +51,61 @@
  * MusicEngine (implements AutoCloseable) - main music handler
  *   MusicEngine.FaderThread (extends Thread) - Thread handling fading layers
  * 
+ * RENDERING
+ * AnsiRenderer - Redraws only the parts of the screen that changed, using ANSI escape codes.
+ * 
  * GameState - primary global game state and implementation of commands
+ * 
+ * SIMULATION
+ * MoveSource (interface) - Supplies commands to a game with no console.
+ * ScriptedMoveSource (implements MoveSource) - Plays back a list of commands.
+ * GreedyMoveSource (implements MoveSource) - Simple AI that heads for Desmond, then home.
+ * SimulationStats - Tally of results from simulated games.
+ * Simulator - Plays many games back-to-back, possibly on multiple threads.
+ *   Simulator.SimulationTask (extends RecursiveTask) - Plays a range of games in a fork-join pool
+ * Replay - A recording of one game, which can be played back to check its score.
+ * 
+ * SESSIONS
+ * GameSession (implements Runnable) - One user's menus and games, played through a pair of streams.
+ * GameServer (implements Closeable) - Runs a session for each TCP connection.
+ * NioGameServer (implements Closeable) - Runs games for lots of TCP connections on a few threads.
+ *   NioGameServer.ReplyBuffer (extends ByteArrayOutputStream) - A worker's buffer that games print into.
+ *   NioGameServer.Connection - One player's connection and game.
+ * 
  * SaveDesmond - main class. Calls into the other classes to do most of its work.
  */
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.*;
+import java.util.zip.CRC32;
 import javax.sound.midi.*;
 
 
@@ -67,66 +121,81 @@ class Utils {
    */
   private Utils() {}
   
-  // Global RNG object
-  private static Random rng = new Random();
-  // Global reader for System.in
-  private static BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-  
   /**
    * Returns a random integer which is at least {@code min} and less than {@code max}.
+   * @param rng the RNG to use (usually the game's own, see {@link GameState#getRandom()})
    * @param min the lower bound
    * @param max the upper bound
    * @return the random value
    */
-  public static int randomInt(int min, int max) {
-    // Random.nextInt returns a value in the range [0, n).
-    // Our range is [min, max), so the maximum difference from min is max - min.
-    // We add min to move it into the correct range.
-    return rng.nextInt(max - min) + min;
+  public static int randomInt(SplittableRandom rng, int min, int max) {
+    // SplittableRandom.nextInt returns a value in the range [min, max) already.
+    return rng.nextInt(min, max);
   }
   
   /**
    * Returns true {@code num/den} of the time.
+   * @param rng the RNG to use (usually the game's own, see {@link GameState#getRandom()})
    * @param num the numerator of the probability fraction
    * @param den the denominator of the probability fraction
    * @return true, {@code num/den} of the time. False at other times.
    */
-  public static boolean randomChance(int num, int den) {
-    // Random.nextInt returns a value in the range [0, den).
+  public static boolean randomChance(SplittableRandom rng, int num, int den) {
+    // SplittableRandom.nextInt returns a value in the range [0, den).
     // There is thus a num/den chance that this number is less than num.
     return rng.nextInt(den) < num;
   }
   
+  /**
+   * Generates a fresh seed, for when the seed isn't important.
+   * @return a random seed
+   */
+  public static long randomSeed() {
+    return ThreadLocalRandom.current().nextLong();
+  }
+  
   /**
    * Reads a line of input from the user.
+   * @param in the user's input
    * @return the line of input read from the user
+   * @throws UncheckedIOException if reading fails, or the user has gone away
    */
-  public static String readLine() {
+  public static String readLine(BufferedReader in) {
+    // the line read
+    String line;
     // Read a line and complain if something goes wrong.
     try {
-      return br.readLine();
+      line = in.readLine();
     } catch (IOException e) {
-      throw new IOError(e);
+      throw new UncheckedIOException(e);
+    }
+    // There's nothing sensible to do once the input runs out
+    if (line == null) {
+      throw new UncheckedIOException(new EOFException("No more input"));
     }
+    return line;
   }
   
   /**
    * Reads a single int from the user.
+   * @param in the user's input
    * @return the single int read from the user
    */
-  public static int readInt() {
+  public static int readInt(BufferedReader in) {
     // Read a line and convert it to an integer.
-    return Integer.parseInt(readLine());
+    return Integer.parseInt(readLine(in));
   }
   
   /**
    * Prompts for a menu, with options specified in an array, or as
    * variable arguments in the method call.
+   * @param in the user's input
+   * @param out the stream to print the menu to
    * @param title the menu's title
    * @param options the allowed options
    * @return the index of the selected option
    */
-  public static int promptMenu(String title, String... options) {
+  public static int promptMenu(BufferedReader in, PrintStream out, String title, String... options) {
     int res = -69420;
     int dispIndex;
     // There should be at least one choice.
@@ -137,32 +206,35 @@ class Utils {
     // loop until an option has been chosen
     do {
       // Print the title and list options.
-      System.out.println(title);
+      out.println(title);
       for (int i = 0; i < options.length; i++) {
         dispIndex = i + 1;
-        System.out.printf("%2d) %s\n", dispIndex, options[i]);
+        out.printf("%2d) %s\n", dispIndex, options[i]);
       }
       
       // Try to read a line.
-      System.out.print("> ");
+      out.print("> ");
       try {
         // Try to read an int. The rest of this block will never happen
         // if this fails.
-        res = Utils.readInt();
+        res = Utils.readInt(in);
         // If the value is in range, we return.
         if (1 <= res && res <= options.length) {
-          System.out.println();
+          out.println();
           // convert from 1-based to 0-based indexes.
           return res - 1;
         }
         // Otherwise, tell the user that they didn't pick an option
-        System.out.printf("Value out of range. Valid options range from 1 to %d\n", options.length);
+        out.printf("Value out of range. Valid options range from 1 to %d\n", options.length);
+      } catch (UncheckedIOException e) {
+        // The user has gone away, so don't keep asking
+        throw e;
       } catch (Exception e) {
         // Tell the user that something went wrong
-        System.out.printf("Error reading value. (%s)\n", e.getClass().getName());
-        System.out.println(e.getMessage());
+        out.printf("Error reading value. (%s)\n", e.getClass().getName());
+        out.println(e.getMessage());
       }
-      System.out.println();
+      out.println();
     } while (true);
 
   }
@@ -171,18 +243,42 @@ class Utils {
    * @param throwable the throwable object to print
    */
   public static void printThrowable(Throwable throwable) {
+    printThrowable(System.out, throwable);
+  }
+
+  /**
+   * Print an exception, followed by its underlying causes, to a specific stream.
+   * @param out the stream to print to
+   * @param throwable the throwable object to print
+   */
+  public static void printThrowable(PrintStream out, Throwable throwable) {
     // Throwable currently being printed
     Throwable t = throwable;
-    
+
     // print initial exception
-    System.out.println(t.toString());
+    out.println(t.toString());
     t = t.getCause();
     // print underlying causes
     while (t != null) {
-      System.out.println("Caused by: " + t.toString());
+      out.println("Caused by: " + t.toString());
       t = t.getCause();
     }
   }
+
+  /**
+   * Creates a PrintStream that throws away everything written to it.
+   * Every caller gets its own instance, since PrintStream locks on itself.
+   * @return a new PrintStream that discards all output
+   */
+  public static PrintStream nullPrintStream() {
+    return new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    });
+  }
   
   /**
    * Converts a {@code List<Integer>} to an {@code int[]}.
@@ -352,14 +448,32 @@ class CommandExecutionException extends CommandException {
 
 /**
  * Class handling command-line parsing and dispatching.
+ * 
+ * Commands that are run all the time (like movement) can also be registered as
+ * fast commands: one character, optionally followed by a number. Lines like
+ * that are run straight from a table, without splitting them into arguments
+ * or allocating anything. Anything else goes through the regular command.
  */
 class CommandParser {
+  /**
+   * Number of characters that fast commands can be named by.
+   */
+  private static final int FAST_TABLE_SIZE = 128;
+  /**
+   * Most digits read from a fast command's number, so that it can't overflow.
+   */
+  private static final int FAST_MAX_DIGITS = 9;
+  
   /**
    * Constructs a new CommandParser.
    */
   public CommandParser() {
     // initialize the command map
     commands = new HashMap<>();
+    // and the fast command table
+    fastCommands = new IntUnaryOperator[FAST_TABLE_SIZE];
+    fastDefaults = new int[FAST_TABLE_SIZE];
+    fastTakesArg = new boolean[FAST_TABLE_SIZE];
   }
   
   /**
@@ -393,14 +507,84 @@ class CommandParser {
     });
   }
   
+  /**
+   * Registers a fast path for a one-character command that takes no arguments.
+   * The command must already be registered normally, and must do the same thing.
+   * @param name the name of the command
+   * @param main the function to call for this command
+   * @exception IllegalArgumentException if the name can't be used for a fast command
+   * @exception IllegalStateException if the command isn't registered, or already has a fast path
+   */
+  public void registerFastCommand(char name, IntSupplier main) {
+    registerFastCommand(name, false, 0, (arg) -> main.getAsInt());
+  }
+  
+  /**
+   * Registers a fast path for a one-character command that takes an optional number.
+   * The command must already be registered normally, and must do the same thing.
+   * @param name the name of the command
+   * @param defaultArg the number to use if none is given
+   * @param main the function to call for this command, given the number
+   * @exception IllegalArgumentException if the name can't be used for a fast command
+   * @exception IllegalStateException if the command isn't registered, or already has a fast path
+   */
+  public void registerFastCommand(char name, int defaultArg, IntUnaryOperator main) {
+    registerFastCommand(name, true, defaultArg, main);
+  }
+  
+  /**
+   * Registers a fast path for a one-character command.
+   * @param name the name of the command
+   * @param takesArg true if the command takes an optional number
+   * @param defaultArg the number to use if none is given
+   * @param main the function to call for this command, given the number
+   */
+  private void registerFastCommand(char name, boolean takesArg, int defaultArg, IntUnaryOperator main) {
+    if (name == '\0' || name >= FAST_TABLE_SIZE || Character.isWhitespace(name)
+      || (name >= '0' && name <= '9') || name == '"' || name == '\\') {
+      String errorMessage = String.format("%c can't be the name of a fast command", name);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    if (!commands.containsKey(String.valueOf(name))) {
+      String errorMessage = String.format("No registered command for %c", name);
+      throw new IllegalStateException(errorMessage);
+    }
+    if (fastCommands[name] != null) {
+      String errorMessage = String.format("A fast command was already registered for the name %c", name);
+      throw new IllegalStateException(errorMessage);
+    }
+    fastCommands[name] = main;
+    fastDefaults[name] = defaultArg;
+    fastTakesArg[name] = takesArg;
+  }
+  
   /**
    * Executes a command, if it exists. Throws otherwise.
    * @param command the command to execute.
    * @return the name of the executed command
    */
-  public int execute(String command) throws CommandException {
+  public int execute(CharSequence command) throws CommandException {
     // Arguments to the command.
-    String[] args = splitArgs(command);
+    String[] args;
+    // the fast command this line is for, if any
+    char name = fastCommandName(command);
+    
+    if (name != '\0') {
+      // run the command, the same way as below
+      try {
+        return fastCommands[name].applyAsInt(fastCommandArg(command, name));
+      }
+      catch (Exception innerException) {
+        String errorMessage = String.format("Command %c failed", name);
+        throw new CommandExecutionException(errorMessage, innerException);
+      }
+    }
+    
+    args = splitArgs(command.toString());
+    // a line of just spaces has no command in it
+    if (args.length == 0) {
+      throw new CommandException("No command?");
+    }
     
     // if this command is not registered, we can't run it
     if (!commands.containsKey(args[0])) {
@@ -418,6 +602,112 @@ class CommandParser {
     }
   }
 
+  /**
+   * Splits a line holding several commands, separated by semicolons
+   * (e.g. {@code w 3; d 2}). Semicolons in quotes or escaped with {@code \}
+   * don't count, following the same rules as {@link #splitArgs(String)}.
+   * Blank commands are left out.
+   * @param cmdLine the line to split
+   * @return the commands, in order
+   */
+  public static List<String> splitCommands(String cmdLine) {
+    // the commands found so far
+    List<String> res = new ArrayList<>();
+    // where the current command starts
+    int start = 0;
+    // escaped: true if the previous character started a backslash escape.
+    // quoted: true if inside double quotes.
+    boolean escaped = false, quoted = false;
+    
+    for (int i = 0; i <= cmdLine.length(); i++) {
+      if (i == cmdLine.length() || (cmdLine.charAt(i) == ';' && !escaped && !quoted)) {
+        // Leading whitespace can't be escaped, so it's safe to drop
+        while (start < i && Character.isWhitespace(cmdLine.charAt(start))) {
+          start++;
+        }
+        if (start < i) {
+          res.add(cmdLine.substring(start, i));
+        }
+        start = i + 1;
+      }
+      else if (escaped) {
+        escaped = false;
+      }
+      else if (cmdLine.charAt(i) == '\\') {
+        escaped = true;
+      }
+      else if (cmdLine.charAt(i) == '"') {
+        quoted = !quoted;
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Checks if a line can be run as a fast command: its name, then at most
+   * a number made of plain digits, separated by whitespace.
+   * @param command the command line
+   * @return the name of the fast command, or {@code '\0'} if there isn't one
+   */
+  private char fastCommandName(CharSequence command) {
+    // position in the line
+    int i = 0;
+    // the first character, and the number of digits after it
+    char name;
+    int digits = 0;
+    
+    while (i < command.length() && Character.isWhitespace(command.charAt(i))) {
+      i++;
+    }
+    if (i == command.length()) {
+      return '\0';
+    }
+    name = command.charAt(i++);
+    if (name >= FAST_TABLE_SIZE || fastCommands[name] == null) {
+      return '\0';
+    }
+    // The name must be a whole argument by itself
+    if (i < command.length() && !Character.isWhitespace(command.charAt(i))) {
+      return '\0';
+    }
+    while (i < command.length() && Character.isWhitespace(command.charAt(i))) {
+      i++;
+    }
+    while (i < command.length() && command.charAt(i) >= '0' && command.charAt(i) <= '9') {
+      digits++;
+      i++;
+    }
+    if (digits > (fastTakesArg[name] ? FAST_MAX_DIGITS : 0)) {
+      return '\0';
+    }
+    while (i < command.length() && Character.isWhitespace(command.charAt(i))) {
+      i++;
+    }
+    return (i == command.length()) ? name : '\0';
+  }
+  
+  /**
+   * Reads a fast command's number.
+   * @param command the command line, already checked by {@link #fastCommandName(CharSequence)}
+   * @param name the name of the fast command
+   * @return the number, or the command's default if there isn't one
+   */
+  private int fastCommandArg(CharSequence command, char name) {
+    // the number so far
+    int res = 0;
+    // true once a digit has been read
+    boolean found = false;
+    
+    for (int i = 0; i < command.length(); i++) {
+      char c = command.charAt(i);
+      if (c >= '0' && c <= '9') {
+        res = res * 10 + (c - '0');
+        found = true;
+      }
+    }
+    return found ? res : fastDefaults[name];
+  }
+  
   /**
    * Crude argument splitter for the "command line".
    * 
@@ -529,6 +819,10 @@ class CommandParser {
   }
 
   Map<String, ToIntFunction<String[]>> commands;
+  // Fast commands by name, with their default numbers, and whether they take a number at all.
+  private IntUnaryOperator[] fastCommands;
+  private int[] fastDefaults;
+  private boolean[] fastTakesArg;
 }
 
 // GAME ENGINE PRIMITIVES
@@ -539,6 +833,11 @@ class CommandParser {
  * It is immutable, so it can be freely assigned without consequence.
  */
 final class Point {
+  /**
+   * Largest coordinate that can be packed (see {@link Point#pack(int, int)}).
+   */
+  public static final int MAX_PACKED_COORD = 0xFFFF;
+  
   public final int x;
   public final int y;
 
@@ -593,6 +892,54 @@ final class Point {
     // vector subtraction is done component-wise
     return new Point(this.x - that.x, this.y - that.y);
   }
+  
+  /**
+   * Packs this point into a single int. See {@link Point#pack(int, int)}.
+   * @return the packed point
+   */
+  public int pack() {
+    return pack(this.x, this.y);
+  }
+  
+  /**
+   * Packs a pair of coordinates into a single int, so that they can be
+   * stored and compared without creating a Point. The Y-coordinate goes in
+   * the upper 16 bits, and the X-coordinate goes in the lower 16 bits.
+   * Both coordinates must be between 0 and {@link Point#MAX_PACKED_COORD}.
+   * @param x the x-coordinate
+   * @param y the y-coordinate
+   * @return the packed coordinates
+   */
+  public static int pack(int x, int y) {
+    return (y << 16) | x;
+  }
+  
+  /**
+   * Extracts the x-coordinate from packed coordinates.
+   * @param packed the packed coordinates
+   * @return the x-coordinate
+   */
+  public static int unpackX(int packed) {
+    return packed & 0xFFFF;
+  }
+  
+  /**
+   * Extracts the y-coordinate from packed coordinates.
+   * @param packed the packed coordinates
+   * @return the y-coordinate
+   */
+  public static int unpackY(int packed) {
+    return packed >>> 16;
+  }
+  
+  /**
+   * Converts packed coordinates back into a Point.
+   * @param packed the packed coordinates
+   * @return the point
+   */
+  public static Point unpack(int packed) {
+    return new Point(unpackX(packed), unpackY(packed));
+  }
 }
 
 /**
@@ -607,12 +954,40 @@ abstract class GameEntity {
 
   /**
    * Returns the current grid position of this entity.
+   * This creates a new Point, so code that runs every turn should use
+   * {@link GameEntity#getPackedPos()} instead.
    * 
    * @return the entity's position
    */
   public Point getPos() {
+    return Point.unpack(pos);
+  }
+  
+  /**
+   * Returns the current grid position of this entity, packed into an int
+   * (see {@link Point#pack(int, int)}).
+   * 
+   * @return the entity's packed position
+   */
+  public int getPackedPos() {
     return pos;
   }
+  
+  /**
+   * Returns the x-coordinate of this entity.
+   * @return the x-coordinate of this entity
+   */
+  public int getX() {
+    return Point.unpackX(pos);
+  }
+  
+  /**
+   * Returns the y-coordinate of this entity.
+   * @return the y-coordinate of this entity
+   */
+  public int getY() {
+    return Point.unpackY(pos);
+  }
 
   /**
    * Moves this entity to a position.
@@ -620,7 +995,16 @@ abstract class GameEntity {
    * @param pos the position.
    */
   public void moveTo(Point pos) {
-    this.pos = pos;
+    this.pos = pos.pack();
+  }
+  
+  /**
+   * Moves this entity to a position.
+   * 
+   * @param packedPos the packed position.
+   */
+  public void moveTo(int packedPos) {
+    this.pos = packedPos;
   }
 
   /**
@@ -642,67 +1026,219 @@ abstract class GameEntity {
     }
   }
 
-  protected Point pos;
+  // The entity's position, packed so that moving doesn't create objects.
+  protected int pos;
 }
 
 /**
- * Class representing a collision map.
- * Character values:
- * '\0' - empty space
- * 'x' - wall
+ * Hash index from grid cells to the object occupying them. This lets
+ * the game find what is on a cell in constant time, rather than checking
+ * every object. Only one object is kept per cell.
+ * 
+ * Cells are keyed by their packed coordinates (see {@link Point#pack(int, int)}).
+ * It uses open addressing with linear probing, so that lookups don't
+ * need to create any objects.
  */
-class CollisionMap {
-  // The terrain map. Maps out which tiles are walls and which are not.
-  private char[][] map;
-  // The visited map. Maps out which tiles have been visited.
-  private boolean[][] visited;
-  // The home point. The player must return here with Desmond to win.
-  private Point homePoint;
-
+class OccupancyMap<T> {
+  // Starting capacity of the table (must be a power of 2)
+  private static final int INITIAL_CAPACITY = 16;
+  
   /**
-   * Constructs a collision map with a given size.
-   * @param width the number of grid cells in the x-axis
-   * @param height the number of grid cells in the y-axis
+   * Constructs an empty occupancy map.
    */
-  public CollisionMap(int width, int height) {
-    // Initialize the data array
-    this.map = new char[height][width];
-    // Initialized the visited array (there are more efficient ways)
-    this.visited = new boolean[height][width];
-    homePoint = null;
+  public OccupancyMap() {
+    this.keys = new int[INITIAL_CAPACITY];
+    this.values = new Object[INITIAL_CAPACITY];
+    this.size = 0;
+  }
+  
+  /**
+   * Returns the object on a cell.
+   * @param key the packed coordinates of the cell
+   * @return the object on the cell, or null if it is empty
+   */
+  @SuppressWarnings("unchecked")
+  public T get(int key) {
+    // probe until we find the key or an empty slot
+    for (int i = slotFor(key); values[i] != null; i = (i + 1) & (keys.length - 1)) {
+      if (keys[i] == key) {
+        return (T) values[i];
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Places an object on a cell, replacing anything already on it.
+   * @param key the packed coordinates of the cell
+   * @param value the object (must not be null)
+   */
+  public void put(int key, T value) {
+    // slot being probed
+    int i;
     
-    // initialize the whole map to empty space
-    for (int i = 0; i < height; i++) {
-      for (int j = 0; j < width; j++) {
-        map[i][j] = ' ';
+    // Keep the table at most half full, so that probes stay short
+    if ((size + 1) * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+    for (i = slotFor(key); values[i] != null; i = (i + 1) & (keys.length - 1)) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
       }
     }
+    keys[i] = key;
+    values[i] = value;
+    size++;
   }
   
   /**
-   * Marks all grid tiles as not visited.
+   * Clears a cell, if there is anything on it.
+   * @param key the packed coordinates of the cell
    */
-  public void clearVisited() {
-    // Set every value in visited to false
-    for (int i = 0; i < visited.length; i++) {
-      for (int j = 0; j < visited[i].length; j++) {
-        visited[i][j] = false;
+  public void remove(int key) {
+    // slot being probed, and the empty slot left behind
+    int i, hole;
+    // mask for wrapping around the table
+    int mask = keys.length - 1;
+    
+    // find the key
+    for (i = slotFor(key); keys[i] != key; i = (i + 1) & mask) {
+      if (values[i] == null) {
+        return;
+      }
+    }
+    if (values[i] == null) {
+      return;
+    }
+    
+    // Removing an entry leaves a hole that can cut off later entries
+    // in the same probe sequence. So, shift those entries back into the hole.
+    hole = i;
+    for (i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+      // where this entry would ideally be
+      int home = slotFor(keys[i]);
+      // only move it if the hole lies between its ideal slot and where it is now
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        keys[hole] = keys[i];
+        values[hole] = values[i];
+        hole = i;
       }
     }
+    values[hole] = null;
+    size--;
   }
   
-  public boolean[][] getVisited() {
-    return visited;
+  /**
+   * Clears every cell.
+   */
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
   }
   
   /**
-   * Returns the 2D array representing the map.
-   * @return
+   * Returns the number of occupied cells.
+   * @return the number of occupied cells
    */
-  public char[][] getMap() {
-    return map;
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Returns the slot where a key would ideally go.
+   * @param key the key
+   * @return the slot index
+   */
+  private int slotFor(int key) {
+    // Multiplying by a large odd constant scrambles the bits of
+    // nearby cells, so that they don't all land in adjacent slots
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (keys.length - 1);
+  }
+  
+  /**
+   * Moves every entry into a table of a new size.
+   * @param capacity the new capacity (must be a power of 2)
+   */
+  @SuppressWarnings("unchecked")
+  private void resize(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    
+    keys = new int[capacity];
+    values = new Object[capacity];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        put(oldKeys[i], (T) oldValues[i]);
+      }
+    }
+  }
+  
+  // Packed coordinates of each slot.
+  private int[] keys;
+  // Object in each slot. Null marks an empty slot.
+  private Object[] values;
+  // Number of occupied slots.
+  private int size;
+}
+
+/**
+ * Class representing a collision map. This handles bounds checks and
+ * movement; subclasses decide how the tiles are stored. Maps whose walls
+ * can be changed extend {@link WritableCollisionMap}.
+ */
+abstract class CollisionMap {
+  // The dimensions of the map.
+  private int width, height;
+  // The home point. The player must return here with Desmond to win.
+  private Point homePoint;
+
+  /**
+   * Constructs a collision map with a given size.
+   * @param width the number of grid cells in the x-axis
+   * @param height the number of grid cells in the y-axis
+   */
+  protected CollisionMap(int width, int height) {
+    // Points on the map need to be packable
+    if (width > Point.MAX_PACKED_COORD + 1 || height > Point.MAX_PACKED_COORD + 1) {
+      String errMsg = String.format("Map cannot be larger than %1$dx%1$d", Point.MAX_PACKED_COORD + 1);
+      throw new IllegalArgumentException(errMsg);
+    }
+    this.width = width;
+    this.height = height;
+    homePoint = null;
   }
   
+  /**
+   * Marks all grid tiles as not visited.
+   */
+  public abstract void clearVisited();
+  
+  /**
+   * Returns true if a tile has been visited. The tile must be on the map.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   * @return true if the tile has been visited
+   */
+  public abstract boolean isVisited(int x, int y);
+  
+  /**
+   * Marks a tile as visited. The tile must be on the map.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   */
+  public abstract void setVisited(int x, int y);
+  
+  /**
+   * Returns true if a tile is a wall. The tile must be on the map.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   * @return true if the tile is a wall
+   */
+  public abstract boolean isWall(int x, int y);
+  
   /**
    * Returns the home point (front door location).
    * @return the home point.
@@ -724,8 +1260,7 @@ class CollisionMap {
    * @return the width of the map.
    */
   public int width() {
-    // returns the length of a row
-    return map[0].length;
+    return width;
   }
   
   /**
@@ -733,8 +1268,40 @@ class CollisionMap {
    * @return the height of the map.
    */
   public int height() {
-    // returns the length of a column
-    return map.length;
+    return height;
+  }
+  
+  /**
+   * Works out a fingerprint of the map: a hash of its size, home point and
+   * walls. Two maps with the same fingerprint are almost certainly the same.
+   * This looks at every tile, so it takes a while on huge maps.
+   * @return the fingerprint
+   */
+  public long fingerprint() {
+    // the hash so far (64-bit FNV-1a, but taking 64 tiles at a time)
+    long hash = 0xCBF29CE484222325L;
+    // the current 64 tiles in a row, one bit each
+    long word;
+    
+    hash = (hash ^ width) * 0x100000001B3L;
+    hash = (hash ^ height) * 0x100000001B3L;
+    hash = (hash ^ ((homePoint == null) ? -1 : homePoint.pack())) * 0x100000001B3L;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x += 64) {
+        word = 0;
+        for (int i = 0; i < 64 && x + i < width; i++) {
+          if (isWall(x + i, y)) {
+            word |= 1L << i;
+          }
+        }
+        hash = (hash ^ word) * 0x100000001B3L;
+      }
+    }
+    // Mix the bits up, so that similar maps have very different fingerprints
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    return hash;
   }
   
   /**
@@ -744,16 +1311,11 @@ class CollisionMap {
    * @return true if this point collides with a wall
    */
   public boolean collides(int x, int y) {
-    // check if out-of-bounds
-    if (x < 0 || x >= this.width())
-      return true;
-    if (y < 0 || y >= this.height())
+    // check if out-of-bounds (x | y is negative if either of them is)
+    if ((x | y) < 0 || x >= width || y >= height)
       return true;
-    // check if this cell is not empty
-    if (this.map[y][x] != ' ')
-      return true;
-
-    return false;
+    // check if this cell is a wall
+    return isWall(x, y);
   }
   
   /**
@@ -780,6 +1342,21 @@ class CollisionMap {
    * @return the resulting position
    */
   Point tryMove(Point pos, int dir, int dist, boolean updateVisited) {
+    return Point.unpack(this.tryMovePacked(pos.pack(), dir, dist, updateVisited));
+  }
+  
+  /**
+   * Version of {@link CollisionMap#tryMove(Point, int, int, boolean)} that
+   * works on packed positions (see {@link Point#pack(int, int)}). This
+   * doesn't create any objects, so entities use it every turn.
+   * 
+   * @param packedPos the object's initial packed position
+   * @param dir  the direction of movement
+   * @param dist the number of steps
+   * @param updateVisited if true, updates the visited array
+   * @return the resulting packed position
+   */
+  int tryMovePacked(int packedPos, int dir, int dist, boolean updateVisited) {
     // change in X and Y (used to move the nextX, nextY points)
     int deltaX, deltaY;
     // current X and Y
@@ -810,9 +1387,10 @@ class CollisionMap {
       }
     }
     // Initialize currX and currY to the starting position
-    currX = pos.x; currY = pos.y;
+    currX = Point.unpackX(packedPos); currY = Point.unpackY(packedPos);
     // Mark the current position visited, if it has been requested
-    visited[currY][currX] |= updateVisited;
+    if (updateVisited)
+      setVisited(currX, currY);
 
     for (int i = 0; i < dist; i++) {
       // determine the next position
@@ -821,16 +1399,17 @@ class CollisionMap {
       // check if it collides
       if (this.collides(nextX, nextY)) {
         // stop here, we can't move any further
-        return new Point(currX, currY);
+        return Point.pack(currX, currY);
       }
       // move to the next position
       currX = nextX;
       currY = nextY;
       // Mark this new position visited, if it has been requested
-      visited[currY][currX] |= updateVisited;
+      if (updateVisited)
+        setVisited(currX, currY);
     }
     // we moved all the way, return this point
-    return new Point(currX, currY);
+    return Point.pack(currX, currY);
   }
   
   /**
@@ -844,1743 +1423,6901 @@ class CollisionMap {
   Point tryMove(Point pos, int dir, int dist) {
     return this.tryMove(pos, dir, dist, false);
   }
+  
+  /**
+   * Simpler version of {@link CollisionMap#tryMovePacked(int, int, int, boolean)}.
+   * This version never updates the visited array.
+   * @param packedPos the object's initial packed position
+   * @param dir  the direction of movement
+   * @param dist the number of steps
+   * @return the resulting packed position
+   */
+  int tryMovePacked(int packedPos, int dir, int dist) {
+    return this.tryMovePacked(packedPos, dir, dist, false);
+  }
 }
 
-// GAME OBJECTS
-// ==========================
-
 /**
- * Represents the player on the game board.
+ * Collision map whose walls can be changed. Maps that are read from
+ * somewhere else, like {@link MappedCollisionMap}, only extend
+ * {@link CollisionMap}, so nothing can try to change their walls.
  */
-class Player extends GameEntity {
+abstract class WritableCollisionMap extends CollisionMap {
   /**
-   * Represents a player action.
-   * Uses a clever trick where every enum value is
-   * an anonymous subclass of the enum class itself.
-   * 
-   * This allows us to override the run action depending on the action.
-   * Since the parameters have to be generic, they are passed as an Object array.
+   * Constructs a writable collision map with a given size.
+   * @param width the number of grid cells in the x-axis
+   * @param height the number of grid cells in the y-axis
    */
-  public static enum Action {
-    MOVE {
-      /**
-       * Tries to move the player some number of units away in a direction.
-       * This may stop short of the intended distance due to walls or out-of-bounds.
-       */
-      @Override
-      public void run(Player self, GameState gs, Object... params) {
-        // unpack 2 integer arguments: distance and direction
-        GenericUtils.checkParamLength(2, params);
-        int dir = GenericUtils.toInt(params[0]);
-        int dist = GenericUtils.toInt(params[1]);
-        
-        // Move in the specified direction and distance, updating the visited map
-        self.pos = gs.getCollision().tryMove(self.pos, dir, dist, true);
-      }
-    }, 
-    PICKUP {
-      /**
-       * Tries to pick up Desmond. The player may only pick up Desmond
-       * if they are standing on the same tile as Desmond.
-       */
-      @Override
-      public void run(Player self, GameState gs, Object... params) {
-        // ensure no arguments
-        GenericUtils.checkParamLength(0, params);
-        // don't do anything if Desmond is already picked up
-        if (self.holding) {
-          System.out.println("The robot did nothing because it already has Desmond.");
-          return;
-        }
-        // Check if the player is on the same tile as Desmond
-        if (self.pos.equals(gs.getDesmond().pos)) {
-          // Robot can pick up Desmond, set relevant flags
-          System.out.println("The robot picked up Desmond.");
-          self.holding = true;
-          gs.getDesmond().setPickedUp(true);
-        }
-        else {
-          System.out.println("The robot tried to pick up Desmond. There was no Desmond to pick up.");
-        }
-      }
-    };
-    
-    /**
-     * Runs a generic action on a player.
-     * @param self the object to run the action on
-     * @param gs the game state that the player belonds to
-     * @param params the parameters. Is an Object array to support different actions having different parameters.
-     */
-    public abstract void run(Player self, GameState gs, Object... params);
+  protected WritableCollisionMap(int width, int height) {
+    super(width, height);
   }
   
   /**
-   * Constructs the player, starting at a specific point.
-   * @param startPos sets the start position
+   * Sets whether a tile is a wall. The tile must be on the map.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   * @param wall true to make the tile a wall, false to make it empty
    */
-  public Player(GameState gs) {
-    super();
-
-    this.pos = gs.getCollision().getHomePoint();
-    this.action = null;
-    this.actionParams = null;
+  public abstract void setWall(int x, int y, boolean wall);
+  
+  /**
+   * Turns every tile on the map into a wall.
+   */
+  public void fillWalls() {
+    setWalls(0, 0, width(), height(), true);
   }
-
+  
   /**
-   * Sets the player's next action.
-   * @param a the action to invoke
-   * @param params parameters to the action
+   * Sets whether every tile in a rectangle is a wall. The rectangle
+   * must be entirely on the map.
+   * @param x the x-coordinate of the rectangle's top-left corner
+   * @param y the y-coordinate of the rectangle's top-left corner
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param wall true to make the tiles walls, false to make them empty
    */
-  public void setAction(Action a, Object... params) {
-    // set the action variables
-    this.action = a;
-    this.actionParams = params;
+  public void setWalls(int x, int y, int w, int h, boolean wall) {
+    for (int row = y; row < y + h; row++) {
+      for (int col = x; col < x + w; col++) {
+        setWall(col, row, wall);
+      }
+    }
   }
   
   /**
-   * Returns true if the player is holding Desmond, or false otherwise.
-   * @return true if the player is holding Desmond, or false otherwise.
+   * Turns every tile that hasn't been visited into a wall.
+   * This is used to wall off areas that a flood fill couldn't reach.
    */
-  public boolean isHolding() {
-    return holding;
+  public void wallOffUnvisited() {
+    for (int y = 0; y < height(); y++) {
+      for (int x = 0; x < width(); x++) {
+        if (!isVisited(x, y)) {
+          setWall(x, y, true);
+        }
+      }
+    }
   }
+}
+
+/**
+ * Collision map held entirely in memory.
+ * The map is stored row by row in flat bitsets, one bit per tile:
+ * one bitset marks walls, and the other marks visited tiles.
+ */
+class DenseCollisionMap extends WritableCollisionMap {
+  // The terrain map. Bit (y * width + x) is set if that tile is a wall.
+  private long[] walls;
+  // The visited map. Bit (y * width + x) is set if that tile has been visited.
+  private long[] visited;
 
   /**
-   * Performs the player's current action, then evaluates
-   * the win/lose conditions.
-   * @param gs the game state this player belongs to
+   * Constructs a collision map with a given size. The map starts out
+   * with no walls.
+   * @param width the number of grid cells in the x-axis
+   * @param height the number of grid cells in the y-axis
    */
+  public DenseCollisionMap(int width, int height) {
+    super(width, height);
+    // 64 tiles fit in each long. Java fills these with 0 (empty, not visited).
+    this.walls = new long[bitsetLength(width, height)];
+    this.visited = new long[bitsetLength(width, height)];
+  }
+  
   @Override
-  public void doTick(GameState gs) {
-    // The home point.
-    Point homePoint = gs.getCollision().getHomePoint();
-    
-    // Perform the action, as specified
-    action.run(this, gs, actionParams);
-    
-    // check win condition
-    if (this.holding && this.pos.equals(homePoint)) {
-      gs.triggerWin();
+  public void clearVisited() {
+    Arrays.fill(visited, 0L);
+  }
+  
+  @Override
+  public boolean isVisited(int x, int y) {
+    return testBit(visited, index(x, y));
+  }
+  
+  @Override
+  public void setVisited(int x, int y) {
+    setBit(visited, index(x, y));
+  }
+  
+  @Override
+  public boolean isWall(int x, int y) {
+    return testBit(walls, index(x, y));
+  }
+  
+  @Override
+  public void setWall(int x, int y, boolean wall) {
+    if (wall) {
+      setBit(walls, index(x, y));
     }
-    
-    // check death condition
-    if (gs.checkEnemies(this.pos) instanceof Zombie) {
-      gs.triggerGameOver();
+    else {
+      clearBit(walls, index(x, y));
     }
   }
   
-  // True if the player is holding Desmond.
-  private boolean holding;
-  // Action to execute on the next frame.
-  private Action action;
-  // Parameters to the action.
-  private Object[] actionParams;
-}
-
-/**
- * Represents Desmond on the game board.
- */
-class Desmond extends GameEntity {
-  public Desmond(GameState gs) {
-    super();
-    // move to a generated spawn point, and set picked up as false
-    this.pos = gs.genSpawnPoint();
-    this.pickedUp = false;
+  @Override
+  public void fillWalls() {
+    // every bit set (the bits past the end of the map are never read)
+    Arrays.fill(walls, -1L);
+  }
+  
+  @Override
+  public void setWalls(int x, int y, int w, int h, boolean wall) {
+    // Each row of the rectangle is a contiguous run of bits
+    for (int row = y; row < y + h; row++) {
+      setBitRange(walls, index(x, row), index(x + w, row), wall);
+    }
+  }
+  
+  @Override
+  public void wallOffUnvisited() {
+    // Done 64 tiles at a time
+    for (int i = 0; i < walls.length; i++) {
+      walls[i] |= ~visited[i];
+    }
+  }
+  
+  @Override
+  public boolean collides(int x, int y) {
+    // Same as the base version, without the virtual call to isWall().
+    // This runs for every step of every move.
+    if ((x | y) < 0 || x >= width() || y >= height())
+      return true;
+    return testBit(walls, index(x, y));
   }
   
   /**
-   * Returns true if Desmond is currently picked up.
-   * @return true if Desmond is currently picked up, false otherwise
+   * Returns the bit index of a tile. This is a long, since the
+   * largest maps have more tiles than an int can count.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   * @return the bit index of the tile
    */
-  public boolean isPickedUp() {
-    return this.pickedUp;
+  private long index(int x, int y) {
+    return (long) y * width() + x;
   }
+  
   /**
-   * Sets whether Desmond is picked up or not.
-   * @param value true if Desmond should be picked up, false if not
+   * Returns the number of longs needed to hold one bit per tile.
+   * @param width the width of the map
+   * @param height the height of the map
+   * @return the length of the bitset array
    */
-  public void setPickedUp(boolean value) {
-    this.pickedUp = value;
+  private static int bitsetLength(int width, int height) {
+    // round up to the next multiple of 64
+    return (int) (((long) width * height + 63) >>> 6);
   }
   
   /**
-   * Movement tick for Desmond. Desmond's AI is summarized here:
-   * <ul>
-   * <li>If Desmond is picked up, move him to the player.</li>
-   * <li>Otherwise, he has a 33% chance to move 1 tile in a 
-   * random cardinal direction.</li>
-   * </ul>
-   * @param gs the GameState that Desmond belongs to
+   * Checks if a bit is set in a bitset.
+   * @param bits the bitset
+   * @param i the bit index
+   * @return true if the bit is set
    */
-  @Override
-  public void doTick(GameState gs) {
-    if (pickedUp) {
-      // follow the player if picked up
-      this.pos = gs.getPlayer().getPos();
-    }
-    else {
-      // Configure these variables to get a fraction chance
-      // of Desmond moving
-      final int CHANCE_NUM = 1;
-      final int CHANCE_DEN = 3;
-      
-      // There is a CHANCE_NUM/CHANCE_DEN chance of Desmond moving on each turn.
-      if (Utils.randomChance(CHANCE_NUM, CHANCE_DEN)) {
-        // Move Desmond 1 tile in a random direction
-        this.pos = gs.getCollision().tryMove(this.pos, Utils.randomInt(0, 4), 1);
-      }
-    }
+  private static boolean testBit(long[] bits, long i) {
+    // i >>> 6 picks the long, and shifting by i only uses the lowest 6 bits of i
+    return (bits[(int) (i >>> 6)] & (1L << i)) != 0;
   }
   
-  // True if Desmond is picked up or not.
-  boolean pickedUp;
-}
-
-/**
- * Represents a zombie on the game board.
- */
-class Zombie extends GameEntity {
   /**
-   * Creates and positions a zombie in the game world.
-   * @param gs the game state
+   * Sets a bit in a bitset.
+   * @param bits the bitset
+   * @param i the bit index
    */
-  public Zombie(GameState gs) {
-    super();
-    // move to a generated spawn point
-    this.pos = gs.genSpawnPoint();
+  private static void setBit(long[] bits, long i) {
+    bits[(int) (i >>> 6)] |= (1L << i);
   }
-
+  
   /**
-   * Movement tick for zombies. Zombie AI is summarized here:
-   * <ul>
-   * <li>Zombies have a 40% chance to move in a random cardinal direction on each frame.</li>
-   * </ul>
-   * @param gs the GameState that this zombie belongs to
+   * Clears a bit in a bitset.
+   * @param bits the bitset
+   * @param i the bit index
    */
-  @Override
-  public void doTick(GameState gs) {
-    // Zombies move randomly as well
-    final int CHANCE_NUM = 2;
-    final int CHANCE_DEN = 5;
-    if (Utils.randomChance(CHANCE_NUM, CHANCE_DEN)) {
-      // try to move 1 tile in a random direction
-      Point nextPos = gs.getCollision().tryMove(this.pos, Utils.randomInt(0, 4), 1);
-      // stop zombies from walking into each other
-      if (gs.checkEnemies(nextPos) == null) {
-        this.pos = nextPos;
-      }
+  private static void clearBit(long[] bits, long i) {
+    bits[(int) (i >>> 6)] &= ~(1L << i);
+  }
+  
+  /**
+   * Sets or clears a range of bits in a bitset.
+   * @param bits the bitset
+   * @param from the first bit index (inclusive)
+   * @param to the last bit index (exclusive)
+   * @param value true to set the bits, false to clear them
+   */
+  private static void setBitRange(long[] bits, long from, long to, boolean value) {
+    // the first and last longs touched
+    int first, last;
+    // masks for the bits to change in the first and last longs
+    long firstMask, lastMask;
+    
+    if (from >= to) {
+      return;
+    }
+    first = (int) (from >>> 6);
+    last = (int) ((to - 1) >>> 6);
+    // -1L << n has every bit from n upwards set, and -1L >>> (64 - n) has
+    // every bit below n set (shifts only use the lowest 6 bits)
+    firstMask = -1L << from;
+    lastMask = -1L >>> -to;
+    
+    if (first == last) {
+      // the whole range is in one long
+      firstMask &= lastMask;
+      bits[first] = value ? (bits[first] | firstMask) : (bits[first] & ~firstMask);
+      return;
     }
+    // partial longs at each end, whole longs in between
+    bits[first] = value ? (bits[first] | firstMask) : (bits[first] & ~firstMask);
+    Arrays.fill(bits, first + 1, last, value ? -1L : 0L);
+    bits[last] = value ? (bits[last] | lastMask) : (bits[last] & ~lastMask);
   }
 }
 
-// AUDIO SYSTEM
-// ==========================
-
 /**
- * Utility methods specific to MIDI.
+ * Generates random maps made of rooms joined by corridors.
+ * 
+ * The map is divided into a grid of square cells, with one room of random
+ * size in each cell. Neighbouring rooms are joined along a random spanning
+ * tree, so that every room can be reached, plus a few extra corridors
+ * so that there is more than one way around. Finally, a flood fill from
+ * the home point walls off anything that can't be reached, which
+ * guarantees that anything can get anywhere else on the map.
  */
-class MidiUtils {
+class MapGenerator {
+  // Width and height of each grid cell (each holds one room)
+  static final int CELL_SIZE = 16;
+  // Smallest width or height of a room
+  static final int MIN_ROOM_SIZE = 3;
+  // Smallest width or height of a map. With fewer than 2 cells across,
+  // every room would share a row or column with the home room, and might
+  // be too close to home for anything to spawn in.
+  public static final int MIN_MAP_SIZE = 2 * CELL_SIZE;
+  // There is a 1/EXTRA_CORRIDOR_DEN chance of joining two rooms that are already connected
+  private static final int EXTRA_CORRIDOR_DEN = 8;
+  
   /**
-   * This class should not be constructed.
+   * Constructs a map generator. The same size and seed will always
+   * generate the same map.
+   * @param width the width of the maps to generate
+   * @param height the height of the maps to generate
+   * @param seed the seed for the generator
    */
-  private MidiUtils() {}
+  public MapGenerator(int width, int height, long seed) {
+    if (width < MIN_MAP_SIZE || height < MIN_MAP_SIZE) {
+      String errMsg = String.format("Map must be at least %1$dx%1$d", MIN_MAP_SIZE);
+      throw new IllegalArgumentException(errMsg);
+    }
+    this.width = width;
+    this.height = height;
+    this.seed = seed;
+  }
   
   /**
-   * The number of MIDI channels that exist (in general).
+   * Returns the fewest tiles that things are sure to be able to spawn on
+   * in a map of this size, whatever the seed. This also holds for maps
+   * made by {@link RoomChunkLoader}.
+   * 
+   * A room in a different row and column of cells from the home room is
+   * at least 4 tiles from the home point on both axes (a wall on each side
+   * of the cell edge, plus half of the home room), which is outside the
+   * clear zone. There is at least one smallest room's worth of tiles in
+   * each of those cells, and every room can be reached.
+   * @param width the width of the map
+   * @param height the height of the map
+   * @return the fewest spawnable tiles
    */
-  public static int NUM_CHANNELS = 16;
+  public static long minSpawnTiles(int width, int height) {
+    // number of grid cells in each axis
+    long cols = Math.max(1, width / CELL_SIZE), rows = Math.max(1, height / CELL_SIZE);
+    
+    return (cols - 1) * (rows - 1) * MIN_ROOM_SIZE * MIN_ROOM_SIZE;
+  }
   
   /**
-   * Value representing the MIDI controller for volume.
+   * Generates a map.
+   * @return the new map, with its home point set
    */
-  public static int CC_VOLUME = 7;
+  public CollisionMap generate() {
+    // RNG for everything random
+    SplittableRandom rng = new SplittableRandom(seed);
+    // the map being generated
+    DenseCollisionMap map = new DenseCollisionMap(width, height);
+    // number of grid cells in each axis. Leftover space goes to the last row/column.
+    int cols = Math.max(1, width / CELL_SIZE), rows = Math.max(1, height / CELL_SIZE);
+    // centre of each room, indexed by (row * cols + col)
+    int[] centreX = new int[cols * rows], centreY = new int[cols * rows];
+    // the home point is in the middle of the left edge, like the default map
+    int homeRoom = (rows / 2) * cols;
+    
+    // Start solid, and carve out rooms and corridors
+    map.fillWalls();
+    carveRooms(map, rng, cols, rows, centreX, centreY);
+    carveCorridors(map, rng, cols, rows, centreX, centreY);
+    map.setHomePoint(new Point(centreX[homeRoom], centreY[homeRoom]));
+    
+    // Wall off anything that can't be reached from home
+    floodFill(map, map.getHomePoint());
+    map.wallOffUnvisited();
+    map.clearVisited();
+    return map;
+  }
   
   /**
-   * Value representing the type of the end-of-track MIDI message.
+   * Carves one room of random size into each grid cell. Each room keeps
+   * at least one tile of wall between itself and its cell's edges.
+   * @param map the map to carve into
+   * @param rng the RNG
+   * @param cols the number of grid columns
+   * @param rows the number of grid rows
+   * @param centreX filled with the x-coordinate of each room's centre
+   * @param centreY filled with the y-coordinate of each room's centre
    */
-  public static int META_END_OF_TRACK = 0x2F;
+  private void carveRooms(WritableCollisionMap map, SplittableRandom rng, int cols, int rows, 
+    int[] centreX, int[] centreY) {
+    // bounds of the current cell
+    int cellX, cellY, cellW, cellH;
+    // bounds of the current room
+    int roomX, roomY, roomW, roomH;
+    
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < cols; col++) {
+        // the last row and column take up any leftover space
+        cellX = col * CELL_SIZE;
+        cellY = row * CELL_SIZE;
+        cellW = (col == cols - 1) ? width - cellX : CELL_SIZE;
+        cellH = (row == rows - 1) ? height - cellY : CELL_SIZE;
+        
+        // pick a size, then a position, leaving a wall on each side
+        roomW = rng.nextInt(MIN_ROOM_SIZE, cellW - 1);
+        roomH = rng.nextInt(MIN_ROOM_SIZE, cellH - 1);
+        roomX = cellX + 1 + rng.nextInt(cellW - roomW - 1);
+        roomY = cellY + 1 + rng.nextInt(cellH - roomH - 1);
+        map.setWalls(roomX, roomY, roomW, roomH, false);
+        
+        centreX[row * cols + col] = roomX + roomW / 2;
+        centreY[row * cols + col] = roomY + roomH / 2;
+      }
+    }
+  }
   
   /**
-   * Creates a MIDI message setting a channel's volume.
-   * @param channel the channel to send through
-   * @param volume the volume to send (0-127)
-   * @return the MIDI message
+   * Carves corridors between neighbouring rooms. Rooms are joined along a
+   * random spanning tree (using Kruskal's algorithm), with some extra
+   * corridors added on top.
+   * @param map the map to carve into
+   * @param rng the RNG
+   * @param cols the number of grid columns
+   * @param rows the number of grid rows
+   * @param centreX the x-coordinate of each room's centre
+   * @param centreY the y-coordinate of each room's centre
    */
-  public static ShortMessage volumeMsg(int channel, int volume) {
-    try {
-      // Create a MIDI message for a control change on volume (CC 7)
-      // if the volume is out of range, an exception is thrown
-      return new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, CC_VOLUME, volume);
+  private void carveCorridors(WritableCollisionMap map, SplittableRandom rng, int cols, int rows, 
+    int[] centreX, int[] centreY) {
+    // Every pair of neighbouring rooms, as (room * 2) for the room to
+    // the right and (room * 2 + 1) for the room below
+    int[] edges = new int[cols * rows * 2];
+    int numEdges = 0;
+    // union-find parent of each room
+    int[] parent = new int[cols * rows];
+    // rooms being joined, and which sets they belong to
+    int from, to, fromSet, toSet;
+    // used for shuffling
+    int swapIndex, temp;
+    
+    for (int room = 0; room < cols * rows; room++) {
+      parent[room] = room;
+      if (room % cols != cols - 1)
+        edges[numEdges++] = room * 2;
+      if (room / cols != rows - 1)
+        edges[numEdges++] = room * 2 + 1;
     }
-    catch (InvalidMidiDataException e) {
-      throw new IllegalArgumentException("Invalid MIDI volume value", e);
+    // Fisher-Yates shuffle
+    for (int i = numEdges - 1; i > 0; i--) {
+      swapIndex = rng.nextInt(i + 1);
+      temp = edges[i];
+      edges[i] = edges[swapIndex];
+      edges[swapIndex] = temp;
+    }
+    
+    for (int i = 0; i < numEdges; i++) {
+      from = edges[i] / 2;
+      to = ((edges[i] & 1) == 0) ? from + 1 : from + cols;
+      fromSet = findSet(parent, from);
+      toSet = findSet(parent, to);
+      // Join rooms that aren't connected yet, and occasionally ones that are
+      if (fromSet != toSet || rng.nextInt(EXTRA_CORRIDOR_DEN) == 0) {
+        parent[fromSet] = toSet;
+        carveCorridor(map, centreX[from], centreY[from], centreX[to], centreY[to]);
+      }
     }
   }
   
   /**
-   * Creates a fade-in/out track for the fade sequencer. Specifically, this 
-   * creates a fade lasting 100 ticks. Since the fade sequencer is initialized
-   * at 100 ticks per quarter note, the tempo (measured in microseconds per
-   * quarter note) can easily be used to control the speed at which 
-   * fade-ins/fade-outs occur.
-   * 
-   * @param seq the sequence to add the fade track to
-   * @param channel the channel to fade in or out
-   * @param out if true, produces a fade out. if false, produces a fade in.
-   * @return the track containing the fade-in/fade-out.
+   * Finds which set a room belongs to (for union-find).
+   * @param parent the union-find parent array
+   * @param room the room
+   * @return the representative room of the set
    */
-  public static Track addFadeTrack(Sequence seq, int channel, boolean out) {
-    // the track being written to
-    Track track = seq.createTrack();
-    // used to store the MIDI events in the loop
-    MidiEvent event;
-    
-    if (out) {
-      for (int i = 100; i >= 0; i--) {
-        // Create a MIDI event which sets the volume
-        event = new MidiEvent(volumeMsg(channel, i), i);
-        track.add(event);
-      }
-    }
-    else {
-      for (int i = 0; i <= 100; i++) {
-        // Create a MIDI event which sets the volume
-        event = new MidiEvent(volumeMsg(channel, i), i);
-        track.add(event);
-      }
+  private static int findSet(int[] parent, int room) {
+    // path halving: point every other room on the way at its grandparent
+    while (parent[room] != room) {
+      parent[room] = parent[parent[room]];
+      room = parent[room];
     }
-    
-    return track;
+    return room;
   }
   
   /**
-   * Similar to {@link MidiUtils#addFadeTrack()}, but fades in or out all
-   * channels (except for a user-defined list)
-   * 
-   * @param seq the sequence to add the fade track to
-   * @param out if true, produces a fade out. if false, produces a fade in.
-   * @param excluded the channels to exclude from this fade.
-   * @return the track containing the fade-in/fade-out.
+   * Carves an L-shaped corridor: horizontally from the first point, then
+   * vertically to the second point.
+   * @param map the map to carve into
+   * @param x1 the x-coordinate of the first point
+   * @param y1 the y-coordinate of the first point
+   * @param x2 the x-coordinate of the second point
+   * @param y2 the y-coordinate of the second point
    */
-  public static Track addExclusiveFadeTrack(Sequence seq, boolean out, int... excluded) {
-    // the track being written to
-    Track track = seq.createTrack();
-    // used to store the MIDI events in the loop
-    MidiEvent event;
-    // the channels that will be used
-    int[] usedChannels = new int[MidiUtils.NUM_CHANNELS - excluded.length];
-    // counter for the next index of the used channel array.
-    int usedChannelCounter = 0;
-    // flag checking if the current channel should be used.
-    boolean shouldUseThisChannel;
+  private static void carveCorridor(WritableCollisionMap map, int x1, int y1, int x2, int y2) {
+    map.setWalls(Math.min(x1, x2), y1, Math.abs(x2 - x1) + 1, 1, false);
+    map.setWalls(x2, Math.min(y1, y2), 1, Math.abs(y2 - y1) + 1, false);
+  }
+  
+  /**
+   * Marks every empty tile reachable from a starting point as visited,
+   * using a scanline flood fill. This fills whole horizontal runs at once,
+   * so the stack stays small even on huge maps.
+   * @param map the map (its visited tiles are cleared first)
+   * @param start the starting point
+   * @return the number of tiles reached
+   */
+  static long floodFill(CollisionMap map, Point start) {
+    // stack of packed points to fill from
+    int[] stack = new int[64];
+    int stackSize = 0;
+    // current tile
+    int x, y;
+    // true if the previous tile above/below was open, so that each
+    // run of open tiles is only pushed once
+    boolean aboveOpen, belowOpen, open;
+    // number of tiles reached
+    long count = 0;
     
-    // initialize the "used channels" array
-    for (int i = 0; i < MidiUtils.NUM_CHANNELS; i++) {
-      shouldUseThisChannel = true;
-      for (int j = 0; j < excluded.length; j++) {
-        if (excluded[j] == i) {
-          shouldUseThisChannel = false;
-          break;
-        }
+    map.clearVisited();
+    stack[stackSize++] = start.pack();
+    while (stackSize > 0) {
+      stackSize--;
+      x = Point.unpackX(stack[stackSize]);
+      y = Point.unpackY(stack[stackSize]);
+      if (map.collides(x, y) || map.isVisited(x, y)) {
+        continue;
       }
-      // Add this channel if it hasn't been excluded
-      if (shouldUseThisChannel) {
-        usedChannels[usedChannelCounter] = i;
-        usedChannelCounter++;
+      // go back to the start of this run
+      while (!map.collides(x - 1, y) && !map.isVisited(x - 1, y)) {
+        x--;
       }
-    }
-    
-    if (out) {
-      // Iterate from 99 to 0
-      for (int t = 99; t >= 0; t--) {
-        for (int c = 0; c < usedChannels.length; c++) {
-          // Create a MIDI event which sets the volume
-          event = new MidiEvent(volumeMsg(usedChannels[c], t), t);
-          track.add(event);
+      aboveOpen = false;
+      belowOpen = false;
+      // fill the run, pushing the start of each open run above and below it
+      for (; !map.collides(x, y) && !map.isVisited(x, y); x++) {
+        map.setVisited(x, y);
+        count++;
+        // make room for up to 2 more points
+        if (stackSize + 2 > stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
         }
-      }
-    }
-    else {
-      // Iterate from 1 to 100
-      for (int t = 1; t <= 100; t++) {
-        // Iterate over all 16 MIDI channels
-        for (int c = 0; c < usedChannels.length; c++) {
-          // Create a MIDI event which sets the volume
-          event = new MidiEvent(volumeMsg(usedChannels[c], t), t);
-          track.add(event);
+        open = !map.collides(x, y - 1) && !map.isVisited(x, y - 1);
+        if (open && !aboveOpen) {
+          stack[stackSize++] = Point.pack(x, y - 1);
+        }
+        aboveOpen = open;
+        open = !map.collides(x, y + 1) && !map.isVisited(x, y + 1);
+        if (open && !belowOpen) {
+          stack[stackSize++] = Point.pack(x, y + 1);
         }
+        belowOpen = open;
       }
     }
-    
-    return track;
+    return count;
   }
   
+  // Size of the maps to generate.
+  private int width, height;
+  // Seed for the generator.
+  private long seed;
+}
+
+/**
+ * Collision map for huge worlds, split into square chunks that are only
+ * loaded when something touches them. Only a limited number of chunks are
+ * kept loaded; when another one is needed, the least recently used chunk
+ * is dropped, and gets loaded again the next time it is touched.
+ * 
+ * Dropped chunks are only kept around if something on them would be lost:
+ * the tiles the player has visited, and walls that were changed after
+ * loading. So, memory use grows with the area the player has explored,
+ * not with the size of the world.
+ * 
+ * This class is not thread-safe (even reads can load chunks), so each game
+ * should have its own map.
+ */
+class ChunkedCollisionMap extends WritableCollisionMap {
+  // Number of bits in a chunk coordinate within a chunk
+  static final int CHUNK_BITS = 6;
+  // Width and height of a chunk. Each row of a chunk fits in one long.
+  public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  // Mask for a tile's coordinate within its chunk
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  
   /**
-   * Converts milliseconds to microseconds.
-   * @param millis a duration in milliseconds
-   * @return the same duration, in microseconds
+   * Fills in the walls of chunks as they are loaded.
    */
-  public static int millisecondsToMicroseconds(int millis) {
-    return millis * 1000;
+  public interface ChunkLoader {
+    /**
+     * Fills in the walls of a chunk. This must always produce the same walls
+     * for the same chunk, since chunks can be dropped and loaded again.
+     * @param chunkX the x-coordinate of the chunk (tile x-coordinate / {@link ChunkedCollisionMap#CHUNK_SIZE})
+     * @param chunkY the y-coordinate of the chunk (tile y-coordinate / {@link ChunkedCollisionMap#CHUNK_SIZE})
+     * @param walls one long per row of the chunk, with bit x set if the tile at x
+     * is a wall. It arrives filled with garbage, so every bit must be written.
+     */
+    void loadChunk(int chunkX, int chunkY, long[] walls);
   }
   
   /**
-   * Gets the volume of a particular MIDI channel.
-   * @param synth the synthesizer
-   * @param channel the channel
-   * @return the volume of channel {@code channel} of {@code synth}
+   * Constructs a chunked collision map.
+   * @param width the number of grid cells in the x-axis
+   * @param height the number of grid cells in the y-axis
+   * @param loader fills in the walls of each chunk
+   * @param maxChunks the most chunks to keep loaded at once
    */
-  public static int getVolume(Synthesizer synth, int channel) {
-    // the MIDI channel to use.
-    MidiChannel midiChan = synth.getChannels()[channel];
-    // Get the value of the "volume" controller
-    return midiChan.getController(CC_VOLUME);
+  public ChunkedCollisionMap(int width, int height, ChunkLoader loader, int maxChunks) {
+    super(width, height);
+    if (maxChunks < 1) {
+      throw new IllegalArgumentException("Must be able to load at least 1 chunk");
+    }
+    this.loader = loader;
+    this.maxChunks = maxChunks;
+    this.loaded = new OccupancyMap<>();
+    this.savedWalls = new OccupancyMap<>();
+    this.savedVisited = new OccupancyMap<>();
+    this.newest = null;
+    this.oldest = null;
+    this.last = null;
   }
   
-  public static void setVolume(Synthesizer synth, int channel, int volume) {
-    // the MIDI channel to use.
-    MidiChannel midiChan = synth.getChannels()[channel];
-    // Set the value of the "volume" controller
-    midiChan.controlChange(CC_VOLUME, volume);
-    
+  @Override
+  public void clearVisited() {
+    for (Chunk c = newest; c != null; c = c.older) {
+      Arrays.fill(c.visited, 0L);
+    }
+    savedVisited.clear();
   }
-}
-
-/**
- * Music handler for the game.
- */
-class MusicEngine implements AutoCloseable {
   
-  // Constants representing timestamps in the MIDI file.
-  private static final long MAIN_LOOPBACK_TICK = 4096;
+  @Override
+  public boolean isVisited(int x, int y) {
+    return (chunkAt(x, y).visited[y & CHUNK_MASK] & (1L << x)) != 0;
+  }
   
-  // Constants for MIDI channels in the theme.
-  private static final int HORN_CHANNEL = 0;
-  private static final int TROMBONE_CHANNEL = 1;
-  private static final int TUBA_CHANNEL = 2;
-  private static final int GLOCKENSPIEL_CHANNEL = 3;
-  private static final int SNARE_DRUM_CHANNEL = 9;
+  @Override
+  public void setVisited(int x, int y) {
+    chunkAt(x, y).visited[y & CHUNK_MASK] |= (1L << x);
+  }
   
-  // Constants for fade times
-  private static final int FADEOUT_TIME = 500;
-  private static final int TRANSITION_TIME = 1000;
+  @Override
+  public boolean isWall(int x, int y) {
+    // shifting by x only uses its lowest 6 bits (the x-coordinate within the chunk)
+    return (chunkAt(x, y).walls[y & CHUNK_MASK] & (1L << x)) != 0;
+  }
   
-  public MusicEngine() {
-    try {
-      // initialize the MIDI objects
-      this.musicSeqr = initMusicSeqr();
-      this.synth = MidiSystem.getSynthesizer();
-      
-      // open the MIDI objects
-      this.musicSeqr.open();
-      this.synth.open();
-      
-      // Connect the sequencers to the synthesizer
-      Transmitter musicTransmitter = this.musicSeqr.getTransmitter();
-      Receiver synthReceiver = this.synth.getReceiver();
-      musicTransmitter.setReceiver(synthReceiver);
+  @Override
+  public void setWall(int x, int y, boolean wall) {
+    // the chunk holding the tile
+    Chunk c = chunkAt(x, y);
+    
+    if (wall) {
+      c.walls[y & CHUNK_MASK] |= (1L << x);
     }
-    catch (Exception e) {
-      // Honestly, nothing should go wrong here.
-      throw new Error(e);
+    else {
+      c.walls[y & CHUNK_MASK] &= ~(1L << x);
     }
-    // binary semaphore for signaling (MIDI runs in a different thread)
-    this.signal = new Semaphore(1, true);
-    // 0 is defaul transition state
-    this.transitionState = 0;
+    c.modified = true;
   }
   
-  public void start() {
-    MidiChannel[] channels = this.synth.getChannels();
-    // Lock the mutex.
-    try {
-      try {
-        this.signal.acquire();
-      } catch (InterruptedException e) {
-        // This shouldn't happen, but if it does, crash and burn.
-        throw new RuntimeException(e);
-      }
-      // Start the music.
-      this.musicSeqr.setTickPosition(0);
-      this.musicSeqr.start();
-      
-      // Set all channels to default volume (100), except for the ones playing
-      // glockenspiel and snare drum. These are faded in later as you get closer
-      // to Desmond, and then pick him up.
-      for (int i = 0; i < channels.length; i++) {
-        if (i == GLOCKENSPIEL_CHANNEL || i == SNARE_DRUM_CHANNEL) {
-          channels[i].controlChange(MidiUtils.CC_VOLUME, 0);
-        }
-        else {
-          channels[i].controlChange(MidiUtils.CC_VOLUME, 100);
-        }
-      }
-      // Music always starts in transition state 0
-      this.transitionState = 0;
+  /**
+   * Returns the number of chunks currently loaded.
+   * @return the number of chunks currently loaded
+   */
+  public int loadedChunks() {
+    return loaded.size();
+  }
+  
+  /**
+   * Returns the number of dropped chunks that are being kept around,
+   * because they were visited or changed.
+   * @return the number of dropped chunks being kept around
+   */
+  public int savedChunks() {
+    // a chunk can be in both, but this is only for display
+    return Math.max(savedWalls.size(), savedVisited.size());
+  }
+  
+  /**
+   * Returns the chunk holding a tile, loading it if needed.
+   * The tile must be on the map.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   * @return the chunk
+   */
+  private Chunk chunkAt(int x, int y) {
+    // packed chunk coordinates
+    int key = Point.pack(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+    // the chunk, if it is loaded
+    Chunk c;
+    
+    // Most accesses in a row hit the same chunk, so skip the lookup for those
+    if (last != null && last.key == key) {
+      return last;
     }
-    finally {
-      // Unlock the mutex.
-      this.signal.release();
+    c = loaded.get(key);
+    if (c == null) {
+      c = load(key);
     }
-    
-    
+    else {
+      unlink(c);
+    }
+    // Most recently used goes to the front
+    linkNewest(c);
+    last = c;
+    return c;
   }
   
-  public void stop() {
-    if (!this.musicSeqr.isRunning()) {
-      return;
-    }
+  /**
+   * Loads a chunk, dropping the least recently used one if there
+   * are too many loaded.
+   * @param key the packed chunk coordinates
+   * @return the loaded chunk (not linked into the usage list yet)
+   */
+  private Chunk load(int key) {
+    // the chunk being loaded
+    Chunk c;
+    // anything kept from an earlier load
+    long[] saved;
     
-    // Lock the mutex.
-    try {
-      this.signal.acquire();
-    } catch (InterruptedException e) {
-      // This shouldn't happen, but if it does, crash and burn.
-      throw new RuntimeException(e);
+    if (loaded.size() >= maxChunks) {
+      // Reuse the dropped chunk's object, to save on garbage
+      c = oldest;
+      drop(c);
     }
+    else {
+      c = new Chunk();
+    }
+    c.key = key;
     
-    // Safely return if the system has been closed in the meantime
-    if (this.synth == null)
-      return;
-    
-    // List and array of tracks to use respectively
-    List<Integer> channelList = new ArrayList<>();
-    
-    // add the fade out for the channels that are always playing
-    channelList.add(HORN_CHANNEL);
-    channelList.add(TROMBONE_CHANNEL);
-    channelList.add(TUBA_CHANNEL);
-    // check if the glockenspiel needs to be faded out
-    if (MidiUtils.getVolume(synth, GLOCKENSPIEL_CHANNEL) != 0) {
-      channelList.add(GLOCKENSPIEL_CHANNEL);
+    saved = savedWalls.get(key);
+    if (saved != null) {
+      savedWalls.remove(key);
+      c.walls = saved;
+      c.modified = true;
     }
-    // check if the snare drum needs to be faded out
-    if (MidiUtils.getVolume(synth, SNARE_DRUM_CHANNEL) != 0) {
-      channelList.add(SNARE_DRUM_CHANNEL);
+    else {
+      loader.loadChunk(Point.unpackX(key), Point.unpackY(key), c.walls);
+      c.modified = false;
     }
-    
-    // Execute the fadeout
-    // The fader thread will unlock the mutex when done
-    new FaderThread(FADEOUT_TIME, null, channelList, () -> {
-      this.musicSeqr.stop();
-    }).start();
+    saved = savedVisited.get(key);
+    if (saved != null) {
+      savedVisited.remove(key);
+      c.visited = saved;
+    }
+    else {
+      Arrays.fill(c.visited, 0L);
+    }
+    loaded.put(key, c);
+    return c;
   }
   
   /**
-   * Transitions the music between states. The states are:
-   * <ul>
+   * Drops a loaded chunk. Its walls are kept if they were changed, and its
+   * visited tiles are kept if there are any. The kept arrays are handed
+   * over, and the chunk gets fresh ones.
+   * @param c the chunk to drop
+   */
+  private void drop(Chunk c) {
+    unlink(c);
+    loaded.remove(c.key);
+    if (last == c) {
+      last = null;
+    }
+    if (c.modified) {
+      savedWalls.put(c.key, c.walls);
+      c.walls = new long[CHUNK_SIZE];
+    }
+    for (long row : c.visited) {
+      if (row != 0) {
+        savedVisited.put(c.key, c.visited);
+        c.visited = new long[CHUNK_SIZE];
+        break;
+      }
+    }
+  }
+  
+  /**
+   * Removes a chunk from the usage list.
+   * @param c the chunk
+   */
+  private void unlink(Chunk c) {
+    if (c.newer != null)
+      c.newer.older = c.older;
+    else
+      newest = c.older;
+    if (c.older != null)
+      c.older.newer = c.newer;
+    else
+      oldest = c.newer;
+    c.newer = null;
+    c.older = null;
+  }
+  
+  /**
+   * Adds a chunk to the front of the usage list.
+   * @param c the chunk (must not be in the list)
+   */
+  private void linkNewest(Chunk c) {
+    c.older = newest;
+    if (newest != null)
+      newest.newer = c;
+    else
+      oldest = c;
+    newest = c;
+  }
+  
+  /**
+   * A loaded chunk. Chunks are linked from most to least recently used.
+   */
+  private static class Chunk {
+    // Walls, one long per row. Bit x of row y is set if that tile is a wall.
+    long[] walls = new long[CHUNK_SIZE];
+    // Visited tiles, laid out the same way.
+    long[] visited = new long[CHUNK_SIZE];
+    // Packed chunk coordinates.
+    int key;
+    // Whether the walls were changed since loading.
+    boolean modified;
+    // Neighbours in the usage list.
+    Chunk newer, older;
+  }
+  
+  // Fills in the walls of new chunks.
+  private ChunkLoader loader;
+  // Most chunks to keep loaded.
+  private int maxChunks;
+  // Loaded chunks, by packed chunk coordinates.
+  private OccupancyMap<Chunk> loaded;
+  // Changed walls and visited tiles of dropped chunks, by packed chunk coordinates.
+  private OccupancyMap<long[]> savedWalls, savedVisited;
+  // Ends of the usage list.
+  private Chunk newest, oldest;
+  // The last chunk accessed.
+  private Chunk last;
+}
+
+/**
+ * Generates chunks of a {@link ChunkedCollisionMap} made of rooms and
+ * corridors, in the same style as {@link MapGenerator}.
+ * 
+ * Each chunk has to be generated on its own, so the rooms can't be joined
+ * using a spanning tree like MapGenerator does. Instead, every room is
+ * joined to the room below it, the rooms along the top are all joined
+ * together, and other rooms are randomly joined to the room to their right.
+ * Every room can reach the top row, so every room can reach every other.
+ * Each room and corridor only depends on the seed and its grid cell, so
+ * a chunk only needs to look at its own cells and the ones around it.
+ */
+class RoomChunkLoader implements ChunkedCollisionMap.ChunkLoader {
+  // Number of grid cells across a chunk.
+  private static final int CELLS_PER_CHUNK = ChunkedCollisionMap.CHUNK_SIZE / MapGenerator.CELL_SIZE;
+  
+  /**
+   * Constructs a chunk loader. The same size and seed will always
+   * generate the same map.
+   * @param width the width of the map (a multiple of {@link MapGenerator#CELL_SIZE})
+   * @param height the height of the map (a multiple of {@link MapGenerator#CELL_SIZE})
+   * @param seed the seed for the generator
+   */
+  public RoomChunkLoader(int width, int height, long seed) {
+    if (width % MapGenerator.CELL_SIZE != 0 || height % MapGenerator.CELL_SIZE != 0) {
+      String errMsg = String.format("Map size must be a multiple of %d", MapGenerator.CELL_SIZE);
+      throw new IllegalArgumentException(errMsg);
+    }
+    if (width < MapGenerator.MIN_MAP_SIZE || height < MapGenerator.MIN_MAP_SIZE) {
+      String errMsg = String.format("Map must be at least %1$dx%1$d", MapGenerator.MIN_MAP_SIZE);
+      throw new IllegalArgumentException(errMsg);
+    }
+    this.cols = width / MapGenerator.CELL_SIZE;
+    this.rows = height / MapGenerator.CELL_SIZE;
+    this.seed = seed;
+    this.room = new int[4];
+    this.other = new int[4];
+  }
+  
+  /**
+   * Creates a chunked map using this loader, with its home point set.
+   * @param maxChunks the most chunks to keep loaded at once
+   * @return the map
+   */
+  public ChunkedCollisionMap createMap(int maxChunks) {
+    // the map being created
+    ChunkedCollisionMap map = new ChunkedCollisionMap(cols * MapGenerator.CELL_SIZE, 
+      rows * MapGenerator.CELL_SIZE, this, maxChunks);
+    
+    // the home point is in the middle of the left edge, like the default map
+    roomIn(0, rows / 2, room);
+    map.setHomePoint(new Point(room[0] + room[2] / 2, room[1] + room[3] / 2));
+    return map;
+  }
+  
+  @Override
+  public void loadChunk(int chunkX, int chunkY, long[] walls) {
+    // first grid cell in the chunk
+    int firstCol = chunkX * CELLS_PER_CHUNK, firstRow = chunkY * CELLS_PER_CHUNK;
+    // top-left tile of the chunk
+    int originX = chunkX * ChunkedCollisionMap.CHUNK_SIZE, originY = chunkY * ChunkedCollisionMap.CHUNK_SIZE;
+    
+    Arrays.fill(walls, -1L);
+    // Corridors never leave the two cells they join, so only
+    // the cells just outside the chunk need to be checked
+    for (int row = Math.max(0, firstRow - 1); row <= firstRow + CELLS_PER_CHUNK && row < rows; row++) {
+      for (int col = Math.max(0, firstCol - 1); col <= firstCol + CELLS_PER_CHUNK && col < cols; col++) {
+        roomIn(col, row, room);
+        carve(walls, originX, originY, room[0], room[1], room[2], room[3]);
+        if (row + 1 < rows) {
+          roomIn(col, row + 1, other);
+          carveCorridor(walls, originX, originY, room, other);
+        }
+        if (col + 1 < cols && (row == 0 || joinsRight(col, row))) {
+          roomIn(col + 1, row, other);
+          carveCorridor(walls, originX, originY, room, other);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Works out the room in a grid cell. This picks sizes the same way
+   * as {@link MapGenerator}.
+   * @param col the grid column
+   * @param row the grid row
+   * @param out filled with the room's x, y, width and height
+   */
+  private void roomIn(int col, int row, int[] out) {
+    // RNG for this cell only
+    SplittableRandom rng = cellRandom(col, row);
+    
+    out[2] = rng.nextInt(MapGenerator.MIN_ROOM_SIZE, MapGenerator.CELL_SIZE - 1);
+    out[3] = rng.nextInt(MapGenerator.MIN_ROOM_SIZE, MapGenerator.CELL_SIZE - 1);
+    out[0] = col * MapGenerator.CELL_SIZE + 1 + rng.nextInt(MapGenerator.CELL_SIZE - out[2] - 1);
+    out[1] = row * MapGenerator.CELL_SIZE + 1 + rng.nextInt(MapGenerator.CELL_SIZE - out[3] - 1);
+  }
+  
+  /**
+   * Returns true if the room in a grid cell is joined to the room to its right.
+   * @param col the grid column
+   * @param row the grid row
+   * @return true if the rooms are joined
+   */
+  private boolean joinsRight(int col, int row) {
+    // skip the 4 numbers used for the room
+    SplittableRandom rng = cellRandom(col, row);
+    for (int i = 0; i < 4; i++) {
+      rng.nextInt();
+    }
+    return rng.nextBoolean();
+  }
+  
+  /**
+   * Returns an RNG that only depends on the seed and a grid cell.
+   * @param col the grid column
+   * @param row the grid row
+   * @return the RNG
+   */
+  private SplittableRandom cellRandom(int col, int row) {
+    // an odd constant that isn't SplittableRandom's own increment, so that
+    // neighbouring cells don't get shifted copies of the same sequence
+    return new SplittableRandom(seed + ((long) row * cols + col) * 0xBF58476D1CE4E5B9L);
+  }
+  
+  /**
+   * Carves an L-shaped corridor between the centres of two rooms, the same
+   * way as {@link MapGenerator}. Only the part inside the chunk is carved.
+   * @param walls the chunk's walls
+   * @param originX the x-coordinate of the chunk's top-left tile
+   * @param originY the y-coordinate of the chunk's top-left tile
+   * @param from the first room (x, y, width, height)
+   * @param to the second room (x, y, width, height)
+   */
+  private static void carveCorridor(long[] walls, int originX, int originY, int[] from, int[] to) {
+    // centres of the rooms
+    int x1 = from[0] + from[2] / 2, y1 = from[1] + from[3] / 2;
+    int x2 = to[0] + to[2] / 2, y2 = to[1] + to[3] / 2;
+    
+    carve(walls, originX, originY, Math.min(x1, x2), y1, Math.abs(x2 - x1) + 1, 1);
+    carve(walls, originX, originY, x2, Math.min(y1, y2), 1, Math.abs(y2 - y1) + 1);
+  }
+  
+  /**
+   * Clears the walls in a rectangle. Only the part inside the chunk is cleared.
+   * @param walls the chunk's walls
+   * @param originX the x-coordinate of the chunk's top-left tile
+   * @param originY the y-coordinate of the chunk's top-left tile
+   * @param x the x-coordinate of the rectangle's top-left corner
+   * @param y the y-coordinate of the rectangle's top-left corner
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   */
+  private static void carve(long[] walls, int originX, int originY, int x, int y, int w, int h) {
+    // the rectangle, clipped to the chunk and relative to it
+    int left = Math.max(x - originX, 0), right = Math.min(x + w - originX, ChunkedCollisionMap.CHUNK_SIZE);
+    int top = Math.max(y - originY, 0), bottom = Math.min(y + h - originY, ChunkedCollisionMap.CHUNK_SIZE);
+    // bits to clear in each row
+    long mask;
+    
+    if (left >= right || top >= bottom) {
+      return;
+    }
+    // the same trick as DenseCollisionMap's bit ranges
+    mask = (-1L << left) & (-1L >>> -right);
+    for (int row = top; row < bottom; row++) {
+      walls[row] &= ~mask;
+    }
+  }
+  
+  // Size of the map, in grid cells.
+  private int cols, rows;
+  // Seed for the generator.
+  private long seed;
+  // Scratch space for the rooms being carved.
+  private int[] room, other;
+}
+
+/**
+ * Collision map whose walls are read straight out of a memory-mapped
+ * map file (see {@link MapFile}), without copying them into the heap.
+ * The operating system only reads in the parts of the file that are used,
+ * and processes playing on the same file share its pages.
+ * 
+ * The file is mapped read-only, so that it can be shared, and walls can't
+ * be changed. Visited tiles are kept in memory, in pages that are only
+ * created once a tile on them is visited.
+ */
+class MappedCollisionMap extends CollisionMap {
+  // Number of bits in a long index within a page of visited tiles
+  private static final int PAGE_BITS = 12;
+  // Number of longs in a page of visited tiles (each page covers 262144 tiles)
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  
+  /**
+   * Constructs a map over a mapped file. Use {@link MapFile#open(Path)}
+   * to open a map file.
+   * @param width the number of grid cells in the x-axis
+   * @param height the number of grid cells in the y-axis
+   * @param buffer the mapped file, in little-endian order
+   * @param offset the offset of the tile bits in the buffer
+   */
+  MappedCollisionMap(int width, int height, ByteBuffer buffer, int offset) {
+    super(width, height);
+    this.buffer = buffer;
+    this.offset = offset;
+    // one page per PAGE_SIZE longs, rounded up
+    this.visitedPages = new long[(MapFile.bitsetLength(width, height) + PAGE_SIZE - 1) >>> PAGE_BITS][];
+  }
+  
+  @Override
+  public void clearVisited() {
+    // Keep the pages, since the next game will probably need them too
+    for (long[] page : visitedPages) {
+      if (page != null) {
+        Arrays.fill(page, 0L);
+      }
+    }
+  }
+  
+  @Override
+  public boolean isVisited(int x, int y) {
+    // bit index of the tile
+    long i = index(x, y);
+    // the page holding it
+    long[] page = visitedPages[(int) (i >>> (6 + PAGE_BITS))];
+    
+    return page != null && (page[(int) (i >>> 6) & (PAGE_SIZE - 1)] & (1L << i)) != 0;
+  }
+  
+  @Override
+  public void setVisited(int x, int y) {
+    // bit index of the tile
+    long i = index(x, y);
+    // index of the page holding it
+    int pageIndex = (int) (i >>> (6 + PAGE_BITS));
+    
+    if (visitedPages[pageIndex] == null) {
+      visitedPages[pageIndex] = new long[PAGE_SIZE];
+    }
+    visitedPages[pageIndex][(int) (i >>> 6) & (PAGE_SIZE - 1)] |= (1L << i);
+  }
+  
+  @Override
+  public boolean isWall(int x, int y) {
+    return (buffer.getLong(wordOffset(index(x, y))) & (1L << index(x, y))) != 0;
+  }
+  
+  /**
+   * Returns the bit index of a tile.
+   * @param x the x-coordinate of the tile
+   * @param y the y-coordinate of the tile
+   * @return the bit index of the tile
+   */
+  private long index(int x, int y) {
+    return (long) y * width() + x;
+  }
+  
+  /**
+   * Returns the offset in the buffer of the long holding a bit.
+   * @param i the bit index
+   * @return the offset in the buffer
+   */
+  private int wordOffset(long i) {
+    // MapFile makes sure this fits in an int
+    return offset + (int) ((i >>> 6) << 3);
+  }
+  
+  // The mapped file.
+  private ByteBuffer buffer;
+  // Offset of the tile bits in the buffer.
+  private int offset;
+  // Visited tiles, in pages of PAGE_SIZE longs. Pages are null until needed.
+  private long[][] visitedPages;
+}
+
+/**
+ * Reads and writes map files. A map file has a header:
+ * <pre>
+ * bytes 0-3:   "SDMP"
+ * bytes 4-7:   format version (1)
+ * bytes 8-15:  width, height
+ * bytes 16-23: home point x, y
+ * </pre>
+ * followed by one bit per tile, row by row, with bit 0 of each byte first.
+ * A set bit is a wall. Everything is little-endian, so the tile bits
+ * can be read directly as the same longs {@link DenseCollisionMap} uses.
+ */
+class MapFile {
+  // "SDMP", read as a little-endian int
+  private static final int MAGIC = 0x504D4453;
+  // Current version of the format
+  private static final int VERSION = 1;
+  // Size of the header, in bytes (a multiple of 8, so the tile bits are aligned)
+  static final int HEADER_SIZE = 24;
+  // Size of the buffer used for writing
+  private static final int WRITE_BUFFER_SIZE = 1 << 16;
+  
+  /**
+   * This class should not be constructed.
+   */
+  private MapFile() {}
+  
+  /**
+   * Opens a map file, by mapping it into memory.
+   * @param p the path to the map file
+   * @return a map that reads its walls from the file
+   * @throws IOException if the file can't be read or is not a valid map file
+   */
+  public static CollisionMap open(Path p) throws IOException {
+    // the mapped file
+    ByteBuffer buffer;
+    // header fields
+    int width, height, homeX, homeY;
+    // the resulting map
+    CollisionMap map;
+    
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Not a map file: " + p);
+      }
+      // The mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a map file: " + p);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException(String.format("Unsupported map file version %d", buffer.getInt(4)));
+    }
+    width = buffer.getInt(8);
+    height = buffer.getInt(12);
+    homeX = buffer.getInt(16);
+    homeY = buffer.getInt(20);
+    if (width <= 0 || height <= 0 || width > Point.MAX_PACKED_COORD + 1 || height > Point.MAX_PACKED_COORD + 1) {
+      throw new IOException(String.format("Invalid map size %dx%d", width, height));
+    }
+    if (buffer.capacity() < HEADER_SIZE + (long) bitsetLength(width, height) * 8) {
+      throw new IOException("Map file is truncated: " + p);
+    }
+    
+    map = new MappedCollisionMap(width, height, buffer, HEADER_SIZE);
+    if (map.collides(homeX, homeY)) {
+      throw new IOException(String.format("Invalid home point (%d, %d)", homeX, homeY));
+    }
+    map.setHomePoint(new Point(homeX, homeY));
+    return map;
+  }
+  
+  /**
+   * Writes a map to a map file, replacing it if it exists.
+   * @param p the path to write to
+   * @param map the map to write. It must have a home point set.
+   * @throws IOException if the file can't be written
+   */
+  public static void write(Path p, CollisionMap map) throws IOException {
+    // buffer holding data to be written
+    ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // the long currently being filled, and the next bit to fill in it
+    long word = 0;
+    int bit = 0;
+    
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.CREATE, 
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      buffer.putInt(MAGIC).putInt(VERSION)
+        .putInt(map.width()).putInt(map.height())
+        .putInt(map.getHomePoint().x).putInt(map.getHomePoint().y);
+      
+      for (int y = 0; y < map.height(); y++) {
+        for (int x = 0; x < map.width(); x++) {
+          if (map.isWall(x, y)) {
+            word |= 1L << bit;
+          }
+          if (++bit == 64) {
+            putLong(channel, buffer, word);
+            word = 0;
+            bit = 0;
+          }
+        }
+      }
+      // the last long may only be partly filled
+      if (bit > 0) {
+        putLong(channel, buffer, word);
+      }
+      writeFully(channel, buffer);
+    }
+  }
+  
+  /**
+   * Returns the number of longs needed to hold one bit per tile.
+   * @param width the width of the map
+   * @param height the height of the map
+   * @return the number of longs
+   */
+  static int bitsetLength(int width, int height) {
+    // round up to the next multiple of 64
+    return (int) (((long) width * height + 63) >>> 6);
+  }
+  
+  /**
+   * Adds a long to the write buffer, writing the buffer out if it is full.
+   * @param channel the channel to write to
+   * @param buffer the write buffer
+   * @param value the long to add
+   * @throws IOException if writing fails
+   */
+  private static void putLong(FileChannel channel, ByteBuffer buffer, long value) throws IOException {
+    if (buffer.remaining() < 8) {
+      writeFully(channel, buffer);
+    }
+    buffer.putLong(value);
+  }
+  
+  /**
+   * Writes out everything in the write buffer, and empties it.
+   * @param channel the channel to write to
+   * @param buffer the write buffer
+   * @throws IOException if writing fails
+   */
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
+
+/**
+ * Table of the tiles that things can spawn on: tiles that aren't walls
+ * and aren't too close to the home point. Tiles are also tracked as free
+ * or occupied, so that a free tile can be picked in constant time.
+ * 
+ * The eligible tiles are kept in an array, with the free tiles first.
+ * Occupying or freeing a tile swaps it across the boundary, using an index
+ * from each tile to its place in the array.
+ * 
+ * The index takes 4 bytes per tile on the map, so this is only meant for
+ * maps up to {@link SpawnTable#MAX_TILES} tiles.
+ */
+class SpawnTable {
+  // Largest map (in tiles) that a spawn table can be made for.
+  public static final long MAX_TILES = 1L << 22;
+  // Marks a tile that isn't in the table.
+  private static final int NOT_ELIGIBLE = -1;
+  
+  /**
+   * Constructs a spawn table for a map. Call {@link SpawnTable#reset()}
+   * before using it.
+   * @param map the map
+   * @param clearZone tiles must be further than this from the home point
+   * on both axes to be eligible
+   */
+  public SpawnTable(CollisionMap map, int clearZone) {
+    if (!fits(map)) {
+      String errMsg = String.format("Map is too large for a spawn table (%dx%d)", map.width(), map.height());
+      throw new IllegalArgumentException(errMsg);
+    }
+    this.map = map;
+    this.clearZone = clearZone;
+    this.slots = new int[map.width() * map.height()];
+    this.tiles = new int[0];
+    this.size = 0;
+    this.free = 0;
+  }
+  
+  /**
+   * Returns true if a spawn table can be made for a map.
+   * @param map the map
+   * @return true if the map is small enough
+   */
+  public static boolean fits(CollisionMap map) {
+    return (long) map.width() * map.height() <= MAX_TILES;
+  }
+  
+  /**
+   * Counts the tiles of a map that things can spawn on, stopping once
+   * there are enough. This works on maps of any size.
+   * @param map the map
+   * @param clearZone tiles must be further than this from the home point
+   * on both axes to be eligible
+   * @param limit the most tiles to count
+   * @return the number of eligible tiles, or {@code limit} if there are more
+   */
+  public static long countEligible(CollisionMap map, int clearZone, long limit) {
+    // home position
+    int homeX = map.getHomePoint().x, homeY = map.getHomePoint().y;
+    // number of eligible tiles found so far
+    long count = 0;
+    
+    for (int y = 0; y < map.height() && count < limit; y++) {
+      // rows near home can't have any eligible tiles
+      if (Math.abs(y - homeY) <= clearZone) {
+        continue;
+      }
+      for (int x = 0; x < map.width() && count < limit; x++) {
+        if (Math.abs(x - homeX) > clearZone && !map.collides(x, y)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+  
+  /**
+   * Returns the map this table is for.
+   * @return the map this table is for
+   */
+  public CollisionMap getMap() {
+    return map;
+  }
+  
+  /**
+   * Rebuilds the table from the map, with every eligible tile free. The
+   * tiles always end up in the same order, so that games stay repeatable
+   * no matter what was played before.
+   */
+  public void reset() {
+    // home position
+    int homeX = map.getHomePoint().x, homeY = map.getHomePoint().y;
+    // width of the map
+    int width = map.width();
+    
+    size = 0;
+    for (int y = 0; y < map.height(); y++) {
+      for (int x = 0; x < width; x++) {
+        if (Math.abs(x - homeX) > clearZone && Math.abs(y - homeY) > clearZone && 
+          !map.collides(x, y)) {
+          if (size == tiles.length) {
+            tiles = Arrays.copyOf(tiles, Math.max(16, size * 2));
+          }
+          tiles[size] = Point.pack(x, y);
+          slots[y * width + x] = size;
+          size++;
+        }
+        else {
+          slots[y * width + x] = NOT_ELIGIBLE;
+        }
+      }
+    }
+    free = size;
+  }
+  
+  /**
+   * Returns the number of free tiles.
+   * @return the number of free tiles
+   */
+  public int freeCount() {
+    return free;
+  }
+  
+  /**
+   * Picks a random free tile. The tile stays free until it is occupied.
+   * @param rng the RNG to pick with
+   * @return the packed position of the tile
+   * @throws IllegalStateException if there are no free tiles left. This
+   * can't happen in a game, since {@link GameState} checks that the map
+   * has room for everything before it is played on.
+   */
+  public int sample(SplittableRandom rng) {
+    if (free == 0) {
+      throw new IllegalStateException("No free tiles left to spawn on");
+    }
+    return tiles[rng.nextInt(free)];
+  }
+  
+  /**
+   * Marks a tile as occupied. Nothing happens if it is already occupied,
+   * or it isn't eligible.
+   * @param packedPos the packed position of the tile
+   */
+  public void occupy(int packedPos) {
+    // where the tile is in the table
+    int slot = slotOf(packedPos);
+    
+    if (slot != NOT_ELIGIBLE && slot < free) {
+      // swap it with the last free tile, then shrink the free section
+      free--;
+      swap(slot, free);
+    }
+  }
+  
+  /**
+   * Marks a tile as free. Nothing happens if it is already free,
+   * or it isn't eligible.
+   * @param packedPos the packed position of the tile
+   */
+  public void release(int packedPos) {
+    // where the tile is in the table
+    int slot = slotOf(packedPos);
+    
+    if (slot != NOT_ELIGIBLE && slot >= free) {
+      // swap it with the first occupied tile, then grow the free section
+      swap(slot, free);
+      free++;
+    }
+  }
+  
+  /**
+   * Returns where a tile is in the table.
+   * @param packedPos the packed position of the tile
+   * @return the index in the table, or NOT_ELIGIBLE
+   */
+  private int slotOf(int packedPos) {
+    return slots[Point.unpackY(packedPos) * map.width() + Point.unpackX(packedPos)];
+  }
+  
+  /**
+   * Swaps two tiles in the table, keeping the index up to date.
+   * @param a the index of the first tile
+   * @param b the index of the second tile
+   */
+  private void swap(int a, int b) {
+    // the tile from a
+    int temp = tiles[a];
+    
+    tiles[a] = tiles[b];
+    tiles[b] = temp;
+    slots[Point.unpackY(tiles[a]) * map.width() + Point.unpackX(tiles[a])] = a;
+    slots[Point.unpackY(tiles[b]) * map.width() + Point.unpackX(tiles[b])] = b;
+  }
+  
+  // The map this table is for.
+  private CollisionMap map;
+  // Distance from the home point where nothing spawns.
+  private int clearZone;
+  // Packed positions of eligible tiles. The first (free) are free.
+  private int[] tiles;
+  // Where each tile (y * width + x) is in the tiles array, or NOT_ELIGIBLE.
+  private int[] slots;
+  // Number of eligible tiles.
+  private int size;
+  // Number of free tiles.
+  private int free;
+}
+
+// GAME OBJECTS
+// ==========================
+
+/**
+ * Represents the player on the game board.
+ */
+class Player extends GameEntity {
+  /**
+   * Represents a player action.
+   * Uses a clever trick where every enum value is
+   * an anonymous subclass of the enum class itself.
+   * 
+   * This allows us to override the run action depending on the action.
+   * Since the parameters have to be generic, they are passed as an Object array.
+   */
+  public static enum Action {
+    MOVE {
+      /**
+       * Tries to move the player some number of units away in a direction.
+       * This may stop short of the intended distance due to walls or out-of-bounds.
+       */
+      @Override
+      public void run(Player self, GameState gs, Object... params) {
+        // unpack 2 integer arguments: distance and direction
+        GenericUtils.checkParamLength(2, params);
+        int dir = GenericUtils.toInt(params[0]);
+        int dist = GenericUtils.toInt(params[1]);
+        
+        // Move in the specified direction and distance, updating the visited map
+        self.pos = gs.getCollision().tryMovePacked(self.pos, dir, dist, true);
+      }
+    }, 
+    PICKUP {
+      /**
+       * Tries to pick up Desmond. The player may only pick up Desmond
+       * if they are standing on the same tile as Desmond.
+       */
+      @Override
+      public void run(Player self, GameState gs, Object... params) {
+        // ensure no arguments
+        GenericUtils.checkParamLength(0, params);
+        // don't do anything if Desmond is already picked up
+        if (self.holding) {
+          gs.getOut().println("The robot did nothing because it already has Desmond.");
+          return;
+        }
+        // Check if the player is on the same tile as Desmond
+        if (self.pos == gs.getDesmond().pos) {
+          // Robot can pick up Desmond, set relevant flags
+          gs.getOut().println("The robot picked up Desmond.");
+          self.holding = true;
+          gs.getDesmond().setPickedUp(true);
+        }
+        else {
+          gs.getOut().println("The robot tried to pick up Desmond. There was no Desmond to pick up.");
+        }
+      }
+    };
+    
+    /**
+     * Runs a generic action on a player.
+     * @param self the object to run the action on
+     * @param gs the game state that the player belonds to
+     * @param params the parameters. Is an Object array to support different actions having different parameters.
+     */
+    public abstract void run(Player self, GameState gs, Object... params);
+  }
+  
+  /**
+   * Constructs the player, starting at a specific point.
+   * @param startPos sets the start position
+   */
+  public Player(GameState gs) {
+    super();
+
+    this.pos = gs.getCollision().getHomePoint().pack();
+    this.action = null;
+    this.actionParams = null;
+  }
+
+  /**
+   * Sets the player's next action.
+   * @param a the action to invoke
+   * @param params parameters to the action
+   */
+  public void setAction(Action a, Object... params) {
+    // set the action variables
+    this.action = a;
+    this.actionParams = params;
+  }
+  
+  /**
+   * Returns true if the player is holding Desmond, or false otherwise.
+   * @return true if the player is holding Desmond, or false otherwise.
+   */
+  public boolean isHolding() {
+    return holding;
+  }
+
+  /**
+   * Performs the player's current action, then evaluates
+   * the win/lose conditions.
+   * @param gs the game state this player belongs to
+   */
+  @Override
+  public void doTick(GameState gs) {
+    // The home point.
+    int homePoint = gs.getCollision().getHomePoint().pack();
+    
+    // Perform the action, as specified
+    action.run(this, gs, actionParams);
+    
+    // check win condition
+    if (this.holding && this.pos == homePoint) {
+      gs.triggerWin();
+    }
+    
+    // check death condition
+    if (gs.checkEnemiesPacked(this.pos) instanceof Zombie) {
+      gs.triggerGameOver();
+    }
+  }
+  
+  // True if the player is holding Desmond.
+  private boolean holding;
+  // Action to execute on the next frame.
+  private Action action;
+  // Parameters to the action.
+  private Object[] actionParams;
+}
+
+/**
+ * Represents Desmond on the game board.
+ */
+class Desmond extends GameEntity {
+  public Desmond(GameState gs) {
+    super();
+    // move to a generated spawn point, and set picked up as false
+    this.pos = gs.genSpawnPointPacked();
+    this.pickedUp = false;
+  }
+  
+  /**
+   * Returns true if Desmond is currently picked up.
+   * @return true if Desmond is currently picked up, false otherwise
+   */
+  public boolean isPickedUp() {
+    return this.pickedUp;
+  }
+  /**
+   * Sets whether Desmond is picked up or not.
+   * @param value true if Desmond should be picked up, false if not
+   */
+  public void setPickedUp(boolean value) {
+    this.pickedUp = value;
+  }
+  
+  /**
+   * Movement tick for Desmond. Desmond's AI is summarized here:
+   * <ul>
+   * <li>If Desmond is picked up, move him to the player.</li>
+   * <li>Otherwise, he has a 33% chance to move 1 tile in a 
+   * random cardinal direction.</li>
+   * </ul>
+   * @param gs the GameState that Desmond belongs to
+   */
+  @Override
+  public void doTick(GameState gs) {
+    if (pickedUp) {
+      // follow the player if picked up
+      this.pos = gs.getPlayer().getPackedPos();
+    }
+    else {
+      // Configure these variables to get a fraction chance
+      // of Desmond moving
+      final int CHANCE_NUM = 1;
+      final int CHANCE_DEN = 3;
+      
+      // There is a CHANCE_NUM/CHANCE_DEN chance of Desmond moving on each turn.
+      if (Utils.randomChance(gs.getRandom(), CHANCE_NUM, CHANCE_DEN)) {
+        // Move Desmond 1 tile in a random direction
+        this.pos = gs.getCollision().tryMovePacked(this.pos, Utils.randomInt(gs.getRandom(), 0, 4), 1);
+      }
+    }
+  }
+  
+  // True if Desmond is picked up or not.
+  boolean pickedUp;
+}
+
+/**
+ * Represents a zombie on the game board.
+ */
+class Zombie extends GameEntity {
+  /**
+   * Creates and positions a zombie in the game world.
+   * @param gs the game state
+   */
+  public Zombie(GameState gs) {
+    super();
+    // move to a generated spawn point
+    this.pos = gs.genSpawnPointPacked();
+  }
+
+  /**
+   * Movement tick for zombies. Zombie AI is summarized here:
+   * <ul>
+   * <li>Zombies have a 40% chance to move in a random cardinal direction on each frame.</li>
+   * </ul>
+   * @param gs the GameState that this zombie belongs to
+   */
+  @Override
+  public void doTick(GameState gs) {
+    // Zombies move randomly as well
+    final int CHANCE_NUM = 2;
+    final int CHANCE_DEN = 5;
+    if (Utils.randomChance(gs.getRandom(), CHANCE_NUM, CHANCE_DEN)) {
+      // try to move 1 tile in a random direction
+      int nextPos = gs.getCollision().tryMovePacked(this.pos, Utils.randomInt(gs.getRandom(), 0, 4), 1);
+      // stop zombies from walking into each other
+      if (gs.checkEnemiesPacked(nextPos) == null) {
+        gs.moveEnemy(this, nextPos);
+      }
+    }
+  }
+}
+
+// AUDIO SYSTEM
+// ==========================
+
+/**
+ * Utility methods specific to MIDI.
+ */
+class MidiUtils {
+  /**
+   * This class should not be constructed.
+   */
+  private MidiUtils() {}
+  
+  /**
+   * The number of MIDI channels that exist (in general).
+   */
+  public static int NUM_CHANNELS = 16;
+  
+  /**
+   * Value representing the MIDI controller for volume.
+   */
+  public static int CC_VOLUME = 7;
+  
+  /**
+   * Value representing the type of the end-of-track MIDI message.
+   */
+  public static int META_END_OF_TRACK = 0x2F;
+  
+  /**
+   * Creates a MIDI message setting a channel's volume.
+   * @param channel the channel to send through
+   * @param volume the volume to send (0-127)
+   * @return the MIDI message
+   */
+  public static ShortMessage volumeMsg(int channel, int volume) {
+    try {
+      // Create a MIDI message for a control change on volume (CC 7)
+      // if the volume is out of range, an exception is thrown
+      return new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, CC_VOLUME, volume);
+    }
+    catch (InvalidMidiDataException e) {
+      throw new IllegalArgumentException("Invalid MIDI volume value", e);
+    }
+  }
+  
+  /**
+   * Creates a fade-in/out track for the fade sequencer. Specifically, this 
+   * creates a fade lasting 100 ticks. Since the fade sequencer is initialized
+   * at 100 ticks per quarter note, the tempo (measured in microseconds per
+   * quarter note) can easily be used to control the speed at which 
+   * fade-ins/fade-outs occur.
+   * 
+   * @param seq the sequence to add the fade track to
+   * @param channel the channel to fade in or out
+   * @param out if true, produces a fade out. if false, produces a fade in.
+   * @return the track containing the fade-in/fade-out.
+   */
+  public static Track addFadeTrack(Sequence seq, int channel, boolean out) {
+    // the track being written to
+    Track track = seq.createTrack();
+    // used to store the MIDI events in the loop
+    MidiEvent event;
+    
+    if (out) {
+      for (int i = 100; i >= 0; i--) {
+        // Create a MIDI event which sets the volume
+        event = new MidiEvent(volumeMsg(channel, i), i);
+        track.add(event);
+      }
+    }
+    else {
+      for (int i = 0; i <= 100; i++) {
+        // Create a MIDI event which sets the volume
+        event = new MidiEvent(volumeMsg(channel, i), i);
+        track.add(event);
+      }
+    }
+    
+    return track;
+  }
+  
+  /**
+   * Similar to {@link MidiUtils#addFadeTrack()}, but fades in or out all
+   * channels (except for a user-defined list)
+   * 
+   * @param seq the sequence to add the fade track to
+   * @param out if true, produces a fade out. if false, produces a fade in.
+   * @param excluded the channels to exclude from this fade.
+   * @return the track containing the fade-in/fade-out.
+   */
+  public static Track addExclusiveFadeTrack(Sequence seq, boolean out, int... excluded) {
+    // the track being written to
+    Track track = seq.createTrack();
+    // used to store the MIDI events in the loop
+    MidiEvent event;
+    // the channels that will be used
+    int[] usedChannels = new int[MidiUtils.NUM_CHANNELS - excluded.length];
+    // counter for the next index of the used channel array.
+    int usedChannelCounter = 0;
+    // flag checking if the current channel should be used.
+    boolean shouldUseThisChannel;
+    
+    // initialize the "used channels" array
+    for (int i = 0; i < MidiUtils.NUM_CHANNELS; i++) {
+      shouldUseThisChannel = true;
+      for (int j = 0; j < excluded.length; j++) {
+        if (excluded[j] == i) {
+          shouldUseThisChannel = false;
+          break;
+        }
+      }
+      // Add this channel if it hasn't been excluded
+      if (shouldUseThisChannel) {
+        usedChannels[usedChannelCounter] = i;
+        usedChannelCounter++;
+      }
+    }
+    
+    if (out) {
+      // Iterate from 99 to 0
+      for (int t = 99; t >= 0; t--) {
+        for (int c = 0; c < usedChannels.length; c++) {
+          // Create a MIDI event which sets the volume
+          event = new MidiEvent(volumeMsg(usedChannels[c], t), t);
+          track.add(event);
+        }
+      }
+    }
+    else {
+      // Iterate from 1 to 100
+      for (int t = 1; t <= 100; t++) {
+        // Iterate over all 16 MIDI channels
+        for (int c = 0; c < usedChannels.length; c++) {
+          // Create a MIDI event which sets the volume
+          event = new MidiEvent(volumeMsg(usedChannels[c], t), t);
+          track.add(event);
+        }
+      }
+    }
+    
+    return track;
+  }
+  
+  /**
+   * Converts milliseconds to microseconds.
+   * @param millis a duration in milliseconds
+   * @return the same duration, in microseconds
+   */
+  public static int millisecondsToMicroseconds(int millis) {
+    return millis * 1000;
+  }
+  
+  /**
+   * Gets the volume of a particular MIDI channel.
+   * @param synth the synthesizer
+   * @param channel the channel
+   * @return the volume of channel {@code channel} of {@code synth}
+   */
+  public static int getVolume(Synthesizer synth, int channel) {
+    // the MIDI channel to use.
+    MidiChannel midiChan = synth.getChannels()[channel];
+    // Get the value of the "volume" controller
+    return midiChan.getController(CC_VOLUME);
+  }
+  
+  public static void setVolume(Synthesizer synth, int channel, int volume) {
+    // the MIDI channel to use.
+    MidiChannel midiChan = synth.getChannels()[channel];
+    // Set the value of the "volume" controller
+    midiChan.controlChange(CC_VOLUME, volume);
+    
+  }
+}
+
+/**
+ * Music handler for the game.
+ */
+class MusicEngine implements AutoCloseable {
+  
+  // Constants representing timestamps in the MIDI file.
+  private static final long MAIN_LOOPBACK_TICK = 4096;
+  
+  // Constants for MIDI channels in the theme.
+  private static final int HORN_CHANNEL = 0;
+  private static final int TROMBONE_CHANNEL = 1;
+  private static final int TUBA_CHANNEL = 2;
+  private static final int GLOCKENSPIEL_CHANNEL = 3;
+  private static final int SNARE_DRUM_CHANNEL = 9;
+  
+  // Constants for fade times
+  private static final int FADEOUT_TIME = 500;
+  private static final int TRANSITION_TIME = 1000;
+  
+  public MusicEngine() {
+    try {
+      // initialize the MIDI objects
+      this.musicSeqr = initMusicSeqr();
+      this.synth = MidiSystem.getSynthesizer();
+      
+      // open the MIDI objects
+      this.musicSeqr.open();
+      this.synth.open();
+      
+      // Connect the sequencers to the synthesizer
+      Transmitter musicTransmitter = this.musicSeqr.getTransmitter();
+      Receiver synthReceiver = this.synth.getReceiver();
+      musicTransmitter.setReceiver(synthReceiver);
+    }
+    catch (Exception e) {
+      // Honestly, nothing should go wrong here.
+      throw new Error(e);
+    }
+    // binary semaphore for signaling (MIDI runs in a different thread)
+    this.signal = new Semaphore(1, true);
+    // 0 is defaul transition state
+    this.transitionState = 0;
+  }
+  
+  public void start() {
+    MidiChannel[] channels = this.synth.getChannels();
+    // Lock the mutex.
+    try {
+      try {
+        this.signal.acquire();
+      } catch (InterruptedException e) {
+        // This shouldn't happen, but if it does, crash and burn.
+        throw new RuntimeException(e);
+      }
+      // Start the music.
+      this.musicSeqr.setTickPosition(0);
+      this.musicSeqr.start();
+      
+      // Set all channels to default volume (100), except for the ones playing
+      // glockenspiel and snare drum. These are faded in later as you get closer
+      // to Desmond, and then pick him up.
+      for (int i = 0; i < channels.length; i++) {
+        if (i == GLOCKENSPIEL_CHANNEL || i == SNARE_DRUM_CHANNEL) {
+          channels[i].controlChange(MidiUtils.CC_VOLUME, 0);
+        }
+        else {
+          channels[i].controlChange(MidiUtils.CC_VOLUME, 100);
+        }
+      }
+      // Music always starts in transition state 0
+      this.transitionState = 0;
+    }
+    finally {
+      // Unlock the mutex.
+      this.signal.release();
+    }
+    
+    
+  }
+  
+  public void stop() {
+    if (!this.musicSeqr.isRunning()) {
+      return;
+    }
+    
+    // Lock the mutex.
+    try {
+      this.signal.acquire();
+    } catch (InterruptedException e) {
+      // This shouldn't happen, but if it does, crash and burn.
+      throw new RuntimeException(e);
+    }
+    
+    // Safely return if the system has been closed in the meantime
+    if (this.synth == null)
+      return;
+    
+    // List and array of tracks to use respectively
+    List<Integer> channelList = new ArrayList<>();
+    
+    // add the fade out for the channels that are always playing
+    channelList.add(HORN_CHANNEL);
+    channelList.add(TROMBONE_CHANNEL);
+    channelList.add(TUBA_CHANNEL);
+    // check if the glockenspiel needs to be faded out
+    if (MidiUtils.getVolume(synth, GLOCKENSPIEL_CHANNEL) != 0) {
+      channelList.add(GLOCKENSPIEL_CHANNEL);
+    }
+    // check if the snare drum needs to be faded out
+    if (MidiUtils.getVolume(synth, SNARE_DRUM_CHANNEL) != 0) {
+      channelList.add(SNARE_DRUM_CHANNEL);
+    }
+    
+    // Execute the fadeout
+    // The fader thread will unlock the mutex when done
+    new FaderThread(FADEOUT_TIME, null, channelList, () -> {
+      this.musicSeqr.stop();
+    }).start();
+  }
+  
+  /**
+   * Transitions the music between states. The states are:
+   * <ul>
    * <li>0 - no extra parts</li>
    * <li>1 - glockenspiel</li>
    * <li>2 - glockenspiel + snare drum</li>
    * </ul>
    */
-  public void transition(int state) {
-  	// Nothing needs to happen if the state doesn't change.
-  	if (state == this.transitionState) {
-  		return;
-  	}
-    // Lock the mutex.
+  public void transition(int state) {
+  	// Nothing needs to happen if the state doesn't change.
+  	if (state == this.transitionState) {
+  		return;
+  	}
+    // Lock the mutex.
+    try {
+      this.signal.acquire();
+    } catch (InterruptedException e) {
+      // This shouldn't happen, but if it does, crash and burn.
+      throw new RuntimeException(e);
+    }
+    
+    // Safely return if the system has been closed in the meantime
+    if (this.synth == null)
+      return;
+    
+    this.transitionState = state;
+    // True if the glockenspiel and snare drum should be heard 
+    // after the transition, respectively
+    boolean glockenspielEnable = state >= 1;
+    boolean snareDrumEnable = state >= 2;
+    // The current volume of the glockenspiel and snare drum 
+    // channels, respectively
+    int glockenspielVolume = MidiUtils.getVolume(synth, GLOCKENSPIEL_CHANNEL);
+    int snareDrumVolume = MidiUtils.getVolume(synth, SNARE_DRUM_CHANNEL);
+    
+    // List and array of inputs respectively
+    List<Integer> fadeInList = new ArrayList<>();
+    List<Integer> fadeOutList = new ArrayList<>();
+    
+    // Check if the glockenspiel needs to be transitioned
+    if (glockenspielEnable && glockenspielVolume != 100) {
+      fadeInList.add(GLOCKENSPIEL_CHANNEL);
+    }
+    else if (!glockenspielEnable && glockenspielVolume != 0) {
+      fadeOutList.add(GLOCKENSPIEL_CHANNEL);
+      
+    }
+    
+    // Check if the snare drum needs to be transitioned
+    if (snareDrumEnable && snareDrumVolume != 100) {
+      fadeInList.add(SNARE_DRUM_CHANNEL);
+      
+    }
+    else if (!snareDrumEnable && snareDrumVolume != 0) {
+      fadeOutList.add(SNARE_DRUM_CHANNEL);
+    }
+    
+    // If there are no transitions to schedule, exit now
+    if (fadeInList.size() == 0 && fadeOutList.size() == 0) {
+      this.signal.release();
+      return;
+    }
+  
+    // schedule the transitions
+    new FaderThread(TRANSITION_TIME, fadeInList, fadeOutList).start();
+  }
+  
+  /**
+   * Closes the MusicEngine, freeing all resources it uses.
+   */
+  @Override
+  public void close() {
+    // close all MIDI objects
+    this.musicSeqr.close();
+    this.synth.close();
+    
+    // set the synth to null as a sentinel
+    this.synth = null;
+  }
+  
+  /**
+   * Initializes the music sequencer. This sequencer's job is to actually play
+   * the music, and loop it.
+   * @return the music sequencer.
+   * @throws MidiUnavailableException if, for some reason, the sequencer can't be created
+   * @throws InvalidMidiDataException if, for some reason, the MIDI file is invalid
+   * @throws IOException if, for some reason, the MIDI file can't be read
+   */
+  private static Sequencer initMusicSeqr() throws MidiUnavailableException, InvalidMidiDataException, IOException {
+    final Path MIDI_PATH = Paths.get("./main-theme.mid").toRealPath();
+    
+    
+    // returned sequencer
+    Sequencer seqr;
+    // sequence for the sequencer
+    Sequence seq;
+    
+    // load the MIDI file
+    seq = MidiSystem.getSequence(MIDI_PATH.toFile());
+    
+    // setup the sequencer
+    seqr = MidiSystem.getSequencer(false);
+    seqr.setSequence(seq);
+    
+    // Loop runs from the 8th bar to the end of the song
+    // It will always be looped until faded out
+    seqr.setLoopStartPoint(MAIN_LOOPBACK_TICK);
+    seqr.setLoopEndPoint(-1);
+    seqr.setLoopCount(Sequencer.LOOP_CONTINUOUSLY);
+    
+    return seqr;
+  }
+  
+  
+  // Sequencer with actual music.
+  private Sequencer musicSeqr;
+  // Output synthesizer. Doubles as a sentinel when closing.
+  private Synthesizer synth;
+  // Current music state. 
+  // 0 = no glockenspiel or snare drum
+  // 1 = glockenspiel
+  // 2 = glockenspiel and snare drum
+  private int transitionState;
+  // Mutex for synchronization.
+  private Semaphore signal;
+  
+  /**
+   * Thread handling transitions.
+   */
+  private class FaderThread extends Thread {
+    /**
+     * Constructs a new fader thread that fades a specific set of channels.
+     * It will also free this {@link MusicEngine}'s semaphore.
+     * @param fadeTime the time spent fading
+     * @param fadeInChannels the channels to fade in
+     * @param fadeOutChannels the channels to fade out
+     * @param cleanup a function run before releasing the semaphore
+     */
+    public FaderThread(long fadeTime, List<Integer> fadeInChannels, 
+      List<Integer> fadeOutChannels, Runnable cleanup) {
+      super();
+      // stores remainder after dividing fadeTime by 100
+      long remainder;
+      
+      // Save references to mutex, synth, fade lists, and cleanup
+      this.fadeInChannels = fadeInChannels;
+      this.fadeOutChannels = fadeOutChannels;
+      this.cleanup = cleanup;
+      
+      // Convert fade time to ms + ns
+      this.intervalMs = fadeTime / 100;
+      // number of 1/100ths of a millisecond to add on to the sleep length
+      remainder = fadeTime % 100;
+      // 0.01 ms = 10 μs = 10 000 ns
+      this.intervalNs = (int) (remainder * 10000);
+    }
+    
+    /**
+     * Constructs a new fader thread that fades a specific set of channels.
+     * It will also free this {@link MusicEngine}'s semaphore.
+     * @param fadeTime the time spent fading
+     * @param fadeInChannels the channels to fade in
+     * @param fadeOutChannels the channels to fade out
+     */
+    public FaderThread(long fadeTime,
+      List<Integer> fadeInChannels, List<Integer> fadeOutChannels) {
+      this(fadeTime, fadeInChannels, fadeOutChannels, null);
+    }
+    
+    /**
+     * Implements the actual fading. This has to be done in a separate
+     * thread to avoid clogging up the main thread while the transition
+     * occurs.
+     */
+    @Override
+    public void run() {
+      int fadeOutVol;
+      try {
+          
+        // Fade either goes from 1-100 or 99-0
+        for (int vol = 1; vol <= 100; vol++) {
+          fadeOutVol = 100 - vol;
+          try {
+            // sleep based on the computed interval between volume changes
+            Thread.sleep(this.intervalMs, this.intervalNs);
+          } catch (InterruptedException e) {
+            // Stop if interrupted. This still runs the finally block, so
+            // no harm is done
+            return;
+          }
+          
+          // If there are fade in channels, set their volumes
+          if (fadeInChannels != null) {
+            for (Integer fadeIn : fadeInChannels) {
+              MidiUtils.setVolume(MusicEngine.this.synth, fadeIn, vol);
+            }
+          }
+          // Similarly for fade out
+          if (fadeOutChannels != null) {
+            for (Integer fadeOut : fadeOutChannels) {
+              MidiUtils.setVolume(MusicEngine.this.synth, fadeOut, fadeOutVol);
+            }
+          }
+        }
+      }
+      finally {
+        // run any post-fade cleanup
+        if (cleanup != null)
+          cleanup.run();
+        // free the mutex
+        MusicEngine.this.signal.release();
+      }
+    }
+    
+    // List of channels to fade in
+    private List<Integer> fadeInChannels;
+    // List of channels to fade out
+    private List<Integer> fadeOutChannels;
+    
+    // Function to run on cleanup (possibly null, in that case, does nothing).
+    private Runnable cleanup;
+    
+    // Number of milliseconds to wait between volume changes.
+    private long intervalMs;
+    // Number of additional nanoseconds to wait between volume changes.
+    private int intervalNs;
+  }
+  
+}
+
+// LEADERBOARD SYSTEM
+// ==========================
+
+/**
+ * Represents a single score record on the leaderboard.
+ */
+class Score implements Serializable, Comparable<Score> {
+  public static final long serialVersionUID = 1L;
+  
+  public Score(String name, int score) {
+    this.name = name;
+    this.points = score;
+  }
+
+  @Override
+  public int compareTo(Score that) {
+    // compare the points values first
+    int res = Integer.compare(this.points, that.points);
+    if (res != 0)
+      return res;
+    // if the points values are the same, compare the names
+    return this.name.compareTo(that.name);
+  }
+  /**
+   * Returns the name associated with this leaderboard entry.
+   * @return the name associated with this leaderboard entry.
+   */
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * Returns the point score associated with this leaderboard entry.
+   * @return the point score associated with this leaderboard entry.
+   */
+  public int getPoints() {
+    return points;
+  }
+  
+  // name for leaderboard entry
+  private String name;
+  // point score for leaderboard entry
+  private int points;
+}
+
+/**
+ * Class implementing a leaderboard. Also handles
+ * serialization/deserialization from a file.
+ * 
+ * Scores are saved in two files: a snapshot of the whole leaderboard (see
+ * {@link ScoreFile}), and a {@link ScoreLog} next to it that each new score is
+ * added to as soon as it comes in. Once the log gets long, it is merged into a
+ * new snapshot. Loading reads the snapshot, then the log.
+ * 
+ * Scores are kept in a treap (a binary search tree, balanced by giving each
+ * node a random priority) where each node also knows the size of its subtree.
+ * Nodes are never changed once they're in the tree: adding a score copies the
+ * nodes on the path down to it, then swaps in the new root. This means many
+ * sessions can add scores at once without locking, and anyone holding the old
+ * root still sees the leaderboard exactly as it was.
+ * 
+ * Each player's best score is also kept in a hash table, by name. In best-only
+ * mode, this is all the leaderboard keeps: a player's new score replaces their
+ * old one if it's better, and is dropped otherwise, so the leaderboard only
+ * grows with the number of players rather than the number of games.
+ */
+class Leaderboard implements Closeable {
+  
+  /**
+   * Number of scores in the log that causes it to be merged into the snapshot.
+   */
+  private static final int COMPACT_AFTER = 10000;
+  
+  /**
+   * Reads a leaderboard from a file or creates it if
+   * it does not exist. Its log is the same path, plus ".log".
+   * @param p the path to save to
+   * @throws IOException if reading the list fails
+   */
+  public Leaderboard(Path p) throws IOException {
+    this(p, false);
+  }
+  
+  /**
+   * Reads a leaderboard from a file or creates it if
+   * it does not exist. Its log is the same path, plus ".log".
+   * @param p the path to save to
+   * @param bestOnly true to keep only each player's best score
+   * @throws IOException if reading the list fails
+   */
+  public Leaderboard(Path p, boolean bestOnly) throws IOException {
+    // the scores read from the snapshot, then the log
+    List<Score> scores = new ArrayList<>();
+    // the epoch of the last log merged into the snapshot
+    long snapshotEpoch;
+    
+    // set the path
+    this.path = p;
+    this.bestOnly = bestOnly;
+    this.root = new AtomicReference<>();
+    this.bestScores = new ConcurrentHashMap<>();
+    snapshotEpoch = ScoreFile.read(p, scores);
+    // Convert old snapshots to the new format straight away
+    if (ScoreFile.isLegacy(p)) {
+      ScoreFile.write(p, scores, snapshotEpoch);
+    }
+    this.log = new ScoreLog(p.resolveSibling(p.getFileName() + ".log"));
+    // If the program died after saving a snapshot, but before emptying the
+    // log, the log has already been merged, so skip it. It has to be emptied
+    // now, or new scores would be added under that epoch and skipped too.
+    if (log.getEpoch() != snapshotEpoch) {
+      scores.addAll(log.readScores());
+    }
+    else {
+      log.reset();
+    }
+    for (Score score : scores) {
+      bestScores.merge(score.getName(), score, Leaderboard::better);
+    }
+    this.root.set(build(bestOnly ? bestScores.values() : scores));
+  }
+  
+  /**
+   * Adds a score to the leaderboard, and saves it to the log. This takes
+   * O(log n) time, and is safe to call from any thread.
+   * @param score the score to add
+   * @throws UncheckedIOException if the score can't be saved
+   */
+  public void addScore(Score score) {
+    if (bestOnly) {
+      // Only one thread at a time can replace a player's best score,
+      // but other players' scores can still be added alongside it
+      bestScores.compute(score.getName(), (name, best) -> {
+        if (best != null && best.getPoints() <= score.getPoints()) {
+          return best;
+        }
+        replace(best, score);
+        return score;
+      });
+    }
+    else {
+      replace(null, score);
+      bestScores.merge(score.getName(), score, Leaderboard::better);
+    }
+    
+    // Every score is logged, even if it isn't kept: the log is
+    // emptied often enough that it doesn't matter
+    try {
+      log.append(score);
+      if (log.size() >= COMPACT_AFTER) {
+        compact();
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+  
+  /**
+   * Returns the number of scores on the leaderboard.
+   * @return the number of scores
+   */
+  public int size() {
+    return Node.size(root.get());
+  }
+  
+  /**
+   * Returns a player's best score. This takes O(1) time.
+   * @param name the player's name
+   * @return their best score, or null if they have none
+   */
+  public Score getBest(String name) {
+    return bestScores.get(name);
+  }
+  
+  /**
+   * Returns true if only each player's best score is kept.
+   * @return true if only each player's best score is kept
+   */
+  public boolean isBestOnly() {
+    return bestOnly;
+  }
+  
+  /**
+   * Returns all the scores on the leaderboard, best (lowest) first.
+   * This takes O(1) time: the list is a view of the leaderboard as it is now,
+   * and doesn't change when scores are added later.
+   * @return the scores, best first
+   */
+  public List<Score> getAllScores() {
+    return new Snapshot(root.get());
+  }
+  
+  /**
+   * Returns the best scores on the leaderboard. This takes O(log n + k) time.
+   * @param k the most scores to return
+   * @return up to {@code k} scores, best first
+   */
+  public List<Score> getTopScores(int k) {
+    return getScores(0, k);
+  }
+  
+  /**
+   * Returns a run of scores from the leaderboard, such as one page of it.
+   * This takes O(log n + count) time, no matter where the run starts.
+   * @param from the position of the first score (0 is the best)
+   * @param count the most scores to return
+   * @return up to {@code count} scores, best first
+   */
+  public List<Score> getScores(int from, int count) {
+    // the tree, as it is now
+    Node node = root.get();
+    // the scores found so far
+    List<Score> res = new ArrayList<>(Math.max(0, Math.min(count, Node.size(node) - from)));
+    // the nodes whose scores are still to come, next one on top
+    ArrayDeque<Node> pending = new ArrayDeque<>();
+    
+    if (from < 0 || count < 0) {
+      String errorMessage = String.format("Invalid range of %d scores from %d", count, from);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    // Find the first score, remembering the nodes that come after it on the way down
+    while (node != null) {
+      if (from < Node.size(node.left)) {
+        pending.push(node);
+        node = node.left;
+      }
+      else if (from == Node.size(node.left)) {
+        pending.push(node);
+        break;
+      }
+      else {
+        from -= Node.size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    // Then carry on in order
+    while (res.size() < count && !pending.isEmpty()) {
+      node = pending.pop();
+      res.add(node.score);
+      for (Node next = node.right; next != null; next = next.left) {
+        pending.push(next);
+      }
+    }
+    return res;
+  }
+  
+  /**
+   * Returns where a score is (or would be) on the leaderboard. This takes
+   * O(log n) time.
+   * @param score the score
+   * @return 1 plus the number of scores that are better
+   */
+  public int getRank(Score score) {
+    // the node being looked at
+    Node node = root.get();
+    // the number of better scores found so far
+    int better = 0;
+    
+    while (node != null) {
+      if (score.compareTo(node.score) <= 0) {
+        node = node.left;
+      }
+      else {
+        better += Node.size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return better + 1;
+  }
+  
+  /**
+   * Swaps a score on the leaderboard for another one.
+   * @param old the score to remove, or null to only add one
+   * @param score the score to add
+   */
+  private void replace(Score old, Score score) {
+    // the tree before and after swapping the score
+    Node prev, next;
+    // the new node's priority
+    int priority = ThreadLocalRandom.current().nextInt();
+    
+    // If another thread got in first, swap it in their tree instead
+    do {
+      prev = root.get();
+      next = (old == null) ? prev : remove(prev, old);
+      next = insert(next, score, priority);
+    } while (!root.compareAndSet(prev, next));
+  }
+  
+  /**
+   * Returns the better of two scores (the first, if they're equal).
+   * @param a a score
+   * @param b another score
+   * @return the one with fewer points
+   */
+  private static Score better(Score a, Score b) {
+    return (b.getPoints() < a.getPoints()) ? b : a;
+  }
+  
+  /**
+   * Adds a score to a tree, without changing it.
+   * @param node the root of the tree
+   * @param score the score to add
+   * @param priority the new node's priority
+   * @return the root of the new tree
+   */
+  private static Node insert(Node node, Score score, int priority) {
+    // the two halves of the tree, if the new node goes above this one
+    Node[] halves;
+    
+    if (node == null) {
+      return new Node(score, priority, null, null);
+    }
+    // Higher priorities go above lower ones
+    if (priority > node.priority) {
+      halves = split(node, score);
+      return new Node(score, priority, halves[0], halves[1]);
+    }
+    // Equal scores go after the ones already there
+    if (score.compareTo(node.score) < 0) {
+      return new Node(node.score, node.priority, insert(node.left, score, priority), node.right);
+    }
+    else {
+      return new Node(node.score, node.priority, node.left, insert(node.right, score, priority));
+    }
+  }
+  
+  /**
+   * Removes a score from a tree, without changing it.
+   * @param node the root of the tree
+   * @param score the score to remove (the same object that was added)
+   * @return the root of the new tree
+   */
+  private static Node remove(Node node, Score score) {
+    // where the score is compared to this node's
+    int cmp;
+    
+    if (node == null) {
+      return null;
+    }
+    if (node.score == score) {
+      return join(node.left, node.right);
+    }
+    cmp = score.compareTo(node.score);
+    // Equal scores could be on either side of each other
+    if (cmp < 0) {
+      return new Node(node.score, node.priority, remove(node.left, score), node.right);
+    }
+    else if (cmp > 0) {
+      return new Node(node.score, node.priority, node.left, remove(node.right, score));
+    }
+    Node left = remove(node.left, score);
+    if (left != node.left) {
+      return new Node(node.score, node.priority, left, node.right);
+    }
+    Node right = remove(node.right, score);
+    return (right == node.right) ? node : new Node(node.score, node.priority, node.left, right);
+  }
+  
+  /**
+   * Joins two trees, where every score in the first goes before every score
+   * in the second, without changing them.
+   * @param left the root of the first tree
+   * @param right the root of the second tree
+   * @return the root of the new tree
+   */
+  private static Node join(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      return new Node(left.score, left.priority, left.left, join(left.right, right));
+    }
+    else {
+      return new Node(right.score, right.priority, join(left, right.left), right.right);
+    }
+  }
+  
+  /**
+   * Splits a tree into the scores that would go before a score,
+   * and the ones after it, without changing it.
+   * @param node the root of the tree
+   * @param score the score to split at
+   * @return the roots of the two trees (scores up to {@code score}, then the rest)
+   */
+  private static Node[] split(Node node, Score score) {
+    // the halves of one of this node's subtrees
+    Node[] halves;
+    
+    if (node == null) {
+      return new Node[] { null, null };
+    }
+    if (node.score.compareTo(score) <= 0) {
+      halves = split(node.right, score);
+      halves[0] = new Node(node.score, node.priority, node.left, halves[0]);
+    }
+    else {
+      halves = split(node.left, score);
+      halves[1] = new Node(node.score, node.priority, halves[1], node.right);
+    }
+    return halves;
+  }
+  
+  /**
+   * Merges the log into a new snapshot, then empties it. The snapshot is
+   * made from what's on disk rather than what's in memory, so it has exactly
+   * the scores in the log, even while other threads are adding more.
+   * @throws IOException if reading or writing fails
+   */
+  private void compact() throws IOException {
+    // the scores on disk
+    List<Score> scores = new ArrayList<>();
+    
+    // Hold the log, so that nothing is added to it part-way through
+    synchronized (log) {
+      if (ScoreFile.read(path, scores) != log.getEpoch()) {
+        scores.addAll(log.readScores());
+      }
+      if (bestOnly) {
+        scores = bestPerPlayer(scores);
+      }
+      ScoreFile.write(path, scores, log.getEpoch());
+      log.reset();
+    }
+  }
+  
+  /**
+   * Picks out each player's best score.
+   * @param scores the scores, in any order
+   * @return the best score for each name in {@code scores}
+   */
+  private static List<Score> bestPerPlayer(List<Score> scores) {
+    // each name's best score so far
+    Map<String, Score> best = new HashMap<>();
+    
+    for (Score score : scores) {
+      best.merge(score.getName(), score, Leaderboard::better);
+    }
+    return new ArrayList<>(best.values());
+  }
+  
+  /**
+   * Builds a tree out of scores in O(n) time, rather than adding them one by one.
+   * @param scores the scores, in any order
+   * @return the root of the tree
+   */
+  private static Node build(Collection<Score> scores) {
+    // the scores, best first
+    List<Score> sorted = new ArrayList<>(scores);
+    // the right-hand edge of the tree built so far, bottom first
+    ArrayDeque<Node> edge = new ArrayDeque<>();
+    // the node being added, and the last node taken off the edge
+    Node node, last;
+    
+    sorted.sort(null);
+    // Each score is the rightmost one so far, so it goes on the right-hand edge,
+    // above any nodes there with lower priorities
+    for (Score score : sorted) {
+      node = new Node(score, ThreadLocalRandom.current().nextInt(), null, null);
+      last = null;
+      while (!edge.isEmpty() && edge.peek().priority < node.priority) {
+        last = edge.pop();
+      }
+      node.left = last;
+      if (!edge.isEmpty()) {
+        edge.peek().right = node;
+      }
+      edge.push(node);
+    }
+    
+    node = edge.peekLast();
+    Node.fixSize(node);
+    return node;
+  }
+  
+  // Root of the tree of scores (null if there are none).
+  private AtomicReference<Node> root;
+  // Path to the snapshot.
+  private Path path;
+  // Scores added since the last snapshot.
+  private ScoreLog log;
+  // Each player's best score, by name.
+  private ConcurrentHashMap<String, Score> bestScores;
+  // True if only each player's best score is kept.
+  private boolean bestOnly;
+
+  @Override
+  public void close() throws IOException {
+    // Leave a fresh snapshot and an empty log behind
+    compact();
+    log.close();
+  }
+  
+  /**
+   * A node in the tree of scores. Nodes in a tree that has been
+   * shared are never changed.
+   */
+  private static class Node {
+    /**
+     * Creates a node.
+     * @param score the score
+     * @param priority the priority
+     * @param left the root of the scores before this one
+     * @param right the root of the scores after this one
+     */
+    Node(Score score, int priority, Node left, Node right) {
+      this.score = score;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.size = size(left) + size(right) + 1;
+    }
+    
+    /**
+     * Returns the number of scores in a tree.
+     * @param node the root of the tree, or null
+     * @return the number of scores
+     */
+    static int size(Node node) {
+      return (node == null) ? 0 : node.size;
+    }
+    
+    /**
+     * Works out the sizes of a tree that was put together
+     * by changing its nodes' children.
+     * @param node the root of the tree
+     * @return the number of scores
+     */
+    static int fixSize(Node node) {
+      if (node == null) {
+        return 0;
+      }
+      node.size = fixSize(node.left) + fixSize(node.right) + 1;
+      return node.size;
+    }
+    
+    // The score.
+    final Score score;
+    // Priority: every node's priority is at least its children's.
+    final int priority;
+    // Scores before and after this one (only changed while building).
+    Node left, right;
+    // Number of scores in this subtree (only changed while building).
+    int size;
+  }
+  
+  /**
+   * Read-only list of the scores in a tree, best first.
+   */
+  private static class Snapshot extends AbstractList<Score> {
+    /**
+     * Creates a list of a tree's scores.
+     * @param root the root of the tree
+     */
+    Snapshot(Node root) {
+      this.root = root;
+    }
+    
+    /**
+     * Returns a score by its position, in O(log n) time.
+     */
+    @Override
+    public Score get(int index) {
+      // the node being looked at
+      Node node = root;
+      
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException(String.format("Index %d out of range for %d scores", index, size()));
+      }
+      while (true) {
+        if (index < Node.size(node.left)) {
+          node = node.left;
+        }
+        else if (index == Node.size(node.left)) {
+          return node.score;
+        }
+        else {
+          index -= Node.size(node.left) + 1;
+          node = node.right;
+        }
+      }
+    }
+    
+    @Override
+    public int size() {
+      return Node.size(root);
+    }
+    
+    /**
+     * Goes through the scores in order, in O(n) time overall.
+     */
+    @Override
+    public Iterator<Score> iterator() {
+      // the nodes whose scores are still to come, next one on top
+      final ArrayDeque<Node> pending = new ArrayDeque<>();
+      for (Node node = root; node != null; node = node.left) {
+        pending.push(node);
+      }
+      return new Iterator<Score>() {
+        @Override
+        public boolean hasNext() {
+          return !pending.isEmpty();
+        }
+        
+        @Override
+        public Score next() {
+          if (pending.isEmpty()) {
+            throw new NoSuchElementException();
+          }
+          Node res = pending.pop();
+          for (Node node = res.right; node != null; node = node.left) {
+            pending.push(node);
+          }
+          return res.score;
+        }
+      };
+    }
+    
+    // Root of the tree.
+    private final Node root;
+  }
+}
+
+/**
+ * Append-only log of scores added to a {@link Leaderboard} since it was last
+ * saved in full. Each score is written (and flushed to disk) as it is added,
+ * so a crash loses nothing.
+ * 
+ * The file starts with a header: "SDLG", then a random epoch number that
+ * changes whenever the log is emptied. Then come the records, each holding
+ * the name's length and UTF-8 bytes, the points, and a CRC-32 of all that.
+ * A record that was only partly written when the program died fails its check,
+ * and it and anything after it are cut off when the log is next opened.
+ */
+class ScoreLog implements Closeable {
+  /**
+   * First 4 bytes of every log file ("SDLG").
+   */
+  private static final int MAGIC = 0x53444C47;
+  /**
+   * Size of the header, in bytes.
+   */
+  private static final int HEADER_SIZE = 12;
+  
+  /**
+   * Opens a log, creating it if it doesn't exist.
+   * @param path the path to the log
+   * @throws IOException if the log can't be opened, or isn't a log
+   */
+  public ScoreLog(Path path) throws IOException {
+    // the header
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, 
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (channel.size() < HEADER_SIZE) {
+      // New (or never finished being created)
+      this.reset();
+      return;
+    }
+    channel.read(header, 0);
+    header.flip();
+    if (header.getInt() != MAGIC) {
+      channel.close();
+      String errorMessage = String.format("%s is not a score log", path);
+      throw new IOException(errorMessage);
+    }
+    this.epoch = header.getLong();
+    // Count the records, cutting off any that weren't finished
+    this.count = this.readScores().size();
+  }
+  
+  /**
+   * Returns the log's epoch number. It changes every time the log is emptied.
+   * @return the epoch number
+   */
+  public long getEpoch() {
+    return epoch;
+  }
+  
+  /**
+   * Returns the number of scores in the log.
+   * @return the number of scores
+   */
+  public synchronized int size() {
+    return count;
+  }
+  
+  /**
+   * Reads the scores in the log. If the end of the log is damaged, it is cut off.
+   * @return the scores, in the order they were added
+   * @throws IOException if reading fails
+   */
+  public synchronized List<Score> readScores() throws IOException {
+    // the scores read
+    List<Score> res = new ArrayList<>();
+    // the whole log, past the header
+    ByteBuffer buf = ByteBuffer.allocate((int) (channel.size() - HEADER_SIZE));
+    // where the current record starts, and its name's length
+    int start, nameLength;
+    // where the last good record ends
+    int good = 0;
+    // the current record's name and points
+    String name;
+    int points;
+    // checks each record
+    CRC32 crc = new CRC32();
+    
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, HEADER_SIZE + buf.position()) < 0) {
+        break;
+      }
+    }
+    buf.flip();
+    while (buf.remaining() >= 4) {
+      start = buf.position();
+      nameLength = buf.getInt();
+      if (nameLength < 0 || buf.remaining() < (long) nameLength + 8) {
+        break;
+      }
+      buf.position(start + 4 + nameLength + 4);
+      crc.reset();
+      crc.update(buf.array(), start, nameLength + 8);
+      if (buf.getInt() != (int) crc.getValue()) {
+        break;
+      }
+      name = new String(buf.array(), start + 4, nameLength, StandardCharsets.UTF_8);
+      points = buf.getInt(start + 4 + nameLength);
+      res.add(new Score(name, points));
+      good = buf.position();
+    }
+    // Anything after the last good record was left over from a crash
+    if (good < buf.limit()) {
+      channel.truncate(HEADER_SIZE + good);
+    }
+    return res;
+  }
+  
+  /**
+   * Adds a score to the end of the log, and waits for it to reach the disk.
+   * @param score the score
+   * @throws IOException if writing fails
+   */
+  public synchronized void append(Score score) throws IOException {
+    // the name's bytes
+    byte[] name = score.getName().getBytes(StandardCharsets.UTF_8);
+    // the record
+    ByteBuffer record = ByteBuffer.allocate(name.length + 12);
+    // checks the record
+    CRC32 crc = new CRC32();
+    
+    record.putInt(name.length).put(name).putInt(score.getPoints());
+    crc.update(record.array(), 0, record.position());
+    record.putInt((int) crc.getValue());
+    record.flip();
+    while (record.hasRemaining()) {
+      channel.write(record, channel.size());
+    }
+    channel.force(false);
+    count++;
+  }
+  
+  /**
+   * Empties the log, giving it a new epoch number.
+   * @throws IOException if writing fails
+   */
+  public synchronized void reset() throws IOException {
+    // the new header
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    
+    // Epoch 0 means "no log", so don't use it
+    do {
+      epoch = ThreadLocalRandom.current().nextLong();
+    } while (epoch == 0);
+    header.putInt(MAGIC).putLong(epoch);
+    header.flip();
+    channel.truncate(0);
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+    channel.force(true);
+    count = 0;
+  }
+  
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+  
+  // the log file
+  private FileChannel channel;
+  // the log's epoch number
+  private long epoch;
+  // the number of scores in the log
+  private int count;
+}
+
+/**
+ * Reads and writes leaderboard snapshots (see {@link Leaderboard}).
+ * A snapshot has a header:
+ * <pre>
+ * bytes 0-3:   "SDLB"
+ * bytes 4-7:   format version (1)
+ * bytes 8-15:  epoch of the last log merged into it (see {@link ScoreLog})
+ * bytes 16-19: number of scores
+ * </pre>
+ * followed by the scores, best first. Each score is its name's length as a
+ * varint, the name in UTF-8, then the points as a zigzag varint. The file ends
+ * with a CRC-32 of everything before it. Everything is little-endian.
+ * 
+ * Snapshots used to be a Java-serialized {@code ArrayList} of scores. These can
+ * still be read, but only {@code ArrayList} and {@link Score} are allowed in them,
+ * so a doctored file can't make the game load anything else.
+ */
+class ScoreFile {
+  // "SDLB", read as a little-endian int
+  private static final int MAGIC = 0x424C4453;
+  // Current version of the format
+  private static final int VERSION = 1;
+  // Size of the header, in bytes
+  private static final int HEADER_SIZE = 20;
+  // Size of the CRC at the end, in bytes
+  private static final int TRAILER_SIZE = 4;
+  // First 2 bytes of a Java-serialized file
+  private static final int JAVA_MAGIC = 0xACED;
+  // Size of the buffer used for writing
+  private static final int WRITE_BUFFER_SIZE = 1 << 16;
+  // Most bytes a varint can take up
+  private static final int MAX_VARINT_SIZE = 5;
+  
+  /**
+   * This class should not be constructed.
+   */
+  private ScoreFile() {}
+  
+  /**
+   * Checks if a snapshot is in the old, Java-serialized format.
+   * @param p the path to the snapshot
+   * @return true if the snapshot exists and is in the old format
+   * @throws IOException if the file can't be read
+   */
+  public static boolean isLegacy(Path p) throws IOException {
+    // the first 2 bytes
+    ByteBuffer start = ByteBuffer.allocate(2);
+    
+    if (!Files.exists(p)) {
+      return false;
+    }
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      while (start.hasRemaining() && channel.read(start) >= 0) {
+        // keep reading
+      }
+    }
+    return !start.hasRemaining() && (start.getShort(0) & 0xFFFF) == JAVA_MAGIC;
+  }
+  
+  /**
+   * Reads a snapshot in either format, if there is one.
+   * @param p the path to the snapshot
+   * @param scores the list to add the scores to
+   * @return the epoch of the last log merged into it, or 0 if there isn't one
+   * @throws IOException if the file can't be read or is not a valid snapshot
+   */
+  public static long read(Path p, List<Score> scores) throws IOException {
+    // the mapped file
+    ByteBuffer buffer;
+    // header fields
+    long epoch;
+    int count;
+    // checks the file, against the CRC stored at the end
+    CRC32 crc = new CRC32();
+    int storedCrc;
+    // holds each name's bytes
+    byte[] name = new byte[64];
+    // the current name's length
+    int nameLength;
+    
+    if (!Files.exists(p)) {
+      return 0;
+    }
+    if (isLegacy(p)) {
+      return readLegacy(p, scores);
+    }
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE + TRAILER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Not a leaderboard file: " + p);
+      }
+      // The mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a leaderboard file: " + p);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException(String.format("Unsupported leaderboard file version %d", buffer.getInt(4)));
+    }
+    // Check the whole file before trusting anything in it
+    storedCrc = buffer.getInt(buffer.capacity() - TRAILER_SIZE);
+    buffer.limit(buffer.capacity() - TRAILER_SIZE);
+    crc.update(buffer);
+    if (storedCrc != (int) crc.getValue()) {
+      throw new IOException("Leaderboard file is corrupted: " + p);
+    }
+    epoch = buffer.getLong(8);
+    count = buffer.getInt(16);
+    
+    buffer.position(HEADER_SIZE);
+    try {
+      if (scores instanceof ArrayList) {
+        ((ArrayList<?>) scores).ensureCapacity(scores.size() + count);
+      }
+      for (int i = 0; i < count; i++) {
+        nameLength = getVarint(buffer);
+        if (nameLength > name.length) {
+          name = new byte[Math.max(nameLength, name.length * 2)];
+        }
+        buffer.get(name, 0, nameLength);
+        scores.add(new Score(new String(name, 0, nameLength, StandardCharsets.UTF_8), 
+          zigzagDecode(getVarint(buffer))));
+      }
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("Leaderboard file is truncated: " + p, e);
+    }
+    return epoch;
+  }
+  
+  /**
+   * Writes a snapshot, replacing it if it exists. It is written to a temporary
+   * file first, then moved into place, so a crash can't leave a half-written
+   * snapshot behind.
+   * @param p the path to write to
+   * @param scores the scores, in any order
+   * @param epoch the epoch of the last log merged into it
+   * @throws IOException if the file can't be written
+   */
+  public static void write(Path p, List<Score> scores, long epoch) throws IOException {
+    // the file to write to first
+    Path temp = p.resolveSibling(p.getFileName() + ".tmp");
+    // the scores, best first
+    List<Score> sorted = new ArrayList<>(scores);
+    // buffer holding data to be written
+    ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // checks the file
+    CRC32 crc = new CRC32();
+    // the current name's bytes
+    byte[] name;
+    
+    sorted.sort(null);
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, 
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      buffer.putInt(MAGIC).putInt(VERSION).putLong(epoch).putInt(sorted.size());
+      for (Score score : sorted) {
+        name = score.getName().getBytes(StandardCharsets.UTF_8);
+        if (buffer.remaining() < MAX_VARINT_SIZE) {
+          writeFully(channel, buffer, crc);
+        }
+        putVarint(buffer, name.length);
+        // Long names are split across several writes
+        for (int offset = 0, length; offset < name.length; offset += length) {
+          if (!buffer.hasRemaining()) {
+            writeFully(channel, buffer, crc);
+          }
+          length = Math.min(buffer.remaining(), name.length - offset);
+          buffer.put(name, offset, length);
+        }
+        if (buffer.remaining() < MAX_VARINT_SIZE) {
+          writeFully(channel, buffer, crc);
+        }
+        putVarint(buffer, zigzagEncode(score.getPoints()));
+      }
+      writeFully(channel, buffer, crc);
+      buffer.putInt((int) crc.getValue());
+      writeFully(channel, buffer, crc);
+      channel.force(true);
+    }
+    Files.move(temp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Reads a snapshot in the old, Java-serialized format.
+   * @param p the path to the snapshot
+   * @param scores the list to add the scores to
+   * @return the epoch of the last log merged into it, or 0 if there isn't one
+   * @throws IOException if the file can't be read or is not a valid snapshot
+   */
+  @SuppressWarnings("unchecked")
+  private static long readLegacy(Path p, List<Score> scores) throws IOException {
+    try (ObjectInputStream in = new LegacyInputStream(
+      new BufferedInputStream(Files.newInputStream(p, StandardOpenOption.READ)))) {
+      Object o = in.readObject();
+      if (o.getClass() != ArrayList.class) {
+        throw new IOException("Unexpected object in data file!");
+      }
+      scores.addAll((ArrayList<Score>) o);
+      // Files from before there was a log end here
+      try {
+        return in.readLong();
+      }
+      catch (EOFException e) {
+        return 0;
+      }
+    }
+    catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+  
+  /**
+   * Adds a varint to a buffer: 7 bits per byte, low bits first, with the
+   * top bit set on every byte but the last.
+   * @param buffer the buffer
+   * @param value the value, treated as unsigned
+   */
+  static void putVarint(ByteBuffer buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+  
+  /**
+   * Reads a varint from a buffer.
+   * @param buffer the buffer
+   * @return the value
+   * @throws IOException if the varint is too long
+   */
+  static int getVarint(ByteBuffer buffer) throws IOException {
+    // the value so far, and the current byte
+    int value = 0, b;
+    
+    for (int shift = 0; shift < 35; shift += 7) {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid varint in leaderboard file");
+  }
+  
+  /**
+   * Maps signed values to unsigned ones, so that small negative numbers
+   * stay small: 0, -1, 1, -2... become 0, 1, 2, 3...
+   * @param value the signed value
+   * @return the unsigned value
+   */
+  static int zigzagEncode(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+  
+  /**
+   * Undoes {@link ScoreFile#zigzagEncode(int)}.
+   * @param value the unsigned value
+   * @return the signed value
+   */
+  static int zigzagDecode(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  /**
+   * Writes out everything in the write buffer, adding it to a CRC, and empties it.
+   * @param channel the channel to write to
+   * @param buffer the buffer
+   * @param crc the CRC to add to
+   * @throws IOException if writing fails
+   */
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+    buffer.flip();
+    crc.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+  
+  /**
+   * Object stream that only reads the classes found in old snapshots.
+   */
+  private static class LegacyInputStream extends ObjectInputStream {
+    /**
+     * Creates a stream reading from another stream.
+     * @param in the stream to read from
+     * @throws IOException if the stream header can't be read
+     */
+    LegacyInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+    
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (!desc.getName().equals(ArrayList.class.getName()) && !desc.getName().equals(Score.class.getName())) {
+        throw new InvalidClassException(desc.getName(), "Not allowed in a leaderboard file");
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
+
+// RENDERING
+// ==========================
+
+/**
+ * Draws frames on an ANSI terminal, only redrawing the parts that changed
+ * since the last frame.
+ * 
+ * The first frame clears the screen and is drawn in full at the top. Everything
+ * below it (the prompt, and anything commands print) is put in a scrolling
+ * region, so that it can't push the frame up and out of place. After that,
+ * each frame is compared with the last one line by line, and the cursor is
+ * only moved to the runs of characters that changed. Output is proportional
+ * to how much changed, rather than the size of the frame.
+ */
+class AnsiRenderer {
+  // Starts an ANSI control sequence
+  private static final String CSI = "\u001b[";
+  // Saves and restores the cursor position
+  private static final String SAVE_CURSOR = "\u001b7", RESTORE_CURSOR = "\u001b8";
+  // Runs of changed characters separated by at most this many unchanged ones
+  // are merged, since redrawing those is shorter than another cursor move
+  private static final int MAX_GAP = 6;
+  
+  /**
+   * Constructs a renderer. The first frame is drawn in full.
+   */
+  public AnsiRenderer() {
+    this.prev = new StringBuilder();
+    this.output = new StringBuilder();
+    this.hasPrev = false;
+  }
+  
+  /**
+   * Makes the next frame clear the screen and draw in full.
+   */
+  public void reset() {
+    hasPrev = false;
+  }
+  
+  /**
+   * Draws a frame, printing it in one write.
+   * @param frame the frame's text. Every line must end with a newline.
+   * @param out the stream to print to
+   */
+  public void draw(CharSequence frame, PrintStream out) {
+    // number of lines in the frame
+    int lines = countLines(frame);
+    
+    output.setLength(0);
+    // The frame can only be compared line by line if it has the same shape
+    if (!hasPrev || lines != countLines(prev)) {
+      drawFull(frame, lines);
+    }
+    else {
+      drawChanges(frame);
+    }
+    prev.setLength(0);
+    prev.append(frame);
+    hasPrev = true;
+    out.append(output);
+    out.flush();
+  }
+  
+  /**
+   * Puts the terminal back to normal (no scrolling region), leaving the cursor
+   * where it is. The next frame will be drawn in full.
+   * @param out the stream to print to
+   */
+  public void finish(PrintStream out) {
+    // removing the scrolling region moves the cursor, so save it around that
+    out.print(SAVE_CURSOR + CSI + "r" + RESTORE_CURSOR);
+    out.flush();
+    hasPrev = false;
+  }
+  
+  /**
+   * Clears the screen and draws a whole frame, then sets up the
+   * scrolling region below it.
+   * @param frame the frame's text
+   * @param lines the number of lines in the frame
+   */
+  private void drawFull(CharSequence frame, int lines) {
+    // remove any old scrolling region, go to the top and clear the screen
+    output.append(CSI).append("r").append(CSI).append("H").append(CSI).append("2J");
+    output.append(frame);
+    // scroll everything below the frame, then go back there
+    // (setting the region moves the cursor to the top)
+    output.append(CSI).append(lines + 1).append(";r");
+    output.append(CSI).append(lines + 1).append(";1H");
+  }
+  
+  /**
+   * Draws only the parts of a frame that differ from the last one.
+   * @param frame the frame's text (with the same number of lines as the last one)
+   */
+  private void drawChanges(CharSequence frame) {
+    // start of the current line in the new and old frames
+    int newStart = 0, oldStart = 0;
+    // length of the current line in the new and old frames
+    int newLength, oldLength;
+    // start and end of the current run of changes
+    int runStart, runEnd;
+    // column the cursor will be on after the last thing drawn, or -1 if not on this line
+    int cursorCol;
+    
+    output.append(SAVE_CURSOR);
+    for (int row = 0; newStart < frame.length(); row++) {
+      newLength = lineLength(frame, newStart);
+      oldLength = lineLength(prev, oldStart);
+      cursorCol = -1;
+      
+      for (int col = 0; col < newLength; col++) {
+        if (col < oldLength && frame.charAt(newStart + col) == prev.charAt(oldStart + col)) {
+          continue;
+        }
+        // Found a change: extend the run until there's a long enough unchanged gap
+        runStart = col;
+        runEnd = col + 1;
+        for (col = runEnd; col < newLength && col - runEnd <= MAX_GAP; col++) {
+          if (col >= oldLength || frame.charAt(newStart + col) != prev.charAt(oldStart + col)) {
+            runEnd = col + 1;
+          }
+        }
+        moveTo(row, runStart);
+        output.append(frame, newStart + runStart, newStart + runEnd);
+        cursorCol = runEnd;
+        col = runEnd;
+      }
+      // If the line got shorter, clear the rest of it
+      if (newLength < oldLength) {
+        if (cursorCol != newLength) {
+          moveTo(row, newLength);
+        }
+        output.append(CSI).append("K");
+      }
+      // skip the newlines
+      newStart += newLength + 1;
+      oldStart += oldLength + 1;
+    }
+    output.append(RESTORE_CURSOR);
+  }
+  
+  /**
+   * Adds a cursor move to the output.
+   * @param row the row, counting from 0
+   * @param col the column, counting from 0
+   */
+  private void moveTo(int row, int col) {
+    // ANSI counts from 1
+    output.append(CSI).append(row + 1).append(';').append(col + 1).append('H');
+  }
+  
+  /**
+   * Returns the length of a line, not counting the newline.
+   * @param text the text
+   * @param start where the line starts
+   * @return the length of the line
+   */
+  private static int lineLength(CharSequence text, int start) {
+    // end of the line
+    int end = start;
+    
+    while (end < text.length() && text.charAt(end) != '\n') {
+      end++;
+    }
+    return end - start;
+  }
+  
+  /**
+   * Counts the lines in some text.
+   * @param text the text
+   * @return the number of newlines
+   */
+  private static int countLines(CharSequence text) {
+    // lines found so far
+    int lines = 0;
+    
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') {
+        lines++;
+      }
+    }
+    return lines;
+  }
+  
+  // The last frame drawn.
+  private StringBuilder prev;
+  // True if prev holds a frame that is on the screen.
+  private boolean hasPrev;
+  // Output being built, reused between frames.
+  private StringBuilder output;
+}
+
+// MAIN GAME STATE CLASS
+// ==========================
+
+/**
+ * Class representing the global game state of "Save Desmond".
+ */
+class GameState {
+  /**
+   * Distance that the player can see.
+   */
+  private static final int SIGHT_DIST = 2;
+  /**
+   * Distance where the game will notify you about Desmond's position.
+   */
+  private static final int WARN_DIST = 5;
+  /**
+   * Width and height of the map grid.
+   */
+  private static final int MAP_SIZE = 20;
+  /**
+   * Largest part of the map shown at once, unless changed.
+   */
+  private static final int DEFAULT_VIEW_WIDTH = 40, DEFAULT_VIEW_HEIGHT = 20;
+  /**
+   * Map file to play on instead of the built-in map, if it exists.
+   */
+  static final Path MAP_PATH = Paths.get("./map.bin");
+  /**
+   * Grid distance from the home point that should be left clear
+   * when spawning.
+   */
+  private static final int CLEAR_ZONE_SIZE = 3;
+  /**
+   * Number of zombies spawned per game, unless changed.
+   */
+  private static final int DEFAULT_NUM_ZOMBIES = 15;
+  /**
+   * Shortest and longest distance the robot can move in one turn.
+   */
+  private static final int MIN_MOVE_DIST = 1, MAX_MOVE_DIST = 3;
+  /**
+   * Parameters for every move the robot can make (direction, then distance),
+   * shared so that commands don't allocate anything. There's a row of
+   * distances for each direction.
+   */
+  private static final Object[][] MOVE_PARAMS = {
+    {0, 1}, {0, 2}, {0, 3},
+    {1, 1}, {1, 2}, {1, 3},
+    {2, 1}, {2, 2}, {2, 3},
+    {3, 1}, {3, 2}, {3, 3},
+  };
+  /**
+   * Parameters for actions that don't take any.
+   */
+  private static final Object[] NO_PARAMS = {};
+  /**
+   * Number of turns that room is made for in the replay at first.
+   */
+  private static final int INITIAL_REPLAY_LENGTH = 64;
+  
+  /**
+   * Map data for the game.
+   * 'x' = wall
+   * '!' = home point
+   * ' ' = empty space
+   */
+  private static final char[][] MAP_BOARD = {
+    {' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', 'x', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', 'x', 'x', 'x', 'x', 'x', 'x'},
+    {' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', 'x', 'x', 'x', 'x', 'x'},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
+    {'x', 'x', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+    {'!', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', 'x', 'x', 'x', 'x'},
+    {'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+    {'x', 'x', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', 'x', 'x', 'x', 'x', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' '},
+    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', 'x', ' ', ' ', ' ', ' '},
+    {'x', 'x', 'x', 'x', 'x', 'x', 'x', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+    {'x', 'x', 'x', 'x', 'x', 'x', 'x', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
+  };
+  
+  /**
+   * MASTER VARIABLE FOR DEBUG MODE.
+   * SHOULD BE SET TO TRUE FOR THE SUBMITTED PROGRAM.
+   * Each game state starts with debug mode set to this.
+   */
+  private static final boolean DEBUG_ENABLED_DEFAULT = true;
+  /**
+   * The SHA-256 hash of the password.
+   */
+  private static final byte[] PASSWORD_HASH = {
+    -49, 54, 126, -96, 67, -49, 101, -41, 
+    -30, -91, 40, -58, -20, 104, -97, 42, 
+    -61, 90, -71, -94, 32, -124, -93, 25, 
+    -19, 78, -23, -13, -90, 115, 74, 13
+  };
+  
+  /**
+   * Tries to enable debug, using a password.
+   * If debug mode is already enabled, does nothing.
+   * If the password is incorrect, debug mode is not enabled.
+   * @param password the password
+   * @return whether debug mode was enabled.
+   */
+  public boolean enableDebug(String password) {
+    if (debugEnabled) {
+      return true;
+    }
+    try {
+      MessageDigest hasher = MessageDigest.getInstance("SHA-256");
+      byte[] hash = hasher.digest(password.getBytes("UTF-8"));
+      // SHA-256 hash is always 32 bytes, no need to check
+      for (int i = 0; i < PASSWORD_HASH.length; i++) {
+        if (hash[i] != PASSWORD_HASH[i]) {
+          return false;
+        }
+      }
+      debugEnabled = true;
+      return true;
+    } catch (Exception e) {
+      Utils.printThrowable(out, e);
+      out.println("Cannot enable debug mode.");
+      return false;
+    }
+  }
+  
+  /**
+   * Checks if debugging is enabled.
+   * @return true if debugging is enabled, false otherwise
+   */
+  public boolean isDebugEnabled() {
+    return debugEnabled;
+  }
+  
+  /**
+   * Turns debugging off. It can be turned back on with the password.
+   */
+  public void disableDebug() {
+    debugEnabled = false;
+  }
+  
+  /**
+   * Sets what "debug quit" does. By default, it shuts down the program.
+   * @param quitAction the action to run
+   */
+  public void setQuitAction(Runnable quitAction) {
+    this.quitAction = quitAction;
+  }
+  
+  /**
+   * Enum representing the status of the last win.
+   */
+  public enum Result {
+    WIN,
+    GAME_OVER
+  }
+
+  /**
+   * Constructs a game state that is played through a pair of streams.
+   * @param in the stream that commands are read from
+   * @param out the stream that all game output is printed to
+   */
+  public GameState(BufferedReader in, PrintStream out) {
+    this(in, out, initCollision());
+  }
+
+  /**
+   * Constructs a game state that prints to a specific stream. It has no input, so
+   * it can only be played through {@link GameState#playTurn(String)}
+   * and {@link GameState#playHeadless(MoveSource, int)}.
+   * @param out the stream that all game output is printed to
+   */
+  public GameState(PrintStream out) {
+    this(null, out, initCollision());
+  }
+  
+  /**
+   * Constructs a game state that prints to a specific stream, and plays
+   * on a specific map instead of the default one. It has no input, like
+   * {@link GameState#GameState(PrintStream)}.
+   * @param out the stream that all game output is printed to
+   * @param collision the map to play on. It must have a home point set.
+   */
+  public GameState(PrintStream out, CollisionMap collision) {
+    this(null, out, collision);
+  }
+  
+  /**
+   * Constructs a game state that is played through a pair of streams, and plays
+   * on a specific map instead of the default one.
+   * @param in the stream that commands are read from, or null if there isn't one
+   * @param out the stream that all game output is printed to
+   * @param collision the map to play on. It must have a home point set.
+   */
+  public GameState(BufferedReader in, PrintStream out, CollisionMap collision) {
+    // Initialize helper objects and states
+    this.in = in;
+    this.out = out;
+    this.debugEnabled = DEBUG_ENABLED_DEFAULT;
+    this.quitAction = () -> System.exit(0);
+    this.running = false;
+    this.lastResult = null;
+    this.collision = collision;
+    this.cmdParser = this.initCommandParser();
+    this.numZombies = DEFAULT_NUM_ZOMBIES;
+    // Don't initialize the game yet
+    this.player = null;
+    this.desmond = null;
+    this.enemies = new ArrayList<>();
+    this.enemyIndex = new OccupancyMap<>();
+    this.spawnTable = null;
+    this.frame = new StringBuilder();
+    this.ansi = null;
+    this.viewWidth = DEFAULT_VIEW_WIDTH;
+    this.viewHeight = DEFAULT_VIEW_HEIGHT;
+    this.viewStale = true;
+    this.mapFrames = new MapFrame[] { new MapFrame(), new MapFrame() };
+    this.backFrame = 0;
+    this.actions = new byte[INITIAL_REPLAY_LENGTH];
+    this.mapId = 0;
+    this.mapIdOf = null;
+    checkSpawnRoom(collision, numZombies);
+  }
+
+  /**
+   * Initializes the game with a random seed.
+   * @param name the name of the user
+   */
+  public void initGame(String name) {
+    this.initGame(name, Utils.randomSeed());
+  }
+  
+  /**
+   * Initializes the game. Two games with the same seed, given the same
+   * commands, will play out the exact same way.
+   * @param name the name of the user
+   * @param seed the seed for this game's RNG
+   */
+  public void initGame(String name, long seed) {
+    // Seed the RNG first, since spawning uses it
+    this.seed = seed;
+    this.rng = new SplittableRandom(seed);
+    
+    // clear the visited map
+    collision.clearVisited();
+    // Set the home point as visited
+    Point homePoint = collision.getHomePoint();
+    collision.setVisited(homePoint.x, homePoint.y);
+    
+    // Clear out the last game's enemies before anything spawns
+    enemies.clear();
+    enemyIndex.clear();
+    // Set up the spawn table, making a new one if the map changed
+    if (spawnTable == null || spawnTable.getMap() != collision) {
+      spawnTable = SpawnTable.fits(collision) ? new SpawnTable(collision, CLEAR_ZONE_SIZE) : null;
+    }
+    if (spawnTable != null) {
+      spawnTable.reset();
+    }
+    
+    // Initialize player and Desmond
+    player = new Player(this);
+    desmond = new Desmond(this);
+    // Initialize enemies
+    for (int i = 0; i < numZombies; i++) {
+      this.addEnemy(new Zombie(this));
+    }
+    
+    // Draw the first frame of the new game in full
+    if (ansi != null) {
+      ansi.reset();
+    }
+    viewStale = true;
+    redrawDue = true;
+    for (MapFrame f : mapFrames) {
+      f.valid = false;
+    }
+    // Reset the score and set the "running" flag
+    running = true;
+    points = 0;
+    turnCounter = 0;
+    // Set the user's name
+    this.name = name;
+  }
+  
+  /**
+   * Performs one iteration of the game.
+   */
+  public void gameLoop() {
+    // the inputted like
+    String line;
+    // true once a command has used up the turn
+    boolean turnTaken = false;
+    
+    if (in == null) {
+      throw new IllegalStateException("This game has no input to read commands from");
+    }
+    // execute ONE command (excluding help)
+    // help commands will not return 0, keeping the loop going
+    do {
+      // If more commands have already been typed (or piped in from a script),
+      // run them before drawing the map again, unless something happened
+      if (redrawDue || !inputWaiting()) {
+        showPrompt();
+      }
+      // Read a command from the user
+      line = Utils.readLine(in);
+      turnTaken = this.submitLine(line);
+    } while (!turnTaken);
+  }
+  
+  /**
+   * Checks if there's input waiting to be read, without blocking.
+   * @return true if the next line can be read straight away
+   */
+  private boolean inputWaiting() {
+    try {
+      return in.ready();
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Shows the map and status, then prompts for a command.
+   * This is the first half of {@link GameState#gameLoop()}, for callers
+   * that get their input some other way (see {@link NioGameServer}).
+   */
+  public void showPrompt() {
+    redrawDue = false;
+    // Display auxilliary info
+    doAuxilliaryDisplay();
+    out.print("Input command (\"help\" for help): ");
+  }
+  
+  /**
+   * Executes a line typed in reply to {@link GameState#showPrompt()}, and
+   * prints the outcome. This is the second half of {@link GameState#gameLoop()}.
+   * The line can hold several commands (see {@link GameState#playBatch(String)}).
+   * @param line the command line
+   * @return true if the commands used up at least one turn, false if the user
+   * should be prompted again
+   */
+  public boolean submitLine(String line) {
+    try {
+      // Try to execute it. If it throws an exception
+      // or returns non-zero, prompt again.
+      if (this.playBatch(line) == 0) {
+        // print a blank line for spacing
+        out.println();
+        return false;
+      }
+      // print a blank line for spacing
+      out.println();
+    } catch (CommandException e) {
+      Utils.printThrowable(out, e);
+      redrawDue = true;
+      return false;
+    } catch (RuntimeException e) {
+      // A line the parser chokes on is still just a bad command, and
+      // shouldn't end the session (commands themselves are already wrapped)
+      Utils.printThrowable(out, e);
+      redrawDue = true;
+      return false;
+    }
+    
+    // print a blank line for spacing
+    if (running) {
+      out.println();
+    }
+    // give the terminal back for the end screens
+    else if (ansi != null) {
+      ansi.finish(out);
+    }
+    return true;
+  }
+  
+  /**
+   * Executes a line holding several commands separated by semicolons
+   * (e.g. {@code w 3; d 2; s 1}), one after another, without drawing the map
+   * in between. The rest of the batch is skipped if something happens that
+   * the user should see first: a command fails, the game ends, or the news
+   * about Desmond changes (e.g. he comes into view).
+   * @param line the command line to execute
+   * @return the number of turns used
+   * @throws CommandException if a command couldn't be parsed or failed
+   * (the commands before it have still been run)
+   */
+  public int playBatch(String line) throws CommandException {
+    return playBatch(line, true);
+  }
+  
+  /**
+   * Executes a line holding several commands separated by semicolons.
+   * @param line the command line to execute
+   * @param stopForNews true to stop if the news about Desmond changes
+   * @return the number of turns used
+   * @throws CommandException if a command couldn't be parsed or failed
+   */
+  private int playBatch(String line, boolean stopForNews) throws CommandException {
+    // the news about Desmond before the current command
+    String news;
+    // the number of turns used so far
+    int turns = 0;
+    
+    // Most lines are a single command, so don't split those
+    if (line.indexOf(';') < 0) {
+      return this.playTurn(line) ? 1 : 0;
+    }
+    for (String command : CommandParser.splitCommands(line)) {
+      news = stopForNews ? desmondNews() : null;
+      if (this.playTurn(command)) {
+        turns++;
+      }
+      if (!running) {
+        break;
+      }
+      // Picking Desmond up is what the user asked for, so that isn't news
+      if (stopForNews && !player.isHolding() && !desmondNews().equals(news)) {
+        redrawDue = true;
+        break;
+      }
+    }
+    return turns;
+  }
+  
+  /**
+   * Checks if something has happened since the map was last drawn that the
+   * user should see before any more commands are run.
+   * @return true if the map should be drawn before the next command
+   */
+  public boolean isRedrawDue() {
+    return redrawDue;
+  }
+  
+  /**
+   * Executes one command line, then advances the game by one turn
+   * if the command used up the turn. This is the part of
+   * {@link GameState#gameLoop()} that doesn't touch the console.
+   * @param line the command line to execute
+   * @return true if the command used up the turn, false if it didn't (e.g. help)
+   * @throws CommandException if the command couldn't be parsed or failed
+   */
+  public boolean playTurn(String line) throws CommandException {
+    // commands returning non-zero (e.g. help) don't use up the turn
+    if (this.cmdParser.execute(line) != 0) {
+      return false;
+    }
+    
+    // check if force-win/lose happened
+    if (running) {
+      this.tick();
+    }
+    return true;
+  }
+  
+  /**
+   * Plays out one turn, with the action the player already has, and
+   * records it for the replay.
+   */
+  private void tick() {
+    if (turnCounter == actions.length) {
+      actions = Arrays.copyOf(actions, actions.length * 2);
+    }
+    actions[turnCounter] = nextAction;
+    // perform update
+    this.updateAllObjects();
+    this.updateCounters();
+  }
+  
+  /**
+   * Returns a replay of the current (or last) game, as it has been played so far.
+   * @return the replay
+   */
+  public Replay getReplay() {
+    return new Replay(name, points, seed, getMapId(), numZombies, Arrays.copyOf(actions, turnCounter));
+  }
+  
+  /**
+   * Plays a game from a replay, as fast as possible: nothing is drawn, and
+   * no commands are parsed. Afterwards, this game state holds the game as it
+   * ended (e.g. its points). The number of zombies isn't changed for later games.
+   * @param replay the replay to play
+   * @return the result of the game, or null if it was still going when the replay ended
+   * @throws IllegalArgumentException if the replay is from a different map,
+   * or has more zombies than the map has room for
+   */
+  public Result playReplay(Replay replay) {
+    // the number of zombies to go back to afterwards
+    int zombies = numZombies;
+    // the action on the current turn
+    int action;
+    
+    if (replay.getMapId() != getMapId()) {
+      throw new IllegalArgumentException("This replay was recorded on a different map");
+    }
+    
+    this.setNumZombies(replay.getNumZombies());
+    try {
+      this.initGame(replay.getName(), replay.getSeed());
+    }
+    finally {
+      numZombies = zombies;
+    }
+    for (int i = 0; i < replay.getTurns() && running; i++) {
+      action = replay.getAction(i);
+      if (action == Replay.PICKUP) {
+        pickup();
+      }
+      else {
+        move(Replay.moveDir(action), Replay.moveDist(action));
+      }
+      this.tick();
+    }
+    return running ? null : lastResult;
+  }
+  
+  /**
+   * Returns the fingerprint of the map being played on, working it out if
+   * the map has changed.
+   * @return the map's fingerprint (see {@link CollisionMap#fingerprint()})
+   */
+  private long getMapId() {
+    if (mapIdOf != collision) {
+      mapId = collision.fingerprint();
+      mapIdOf = collision;
+    }
+    return mapId;
+  }
+  
+  /**
+   * Plays the current game to completion without the console, taking
+   * commands from a {@link MoveSource}. Invalid commands are skipped, as they
+   * would be in {@link GameState#gameLoop()}. The game is forfeited if the
+   * move source runs out of moves, or if it takes too many turns. A line
+   * holding several commands is run as a whole batch, even if that goes a few
+   * turns over.
+   * @param source the source of commands
+   * @param maxTurns the maximum number of turns before the game is forfeited
+   * @return the result of the game
+   */
+  public Result playHeadless(MoveSource source, int maxTurns) {
+    // the next command line
+    String line;
+    
+    while (running) {
+      // Give up if the game is taking too long
+      if (turnCounter >= maxTurns) {
+        this.triggerGameOver();
+        break;
+      }
+      line = source.nextMove(this);
+      // Give up if the move source has nothing left
+      if (line == null) {
+        this.triggerGameOver();
+        break;
+      }
+      try {
+        // Nobody's watching, so there's no reason to stop part-way
+        this.playBatch(line, false);
+      } catch (CommandException e) {
+        // skip bad commands, as the console would
+        continue;
+      }
+    }
+    return lastResult;
+  }
+  
+  /**
+   * Triggers a game-over screen.
+   */
+  public void triggerGameOver() {
+    // Clear the running flag and set the last result
+    // for a game over
+    running = false;
+    lastResult = Result.GAME_OVER;
+  }
+  
+  /**
+   * Triggers a win screen.
+   */
+  public void triggerWin() {
+    // Clear the running flag and set the last result
+    // for a win
+    running = false;
+    lastResult = Result.WIN;
+  }
+  
+  /**
+   * Checks if the game is running.
+   * @return true if the game is running, false otherwise
+   */
+  public boolean isRunning() {
+    return running;
+  }
+  
+  /**
+   * Returns the result of the last game. May be null if
+   * no game has been played yet.
+   * @return the result of the last game, or null if no games have been played
+   */
+  public Result getLastResult() {
+    return lastResult;
+  }
+  
+  /**
+   * Returns the stream that this game state prints to.
+   * @return the stream that this game state prints to.
+   */
+  public PrintStream getOut() {
+    return out;
+  }
+  
+  /**
+   * Returns this game's RNG. Everything random in the game should use this,
+   * so that games can be replayed from their seed.
+   * @return this game's RNG.
+   */
+  public SplittableRandom getRandom() {
+    return rng;
+  }
+  
+  /**
+   * Returns the seed that the current game was started with.
+   * @return the seed that the current game was started with.
+   */
+  public long getSeed() {
+    return seed;
+  }
+  
+  /**
+   * Returns the number of zombies spawned at the start of each game.
+   * @return the number of zombies spawned at the start of each game.
+   */
+  public int getNumZombies() {
+    return numZombies;
+  }
+  
+  /**
+   * Sets the number of zombies spawned at the start of each game.
+   * Takes effect on the next call to {@link GameState#initGame(String)}.
+   * @param numZombies the number of zombies
+   * @throws IllegalArgumentException if the map doesn't have room for them
+   */
+  public void setNumZombies(int numZombies) {
+    checkSpawnRoom(collision, numZombies);
+    this.numZombies = numZombies;
+  }
+  
+  /**
+   * Returns the number of turns taken in the current game.
+   * @return the number of turns taken.
+   */
+  public int getTurnCounter() {
+    return turnCounter;
+  }
+  
+  /**
+   * Returns the {@link CommandParser} for this game state.
+   * @return the {@link CommandParser} for this game state.
+   */
+  public CommandParser getParser() {
+    return cmdParser;
+  }
+  
+  /**
+   * Returns the {@link CollisionMap} for this game state.
+   * @return the {@link CollisionMap} for this game state.
+   */
+  public CollisionMap getCollision() {
+    return collision;
+  }
+  
+  /**
+   * Sets the {@link CollisionMap} to play on. This takes effect
+   * on the next call to {@link GameState#initGame}.
+   * @param collision the map to play on. It must have a home point set.
+   * @throws IllegalArgumentException if the map doesn't have room for the zombies
+   */
+  public void setCollision(CollisionMap collision) {
+    this.setCollision(collision, numZombies);
+  }
+  
+  /**
+   * Sets the {@link CollisionMap} to play on and the number of zombies
+   * at once, for when the current zombies wouldn't fit on the new map
+   * (or the new zombies wouldn't fit on the current one).
+   * This takes effect on the next call to {@link GameState#initGame}.
+   * @param collision the map to play on. It must have a home point set.
+   * @param numZombies the number of zombies
+   * @throws IllegalArgumentException if the map doesn't have room for the zombies
+   */
+  public void setCollision(CollisionMap collision, int numZombies) {
+    checkSpawnRoom(collision, numZombies);
+    this.collision = collision;
+    this.numZombies = numZombies;
+  }
+  
+  /**
+   * Checks that a map has enough tiles to spawn Desmond and every zombie on.
+   * @param collision the map
+   * @param numZombies the number of zombies
+   * @throws IllegalArgumentException if there isn't enough room
+   */
+  static void checkSpawnRoom(CollisionMap collision, int numZombies) {
+    // tiles needed: one for Desmond, and one for each zombie
+    long needed;
+    // tiles found, up to the number needed
+    long room;
+    
+    if (numZombies < 0)
+      throw new IllegalArgumentException("Cannot have less than 0 zombies");
+    needed = numZombies + 1L;
+    room = SpawnTable.countEligible(collision, CLEAR_ZONE_SIZE, needed);
+    if (room < needed) {
+      String errorMessage = String.format("The map only has room for %d zombies, not %d", 
+        Math.max(room - 1, 0), numZombies);
+      throw new IllegalArgumentException(errorMessage);
+    }
+  }
+  
+  /**
+   * Sets the stream that all game output is printed to. This takes effect straight away.
+   * @param out the stream to print to
+   */
+  public void setOutput(PrintStream out) {
+    this.out = out;
+  }
+  
+  /**
+   * Sets whether the map is drawn using ANSI escape codes. When it is, the
+   * map stays in place at the top of the terminal, and each turn only
+   * redraws what changed.
+   * @param enabled true to use ANSI escape codes
+   */
+  public void setAnsiRendering(boolean enabled) {
+    this.ansi = enabled ? new AnsiRenderer() : null;
+  }
+  
+  /**
+   * Sets the largest part of the map that is shown at once. Maps bigger
+   * than this only show the part around the player.
+   * @param width the most tiles to show across
+   * @param height the most tiles to show down
+   */
+  public void setViewSize(int width, int height) {
+    // the player's whole sight range has to fit
+    if (width < SIGHT_DIST * 2 + 1 || height < SIGHT_DIST * 2 + 1) {
+      String errMsg = String.format("View must be at least %1$dx%1$d", SIGHT_DIST * 2 + 1);
+      throw new IllegalArgumentException(errMsg);
+    }
+    this.viewWidth = width;
+    this.viewHeight = height;
+    this.viewStale = true;
+  }
+  
+  /**
+   * Returns the {@link GameEntity} representing the player.
+   * @return the {@link GameEntity} representing the player.
+   */
+  public Player getPlayer() {
+    return player;
+  }
+  
+  /**
+   * Returns the {@link GameEntity} representing Desmond.
+   * @return the {@link GameEntity} representing Desmond.
+   */
+  public Desmond getDesmond() {
+    return desmond;
+  }
+  
+  /**
+   * Returns the current saved name.
+   * @return the current saved name.
+   */
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * Returns the current saved score.
+   * @return the score.
+   */
+  public int getPoints() {
+    return points;
+  }
+  
+  /**
+   * Creates a new {@link Score} object using the last name and score
+   * in this GameState.
+   * @return the new Score object
+   */
+  public Score createScore() {
+    return new Score(this.name, this.points);
+  }
+  
+  /**
+   * Checks if an enemy is at a particular position, and returns it if there is.
+   * @param p the point to check.
+   * @return the enemy at that position, or null if there is no enemy
+   */
+  public GameEntity checkEnemies(Point p) {
+    return this.checkEnemies(p.x, p.y);
+  }
+  
+  /**
+   * Checks if an enemy is at a particular position, and returns it if there is.
+   * @param x the x-coordinate of the point to check
+   * @param y the y-coordinate of the point to check
+   * @return the enemy at that position, or null if there is no enemy
+   */
+  public GameEntity checkEnemies(int x, int y) {
+    return this.checkEnemiesPacked(Point.pack(x, y));
+  }
+  
+  /**
+   * Checks if an enemy is at a particular position, and returns it if there is.
+   * @param packedPos the packed position to check (see {@link Point#pack(int, int)})
+   * @return the enemy at that position, or null if there is no enemy
+   */
+  public GameEntity checkEnemiesPacked(int packedPos) {
+    // the index knows which enemy is on which cell
+    return enemyIndex.get(packedPos);
+  }
+  
+  /**
+   * Adds an enemy to the game, at its current position.
+   * @param enemy the enemy
+   */
+  public void addEnemy(GameEntity enemy) {
+    enemies.add(enemy);
+    enemyIndex.put(enemy.getPackedPos(), enemy);
+    if (spawnTable != null)
+      spawnTable.occupy(enemy.getPackedPos());
+  }
+  
+  /**
+   * Moves an enemy to a new position. Enemies should always be moved
+   * through here, so that {@link GameState#checkEnemies} stays up to date.
+   * @param enemy the enemy
+   * @param pos the enemy's new position
+   */
+  public void moveEnemy(GameEntity enemy, Point pos) {
+    this.moveEnemy(enemy, pos.pack());
+  }
+  
+  /**
+   * Moves an enemy to a new packed position. See {@link GameState#moveEnemy(GameEntity, Point)}.
+   * @param enemy the enemy
+   * @param packedPos the enemy's new packed position
+   */
+  public void moveEnemy(GameEntity enemy, int packedPos) {
+    enemyIndex.remove(enemy.getPackedPos());
+    if (spawnTable != null)
+      spawnTable.release(enemy.getPackedPos());
+    enemy.moveTo(packedPos);
+    enemyIndex.put(packedPos, enemy);
+    if (spawnTable != null)
+      spawnTable.occupy(packedPos);
+  }
+  
+  /**
+   * Generates a spawning point that:
+   * <ul>
+   * <li>won't be on top of any walls</li>
+   * <li>won't collide with any other spawned entities</li>
+   * <li>won't be too close to the home point</li>
+   * </ul>
+   * On maps small enough for a {@link SpawnTable}, this takes constant time.
+   * @return a suitable spawning point.
+   * @throws IllegalStateException if there is nowhere left to spawn
+   */
+  public Point genSpawnPoint() {
+    return Point.unpack(this.genSpawnPointPacked());
+  }
+  
+  /**
+   * Version of {@link GameState#genSpawnPoint()} returning a packed point
+   * (see {@link Point#pack(int, int)}).
+   * @return a suitable spawning point, packed.
+   */
+  public int genSpawnPointPacked() {
+    // home position
+    int homeX = collision.getHomePoint().x, homeY = collision.getHomePoint().y;
+    // width and height of the map
+    int width = collision.width(), height = collision.height();
+    // prospective spawning position
+    int spawnX, spawnY;
+    
+    // The table only holds free tiles that meet the conditions
+    if (spawnTable != null) {
+      return spawnTable.sample(rng);
+    }
+    // Otherwise, the map is huge, so most tiles should be fine
+    do {
+      spawnX = Utils.randomInt(rng, 0, width);
+      spawnY = Utils.randomInt(rng, 0, height);
+      // There are lots of spawning conditions here...
+      // should this be a function?
+      // - out of the cle
+    } while (!(
+      Math.abs(spawnX - homeX) > CLEAR_ZONE_SIZE && 
+      Math.abs(spawnY - homeY) > CLEAR_ZONE_SIZE &&
+      !collision.collides(spawnX, spawnY) && 
+      this.checkEnemies(spawnX, spawnY) == null));
+    
+    return Point.pack(spawnX, spawnY);
+  }
+  
+  public int getMusicState() {
+    // absolute difference in X and Y between the player and Desmond
+    int absDiffX, absDiffY;
+    absDiffX = Math.abs(player.getX() - desmond.getX());
+    absDiffY = Math.abs(player.getY() - desmond.getY());
+    
+    if (absDiffX > WARN_DIST || absDiffY > WARN_DIST) {
+      // Desmond is outside warning distance
+    	return 0;
+    }
+    else if (player.isHolding()) {
+    	// Desmond is being carried
+    	return 2;
+    }
+    else {
+    	// Desmond is close, but not picked up
+    	return 1;
+    }
+  }
+  
+  // input stream: commands are read from here (null if there isn't one)
+  private BufferedReader in;
+  // output stream: everything the game prints goes here
+  private PrintStream out;
+  // true if debugging commands are allowed
+  private boolean debugEnabled;
+  // what "debug quit" does
+  private Runnable quitAction;
+  // collision map: handles interactions with walls
+  private CollisionMap collision;
+  // command parser: handles user input and translates it into actions
+  private CommandParser cmdParser;
+  
+  // player: game entity for the robot
+  private Player player;
+  // desmond: game entity for Desmond
+  private Desmond desmond;
+  // enemies: list of game entites containing all zombies
+  // and other enemies/dynamic obstacles
+  private List<GameEntity> enemies;
+  // enemyIndex: which enemy is on which cell
+  private OccupancyMap<GameEntity> enemyIndex;
+  // spawnTable: free tiles to spawn on (null if the map is too big for one)
+  private SpawnTable spawnTable;
+  
+  // true if the game is running
+  private boolean running;
+  // the result of the last game.
+  private Result lastResult;
+  
+  // number of zombies spawned per game
+  private int numZombies;
+  // the current game's RNG, and the seed it started with
+  private SplittableRandom rng;
+  private long seed;
+  // number of points scored
+  private int points;
+  // number of turns taken
+  private int turnCounter;
+  // user's name
+  private String name;
+  // text printed each turn, reused between turns
+  private StringBuilder frame;
+  // draws frames using ANSI escape codes, or null to print them as plain text
+  private AnsiRenderer ansi;
+  // largest part of the map shown at once
+  private int viewWidth, viewHeight;
+  // top-left corner of the part of the map last shown
+  private int viewX, viewY;
+  // true if the view needs to be placed again
+  private boolean viewStale;
+  // the two frames used by buildMap(), and which one gets filled next
+  private MapFrame[] mapFrames;
+  private int backFrame;
+  // true if the map has to be drawn before any more commands are run
+  private boolean redrawDue;
+  // the player's action on each turn so far (see Replay), and the one set for the next turn
+  private byte[] actions;
+  private byte nextAction;
+  // fingerprint of the map, and the map it was worked out for (null if it hasn't been)
+  private long mapId;
+  private CollisionMap mapIdOf;
+  
+  // Internal functions
+  // =========================================
+  
+  /**
+   * Fills a 2D array of map tiles. Only the part of the map in view
+   * (see {@link GameState#setViewSize(int, int)}) is filled in, so this
+   * doesn't depend on the size of the map.
+   * 
+   * The arrays are kept between turns, and there are two of them, used in
+   * turn: the one returned last time is left alone while this one is filled.
+   * Each array remembers where the player has been since it was last filled,
+   * so only the fog of war around those places and the tiles in sight have to
+   * be redone. Everything is redone when the view moves.
+   * Package-private so that the benchmarks can reach it.
+   * @return the 2D array of map tiles in view. Tile (x, y) of the array is
+   * tile (x + viewX, y + viewY) of the map. It stays valid until the next call.
+   */
+  char[][] buildMap() {
+    // player X and Y position
+    int playerX = this.player.getX(), playerY = this.player.getY();
+    // object X and Y position (this applies to whatever point is getting content)
+    int objX, objY;
+    // size of the view
+    int width = Math.min(viewWidth, collision.width()), height = Math.min(viewHeight, collision.height());
+    // the frame being filled (the other one was returned last time)
+    MapFrame target = mapFrames[backFrame];
+    // the frame's tiles
+    char[][] result;
+    
+    updateView(playerX, playerY, width, height);
+    if (!target.valid || target.viewX != viewX || target.viewY != viewY || 
+      target.tiles.length != height || target.tiles[0].length != width) {
+      // The view moved (or nothing's there yet), so everything needs redoing
+      if (target.tiles == null || target.tiles.length != height || target.tiles[0].length != width) {
+        target.tiles = new char[height][width];
+      }
+      target.viewX = viewX;
+      target.viewY = viewY;
+      paintFog(target, viewX, viewY, viewX + width - 1, viewY + height - 1);
+    }
+    else {
+      // Only redo the fog where the player has been (and so could see,
+      // or could have visited) since this frame was last filled
+      paintFog(target, target.pathMinX - SIGHT_DIST, target.pathMinY - SIGHT_DIST, 
+        target.pathMaxX + SIGHT_DIST, target.pathMaxY + SIGHT_DIST);
+    }
+    result = target.tiles;
+    
+    // Render tiles in sight
+    // anything in sight is shown as-is (either ' ' or 'x')
+    for (objY = Math.max(playerY - SIGHT_DIST, viewY); objY <= Math.min(playerY + SIGHT_DIST, viewY + height - 1); objY++) {
+      for (objX = Math.max(playerX - SIGHT_DIST, viewX); objX <= Math.min(playerX + SIGHT_DIST, viewX + width - 1); objX++) {
+        result[objY - viewY][objX - viewX] = collision.isWall(objX, objY) ? 'x' : ' ';
+      }
+    }
+    
+    // Render home point
+    objX = collision.getHomePoint().x;
+    objY = collision.getHomePoint().y;
+    // check if home point is within the sight range
+    if (Math.abs(objX - playerX) <= SIGHT_DIST && Math.abs(objY - playerY) <= SIGHT_DIST) {
+      result[objY - viewY][objX - viewX] = '!';
+    }
+    
+    // Render enemies
+    // Only the tiles in sight can show anything, so look those up,
+    // rather than going through every enemy on the map
+    for (objY = playerY - SIGHT_DIST; objY <= playerY + SIGHT_DIST; objY++) {
+      for (objX = playerX - SIGHT_DIST; objX <= playerX + SIGHT_DIST; objX++) {
+        if (!collision.collides(objX, objY) && this.checkEnemies(objX, objY) != null) {
+          result[objY - viewY][objX - viewX] = 'E';
+        }
+      }
+    }
+    
+    // Render Desmond
+    objX = desmond.getX();
+    objY = desmond.getY();
+    // check if Desmond is within the sight range
+    if (Math.abs(objX - playerX) <= SIGHT_DIST && Math.abs(objY - playerY) <= SIGHT_DIST) {
+      result[objY - viewY][objX - viewX] = 'D';
+    }
+    
+    // Render player
+    // Player is always in sight range, since it defines the sight range
+    result[playerY - viewY][playerX - viewX] = 'R';
+    
+    // This frame is up to date as of the player's current position
+    target.valid = true;
+    target.pathMinX = target.pathMaxX = playerX;
+    target.pathMinY = target.pathMaxY = playerY;
+    // fill the other frame next time
+    backFrame ^= 1;
+    return result;
+  }
+  
+  /**
+   * Moves the view if the player is getting close to its edge, so that
+   * the player stays well inside it. The view only moves every so often,
+   * so most turns can reuse the last frame.
+   * @param playerX the player's x-coordinate
+   * @param playerY the player's y-coordinate
+   * @param width the width of the view
+   * @param height the height of the view
+   */
+  private void updateView(int playerX, int playerY, int width, int height) {
+    // how close the player can get to the edge of the view (unless it's the edge of the map)
+    final int MARGIN = SIGHT_DIST + 1;
+    
+    if (viewStale || 
+      (playerX - viewX < MARGIN && viewX > 0) || 
+      (viewX + width - 1 - playerX < MARGIN && viewX + width < collision.width()) ||
+      (playerY - viewY < MARGIN && viewY > 0) || 
+      (viewY + height - 1 - playerY < MARGIN && viewY + height < collision.height()) ||
+      viewX + width > collision.width() || viewY + height > collision.height()) {
+      // Centre the view on the player, without going off the edge of the map
+      viewX = Math.max(0, Math.min(playerX - width / 2, collision.width() - width));
+      viewY = Math.max(0, Math.min(playerY - height / 2, collision.height() - height));
+      viewStale = false;
+    }
+  }
+  
+  /**
+   * Fills part of a frame with the fog of war: '$' for visited tiles,
+   * and '?' for the rest. The area is cut down to the frame's view.
+   * @param target the frame
+   * @param minX the x-coordinate of the area's left edge
+   * @param minY the y-coordinate of the area's top edge
+   * @param maxX the x-coordinate of the area's right edge (inclusive)
+   * @param maxY the y-coordinate of the area's bottom edge (inclusive)
+   */
+  private void paintFog(MapFrame target, int minX, int minY, int maxX, int maxY) {
+    minX = Math.max(minX, target.viewX);
+    minY = Math.max(minY, target.viewY);
+    maxX = Math.min(maxX, target.viewX + target.tiles[0].length - 1);
+    maxY = Math.min(maxY, target.viewY + target.tiles.length - 1);
+    for (int y = minY; y <= maxY; y++) {
+      for (int x = minX; x <= maxX; x++) {
+        target.tiles[y - target.viewY][x - target.viewX] = collision.isVisited(x, y) ? '$' : '?';
+      }
+    }
+  }
+  
+  /**
+   * One of the two frames used by {@link GameState#buildMap()}.
+   */
+  private static class MapFrame {
+    // The tiles, or null if not created yet.
+    char[][] tiles;
+    // Top-left corner of the map that the tiles show.
+    int viewX, viewY;
+    // Box around everywhere the player has been since this frame was filled.
+    int pathMinX, pathMinY, pathMaxX, pathMaxY;
+    // False if the tiles need to be completely redone.
+    boolean valid;
+    
+    /**
+     * Adds a place the player has been.
+     * @param x the player's x-coordinate
+     * @param y the player's y-coordinate
+     */
+    void includePlayer(int x, int y) {
+      pathMinX = Math.min(pathMinX, x);
+      pathMinY = Math.min(pathMinY, y);
+      pathMaxX = Math.max(pathMaxX, x);
+      pathMaxY = Math.max(pathMaxY, y);
+    }
+  }
+  
+  /**
+   * Calls {@link GameState#buildMap()} to build a map, then adds it to the frame.
+   */
+  private void displayMap() {
+    // the array from buildMap
+    char[][] partMap = buildMap();
+    // player X and Y position
+    int playerX = player.getX(), playerY = player.getY();
+    // true if the player can pick up (or has picked up) Desmond
+    boolean canPickUp = player.getPackedPos() == desmond.getPackedPos();
+    // width of the row labels
+    int labelWidth = Math.max(2, Integer.toString(viewY + partMap.length - 1).length());
+    
+    // print column header
+    appendPadded(frame, "", labelWidth);
+    frame.append(' ');
+    // print each column label. Only the last 2 digits fit above each tile.
+    for (int x = 0; x < partMap[0].length; x++) {
+      appendPadded(frame, (viewX + x) % 100, 2);
+      frame.append(' ');
+    }
+    // end of line
+    frame.append('\n');
+    
+    // main map printing loop
+    for (int y = 0; y < partMap.length; y++) {
+      // print the row label
+      appendPadded(frame, viewY + y, labelWidth);
+      frame.append(' ');
+      for (int x = 0; x < partMap[0].length; x++) {
+        if (viewX + x == playerX && viewY + y == playerY && canPickUp) {
+          // Use curly brackets when the robot can pick up Desmond
+          frame.append('{').append(partMap[y][x]).append('}');
+        }
+        else if (collision.isVisited(viewX + x, viewY + y)) {
+          // Use round brackets when the player has visited this space.
+          frame.append('(').append(partMap[y][x]).append(')');
+        }
+        else {
+          // Just print with square brackets
+          frame.append('[').append(partMap[y][x]).append(']');
+        }
+      }
+      frame.append('\n');
+    }
+  }
+  
+  /**
+   * Appends a number to a frame, right-aligned to a width.
+   * @param sb the frame
+   * @param value the number (must not be negative)
+   * @param width the width to align to
+   */
+  private static void appendPadded(StringBuilder sb, int value, int width) {
+    // number of digits in the value
+    int digits = 1;
+    
+    for (int v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    for (int i = digits; i < width; i++) {
+      sb.append(' ');
+    }
+    sb.append(value);
+  }
+  
+  /**
+   * Appends a string to a frame, right-aligned to a width.
+   * @param sb the frame
+   * @param value the string
+   * @param width the width to align to
+   */
+  private static void appendPadded(StringBuilder sb, String value, int width) {
+    for (int i = value.length(); i < width; i++) {
+      sb.append(' ');
+    }
+    sb.append(value);
+  }
+  
+  /**
+   * Displays relevant information before the command prompt is shown.
+   * Everything is put together in one frame, then printed in one go.
+   */
+  private void doAuxilliaryDisplay() {
+    // start a new frame, reusing the old one's space
+    frame.setLength(0);
+    frame.append(desmondNews()).append('\n');
+    // Display other auxilliary info
+    frame.append("Current coordinates: (").append(player.getX()).append(", ")
+      .append(player.getY()).append(")\n");
+    frame.append("Home point: ").append(collision.getHomePoint()).append('\n');
+    frame.append("Turn number: ").append(turnCounter).append('\n');
+    // Display the map
+    this.displayMap();
+    // print the whole frame with one write
+    if (ansi != null) {
+      ansi.draw(frame, out);
+    }
+    else {
+      out.append(frame);
+    }
+  }
+  
+  /**
+   * Returns the line at the top of the display, telling the user how close Desmond is.
+   * @return the news about Desmond
+   */
+  private String desmondNews() {
+    // absolute difference in X and Y between the player and Desmond
+    int absDiffX, absDiffY;
+    absDiffX = Math.abs(player.getX() - desmond.getX());
+    absDiffY = Math.abs(player.getY() - desmond.getY());
+    
+    // If the player is on top of Desmond and can pick him up
+    if (absDiffX == 0 && absDiffY == 0) {
+      if (player.isHolding()) {
+        // Desmond follows the player, so this will always show when the player has Desmond
+        return "You have Desmond! Get back to the front door.";
+      }
+      else {
+        // Let the user know that Desmond can be picked up
+        return "You can now pick up Desmond! Use the 'p' command.";
+      }
+    }
+    // If Desmond is within "warning range" (out of sight, but still close-ish)
+    else if ((absDiffX <= WARN_DIST) && (absDiffY <= WARN_DIST)) {
+      // If Desmond is in "sight range" (visible on the map)
+      if ((absDiffX <= SIGHT_DIST) && (absDiffY <= SIGHT_DIST)) {
+        return "Desmond is in view. Look for the 'D' symbol on the map.";
+      }
+      else {
+        // otherwise, he's outside
+        return "Desmond is close, but not quite within sight.";
+      }
+    }
+    else {
+      // Desmond is not in the area you've been searching.
+      return "Desmond isn't around these parts.";
+    }
+  }
+  
+  /**
+   * Updates the game state of all objects.
+   */
+  public void updateAllObjects() {
+    // update the player
+    player.doTick(this);
+    // The player moves in straight lines, so the box around where it
+    // starts and ends covers every tile it might have visited
+    for (MapFrame f : mapFrames) {
+      f.includePlayer(player.getX(), player.getY());
+    }
+    // update Desmond
+    desmond.doTick(this);
+    // update the enemies
+    // (indexed, so that no iterator is created every turn)
+    for (int i = 0; i < enemies.size(); i++) {
+      enemies.get(i).doTick(this);
+    }
+  }
+  
+  /**
+   * Updates the score and turn counter.
+   */
+  private void updateCounters() {
+    // diffX, diffY: Vector subtraction between the player and Desmond
+    int diffX, diffY;
+    // turnValue: the points contributed by the current turn.
+    int turnValue;
+    
+    diffX = player.getX() - desmond.getX();
+    diffY = player.getY() - desmond.getY();
+    
+    // Turn value is set according to Manhattan distance,
+    // as this represents the minimum number of single-tile
+    // moves needed to reach Desmond.
+    turnValue = Math.abs(diffX) + Math.abs(diffY);
+    this.points += turnValue;
+    
+    // add one to the turn counter
+    this.turnCounter++;
+  }
+  
+  /**
+   * Initializes the collision map and home point. This opens the map file
+   * at {@link GameState#MAP_PATH} if there is one, otherwise it uses the
+   * built-in map.
+   * @return the collision map.
+   */
+  private static CollisionMap initCollision() {
+    if (!Files.exists(MAP_PATH)) {
+      return boardCollision();
+    }
     try {
-      this.signal.acquire();
-    } catch (InterruptedException e) {
-      // This shouldn't happen, but if it does, crash and burn.
-      throw new RuntimeException(e);
+      return MapFile.open(MAP_PATH);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+  
+  /**
+   * Creates a collision map from the built-in map.
+   * @return the collision map.
+   */
+  static CollisionMap boardCollision() {
+    // the eventual collision map
+    DenseCollisionMap cMap = new DenseCollisionMap(MAP_SIZE, MAP_SIZE);
+    
+    Point homePoint = null;
+    
+    // Copy pre-mapped walls
+    for (int y = 0; y < MAP_SIZE; y++) {
+      for (int x = 0; x < MAP_SIZE; x++) {
+        // Special handling for '!', as it represents the home point
+        if (MAP_BOARD[y][x] == '!') {
+          // if the home point wasn't set earlier, this is what it is.
+          if (homePoint == null)
+            homePoint = new Point(x, y);
+        }
+        else {
+          // Anything other than empty space is a wall.
+          cMap.setWall(x, y, MAP_BOARD[y][x] != ' ');
+        }
+      }
+    }
+    // Set the home point found earlier
+    cMap.setHomePoint(homePoint);
+    
+    return cMap;
+  }
+  
+  // COMMAND IMPLEMENTATIONS
+  // =========================================
+  
+  /**
+   * Initializes the default command parser, where commands modify game state.
+   * @return
+   */
+  private CommandParser initCommandParser() {
+    // Create the command parser
+    CommandParser res = new CommandParser();
+    // Register all commands.
+    // this::method is a method reference: Java automatically
+    // converts it to an appropriate anonymous class calling
+    // the method.
+    res.registerCommand("help", this::cmdHelp);
+    res.registerCommand("w", this::cmdMove);
+    res.registerCommand("a", this::cmdMove);
+    res.registerCommand("s", this::cmdMove);
+    res.registerCommand("d", this::cmdMove);
+    res.registerCommand("p", this::cmdPickup);
+    res.registerCommand("debug", this::cmdDebug);
+    res.registerCommand("give-up", this::cmdGiveUp);
+    // Fast paths for the commands used every turn
+    res.registerFastCommand('w', 1, (dist) -> move(0, dist));
+    res.registerFastCommand('a', 1, (dist) -> move(1, dist));
+    res.registerFastCommand('s', 1, (dist) -> move(2, dist));
+    res.registerFastCommand('d', 1, (dist) -> move(3, dist));
+    res.registerFastCommand('p', this::pickup);
+    
+    return res;
+  }
+  
+  /**
+   * Implementation of the "help" command.
+   * @param args the arguments to the command
+   * @return 1
+   */
+  private int cmdHelp(String[] args) {
+    // sub-commands for help
+    if (args.length == 2) {
+      // Debugging help (only works if debugging is enabled)
+      if (args[1].equals("debug")) {
+        if (!debugEnabled) {
+          out.println("Debugging is NOT enabled.");
+          return 1;
+        }
+        out.println("Here's a list of commands for debugging:");
+        out.println("========================================");
+        out.println("debug desmond");
+        out.println("  Prints Desmond's current grid coordinates.");
+        out.println("debug force-win");
+        out.println("  Magically causes you to win.");
+        out.println("debug quit");
+        out.println("  Immediately shuts down the program.");
+        out.println("========================================");
+        return 1;
+      }
+      // Legend for the map
+      if (args[1].equals("legend")) {
+        out.println("Here's a legend:");
+        out.println("============================================================");
+        out.println("BRACKETS");
+        out.println("[ ] - unvisited");
+        out.println("( ) - visited");
+        out.println("{ } - interactable (i.e. robot can or has picked up Desmond)");
+        out.println();
+        out.println("TILES");
+        out.println("? - unvisited and out of sight");
+        out.println("$ - visited, but out of sight");
+        out.println();
+        out.println("R - robot");
+        out.println("x - wall");
+        out.println("! - front door");
+        out.println("D - Desmond");
+        out.println("E - enemy");
+        out.println("============================================================");
+        return 1;
+      }
+    }
+    // regular help (commands)
+    out.println("Here's a list of commands that you can issue to the robot:");
+    out.println("==========================================================");
+    out.println("w <dist>");
+    out.println("  Try to move north by <dist> metres.");
+    out.println("a <dist>");
+    out.println("  Try to move west by <dist> metres.");
+    out.println("s <dist>");
+    out.println("  Try to move south by <dist> metres.");
+    out.println("d <dist>");
+    out.println("  Try to move east by <dist> metres.");
+    out.println("NOTE 0: the robot can only move up to 3 metres at a time.");
+    out.println("NOTE 1: if no distance is specified, the default is 1.");
+    out.println("NOTE 2: several commands can be given at once, separated by");
+    out.println("  semicolons (e.g. w 3; d 2). The map is shown once they're done.");
+    out.println();
+    out.println("p");
+    out.println("  Pick up Desmond. This only works if the robot and Desmond ");
+    out.println("  are on the same tile (indicated using curly brackets {})");
+    out.println();
+    out.println("give-up");
+    out.println("  Give up on this game. (then again, why would you??)");
+    out.println();
+    out.println("help");
+    out.println("  Show the command list again, in case you forget.");
+    out.println("help legend");
+    out.println("  Show a legend of the map, in case you are confused.");
+    out.println("help debug");
+    out.println("  Show a list of debugging commands.");
+    out.println("  (e.g. forcing a win, showing Desmond's position, etc...)");
+    out.println("==========================================================");
+    
+    return 1;
+  }
+  
+  /**
+   * Implementation of the "w", "a", "s", and "d" commands.
+   * @param args the arguments to the command
+   * @return 0
+   */
+  private void cmdMove(String[] args) {
+    int dist;
+    // check if there are too many arguments
+    if (args.length > 2) {
+      String errorMessage = String.format(
+        "Command %1$s only takes one argument (%1$s <dist>)", args[0]);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    
+    // check if there are exactly two arguments
+    // note that args[0] is always the command name
+    if (args.length == 2) {
+      dist = Integer.parseInt(args[1]);
+    }
+    else {
+      // default distance is 1, since that's intuitive
+      dist = 1;
+    }
+    
+    // use args[0] to check which direction to move
+    // set the player's action accordingly
+    switch (args[0].charAt(0)) {
+    case 'w': {
+      move(0, dist);
+    } break;
+    case 'a': {
+      move(1, dist);
+    } break;
+    case 's': {
+      move(2, dist);
+    } break;
+    case 'd': {
+      move(3, dist);
+    } break;
+    }
+  }
+  
+  /**
+   * Sets the player's action to move, if the distance is in range.
+   * @param dir the direction (0-3: north, west, south, east)
+   * @param dist the distance
+   * @return 0
+   */
+  private int move(int dir, int dist) {
+    // ensure that the specified distance is in range
+    if (dist < MIN_MOVE_DIST || dist > MAX_MOVE_DIST) {
+      String errorMessage = String.format("The robot can only move %d-%d tiles. (got %d)", MIN_MOVE_DIST, MAX_MOVE_DIST, dist);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    player.setAction(Player.Action.MOVE, MOVE_PARAMS[dir * (MAX_MOVE_DIST - MIN_MOVE_DIST + 1) + dist - MIN_MOVE_DIST]);
+    nextAction = Replay.packMove(dir, dist);
+    return 0;
+  }
+  
+  /**
+   * Implementation of the "p" command.
+   * @param args the arguments to the command
+   * @return 0
+   */
+  private int cmdPickup(String[] args) {
+    // check if there are too many arguments
+    if (args.length != 1) {
+      String errorMessage = String.format(
+        "Command %1$s takes no arguments", args[0]);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    
+    return pickup();
+  }
+  
+  /**
+   * Sets the player's action to pick up Desmond.
+   * @return 0
+   */
+  private int pickup() {
+    player.setAction(Player.Action.PICKUP, NO_PARAMS);
+    nextAction = Replay.PICKUP;
+    return 0;
+  }
+  
+  /**
+   * Implementation of the "debug" command.
+   * @param args the arguments to the command
+   * @return 0 or 1, depending on whether the sub-command needs to advance gameplay
+   */
+  private int cmdDebug(String[] args) {
+    // Debug mode is a privilege, not a right (haha)
+    if (!debugEnabled) {
+      throw new IllegalStateException("Debug mode is not enabled.");
+    }
+    
+    // Debug mode always takes a 2nd option
+    if (args.length != 2) {
+      String errorMessage = String.format(
+        "Command %1$s only takes two arguments (%1$s <option...>); "
+        + "see 'help debug' for more info", args[0]);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    
+    if (args[1].equals("desmond")) {
+      // print Desmond's position
+      out.printf("Desmond's position is %s\n", desmond.getPos());
+      return 1;
+    }
+    else if (args[1].equals("quit")) {
+      // exit the game forcefully
+      quitAction.run();
+    }
+    else if (args[1].equals("force-win")) {
+      // instantly win the game
+      this.triggerWin();
+      return 0;
+    }
+    
+    return 1;
+  }
+  
+  private void cmdGiveUp(String[] args) {
+    out.println("You just gave up on poor Desmond. How could you??");
+    this.triggerGameOver();
+  }
+}
+
+
+// SIMULATION
+// ==========================
+
+/**
+ * Supplies commands to a {@link GameState} that is being played
+ * without the console.
+ * @see GameState#playHeadless(MoveSource, int)
+ */
+interface MoveSource {
+  /**
+   * Returns the next command line to execute. This is given exactly as
+   * a user would type it (e.g. "w 3").
+   * @param gs the game state being played
+   * @return the next command line, or null to give up
+   */
+  String nextMove(GameState gs);
+}
+
+/**
+ * Move source that plays back a fixed list of command lines.
+ */
+class ScriptedMoveSource implements MoveSource {
+  /**
+   * Constructs a move source playing back a list of command lines.
+   * @param lines the command lines, in order
+   */
+  public ScriptedMoveSource(List<String> lines) {
+    this.lines = lines;
+    this.index = 0;
+  }
+  
+  /**
+   * Reads a script file, with one command line per line.
+   * @param p the path to the script
+   * @return a move source playing back the script
+   * @throws IOException if the script can't be read
+   */
+  public static ScriptedMoveSource fromFile(Path p) throws IOException {
+    return new ScriptedMoveSource(Files.readAllLines(p));
+  }
+
+  @Override
+  public String nextMove(GameState gs) {
+    // null signals that the script has run out
+    if (index >= lines.size()) {
+      return null;
     }
+    return lines.get(index++);
+  }
+  
+  // The command lines to play back.
+  private List<String> lines;
+  // Index of the next command line.
+  private int index;
+}
+
+/**
+ * Move source that plays like a (somewhat impatient) person would.
+ * It cheats, since it can see Desmond from anywhere on the map, but
+ * otherwise just heads straight for him, then straight for home.
+ * When it is blocked, or about to walk into a zombie, it wanders.
+ */
+class GreedyMoveSource implements MoveSource {
+  // Commands for each direction, in the order used by CollisionMap.tryMove
+  private static final String[] DIR_COMMANDS = {"w", "a", "s", "d"};
+  // Furthest the robot can move in one turn
+  private static final int MAX_DIST = 3;
+  // There is a 1/WANDER_DEN chance of wandering even if the path is clear
+  private static final int WANDER_DEN = 8;
+
+  @Override
+  public String nextMove(GameState gs) {
+    // the robot's current position
+    Point pos = gs.getPlayer().getPos();
+    // where the robot is trying to get to
+    Point target;
+    // vector from the robot to the target
+    Point diff;
+    // direction and distance to move
+    int dir, dist;
+    // where the chosen move would end up
+    Point next;
     
-    // Safely return if the system has been closed in the meantime
-    if (this.synth == null)
-      return;
-    
-    this.transitionState = state;
-    // True if the glockenspiel and snare drum should be heard 
-    // after the transition, respectively
-    boolean glockenspielEnable = state >= 1;
-    boolean snareDrumEnable = state >= 2;
-    // The current volume of the glockenspiel and snare drum 
-    // channels, respectively
-    int glockenspielVolume = MidiUtils.getVolume(synth, GLOCKENSPIEL_CHANNEL);
-    int snareDrumVolume = MidiUtils.getVolume(synth, SNARE_DRUM_CHANNEL);
-    
-    // List and array of inputs respectively
-    List<Integer> fadeInList = new ArrayList<>();
-    List<Integer> fadeOutList = new ArrayList<>();
-    
-    // Check if the glockenspiel needs to be transitioned
-    if (glockenspielEnable && glockenspielVolume != 100) {
-      fadeInList.add(GLOCKENSPIEL_CHANNEL);
+    // Go for Desmond first, then go home
+    if (gs.getPlayer().isHolding()) {
+      target = gs.getCollision().getHomePoint();
     }
-    else if (!glockenspielEnable && glockenspielVolume != 0) {
-      fadeOutList.add(GLOCKENSPIEL_CHANNEL);
-      
+    else if (pos.equals(gs.getDesmond().getPos())) {
+      return "p";
+    }
+    else {
+      target = gs.getDesmond().getPos();
     }
     
-    // Check if the snare drum needs to be transitioned
-    if (snareDrumEnable && snareDrumVolume != 100) {
-      fadeInList.add(SNARE_DRUM_CHANNEL);
-      
+    // Move along whichever axis is further away
+    diff = target.sub(pos);
+    if (Math.abs(diff.x) >= Math.abs(diff.y)) {
+      dir = (diff.x < 0) ? 1 : 3;
+      dist = Math.abs(diff.x);
     }
-    else if (!snareDrumEnable && snareDrumVolume != 0) {
-      fadeOutList.add(SNARE_DRUM_CHANNEL);
+    else {
+      dir = (diff.y < 0) ? 0 : 2;
+      dist = Math.abs(diff.y);
     }
+    dist = Math.min(dist, MAX_DIST);
     
-    // If there are no transitions to schedule, exit now
-    if (fadeInList.size() == 0 && fadeOutList.size() == 0) {
-      this.signal.release();
-      return;
+    // Wander if the move goes nowhere or ends on a zombie
+    next = gs.getCollision().tryMove(pos, dir, dist);
+    if (next.equals(pos) || gs.checkEnemies(next) != null 
+      || Utils.randomChance(gs.getRandom(), 1, WANDER_DEN)) {
+      dir = Utils.randomInt(gs.getRandom(), 0, 4);
+      dist = 1;
     }
+    return DIR_COMMANDS[dir] + " " + dist;
+  }
+}
+
+/**
+ * Tallies the results of simulated games. Each thread keeps its own tally,
+ * and they are merged at the end, so no locking is needed.
+ */
+class SimulationStats {
+  // Width of each bucket in the score histogram
+  private static final int BUCKET_WIDTH = 25;
+  // Number of buckets in the score histogram (the last one is open-ended)
+  private static final int NUM_BUCKETS = 20;
   
-    // schedule the transitions
-    new FaderThread(TRANSITION_TIME, fadeInList, fadeOutList).start();
+  /**
+   * Constructs an empty tally.
+   */
+  public SimulationStats() {
+    this.games = 0;
+    this.wins = 0;
+    this.totalTurns = 0;
+    this.totalWinPoints = 0;
+    this.bestWinPoints = Integer.MAX_VALUE;
+    this.histogram = new long[NUM_BUCKETS];
   }
   
   /**
-   * Closes the MusicEngine, freeing all resources it uses.
+   * Records the result of a finished game.
+   * @param gs the game state, after the game has ended
    */
-  @Override
-  public void close() {
-    // close all MIDI objects
-    this.musicSeqr.close();
-    this.synth.close();
-    
-    // set the synth to null as a sentinel
-    this.synth = null;
+  public void record(GameState gs) {
+    games++;
+    totalTurns += gs.getTurnCounter();
+    // only wins get a score on the leaderboard
+    if (gs.getLastResult() == GameState.Result.WIN) {
+      wins++;
+      totalWinPoints += gs.getPoints();
+      bestWinPoints = Math.min(bestWinPoints, gs.getPoints());
+      histogram[Math.min(gs.getPoints() / BUCKET_WIDTH, NUM_BUCKETS - 1)]++;
+    }
   }
   
   /**
-   * Initializes the music sequencer. This sequencer's job is to actually play
-   * the music, and loop it.
-   * @return the music sequencer.
-   * @throws MidiUnavailableException if, for some reason, the sequencer can't be created
-   * @throws InvalidMidiDataException if, for some reason, the MIDI file is invalid
-   * @throws IOException if, for some reason, the MIDI file can't be read
+   * Adds another tally's results to this one.
+   * @param that the other tally
+   * @return this tally
    */
-  private static Sequencer initMusicSeqr() throws MidiUnavailableException, InvalidMidiDataException, IOException {
-    final Path MIDI_PATH = Paths.get("./main-theme.mid").toRealPath();
-    
-    
-    // returned sequencer
-    Sequencer seqr;
-    // sequence for the sequencer
-    Sequence seq;
-    
-    // load the MIDI file
-    seq = MidiSystem.getSequence(MIDI_PATH.toFile());
+  public SimulationStats merge(SimulationStats that) {
+    this.games += that.games;
+    this.wins += that.wins;
+    this.totalTurns += that.totalTurns;
+    this.totalWinPoints += that.totalWinPoints;
+    this.bestWinPoints = Math.min(this.bestWinPoints, that.bestWinPoints);
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      this.histogram[i] += that.histogram[i];
+    }
+    return this;
+  }
+  
+  /**
+   * Prints a summary of this tally.
+   * @param out the stream to print to
+   * @param elapsedNanos how long the games took to play, in nanoseconds
+   */
+  public void print(PrintStream out, long elapsedNanos) {
+    // elapsed time in seconds
+    double seconds = elapsedNanos / 1e9;
     
-    // setup the sequencer
-    seqr = MidiSystem.getSequencer(false);
-    seqr.setSequence(seq);
+    out.printf("Games:       %d\n", games);
+    out.printf("Wins:        %d (%.2f%%)\n", wins, 100.0 * wins / Math.max(games, 1));
+    out.printf("Losses:      %d\n", games - wins);
+    out.printf("Avg. turns:  %.2f\n", (double) totalTurns / Math.max(games, 1));
+    if (wins > 0) {
+      out.printf("Avg. score:  %.2f (wins only)\n", (double) totalWinPoints / wins);
+      out.printf("Best score:  %d\n", bestWinPoints);
+      printHistogram(out);
+    }
+    out.printf("Time:        %.3f s\n", seconds);
+    out.printf("Games/sec:   %.0f\n", games / seconds);
+  }
+  
+  /**
+   * Prints the distribution of scores from won games.
+   * @param out the stream to print to
+   */
+  private void printHistogram(PrintStream out) {
+    final int BAR_WIDTH = 40;
+    // the most games in any one bucket
+    long maxCount = 0;
+    // label for the current bucket
+    String label;
     
-    // Loop runs from the 8th bar to the end of the song
-    // It will always be looped until faded out
-    seqr.setLoopStartPoint(MAIN_LOOPBACK_TICK);
-    seqr.setLoopEndPoint(-1);
-    seqr.setLoopCount(Sequencer.LOOP_CONTINUOUSLY);
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      maxCount = Math.max(maxCount, histogram[i]);
+    }
+    out.println("Score distribution (wins only):");
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      if (i == NUM_BUCKETS - 1) {
+        label = String.format("%d+", i * BUCKET_WIDTH);
+      }
+      else {
+        label = String.format("%d-%d", i * BUCKET_WIDTH, (i + 1) * BUCKET_WIDTH - 1);
+      }
+      out.printf("%9s | %-" + BAR_WIDTH + "s %d\n", label, 
+        Utils.repeatString((int) (BAR_WIDTH * histogram[i] / maxCount), "#"), histogram[i]);
+    }
+  }
+  
+  // number of games played
+  private long games;
+  // number of games won
+  private long wins;
+  // number of turns taken over all games
+  private long totalTurns;
+  // sum of the points of all won games
+  private long totalWinPoints;
+  // lowest (best) points of all won games
+  private int bestWinPoints;
+  // number of won games with scores in each bucket
+  private long[] histogram;
+}
+
+/**
+ * Plays many games back-to-back, without the console.
+ */
+class Simulator {
+  /**
+   * This class should not be constructed.
+   */
+  private Simulator() {}
+  
+  /**
+   * Plays a range of games, using one game state. Game {@code i} is seeded
+   * with {@code seed + i}, so the same games are played no matter how the
+   * range is split up.
+   * @param first the number of the first game
+   * @param games the number of games to play
+   * @param numZombies the number of zombies per game
+   * @param maxTurns the number of turns before a game is forfeited
+   * @param sources creates a fresh {@link MoveSource} for each game
+   * @param maps creates the map for each game from the game's seed,
+   * or null to play every game on the default map
+   * @param seed the seed for game 0
+   * @return the tally of the results
+   */
+  public static SimulationStats run(int first, int games, int numZombies, int maxTurns,
+    Supplier<MoveSource> sources, LongFunction<CollisionMap> maps, long seed) {
+    // the game state, reused for each game
+    GameState gs = new GameState(Utils.nullPrintStream());
+    // the tally of results
+    SimulationStats stats = new SimulationStats();
     
-    return seqr;
+    if (maps == null)
+      gs.setNumZombies(numZombies);
+    for (int i = first; i < first + games; i++) {
+      if (maps != null)
+        gs.setCollision(maps.apply(seed + i), numZombies);
+      gs.initGame("simulation", seed + i);
+      gs.playHeadless(sources.get(), maxTurns);
+      stats.record(gs);
+    }
+    return stats;
   }
   
+  /**
+   * Plays a number of games, split across multiple threads. Each batch of games
+   * gets its own game state and tally, so the threads share nothing until
+   * the tallies are merged.
+   * @param games the number of games to play
+   * @param numZombies the number of zombies per game
+   * @param maxTurns the number of turns before a game is forfeited
+   * @param sources creates a fresh {@link MoveSource} for each game. This is
+   * called from multiple threads.
+   * @param maps creates the map for each game from the game's seed, or null
+   * to play every game on the default map. This is called from multiple threads.
+   * @param threads the number of threads to use
+   * @param seed the seed for game 0 (see {@link Simulator#run})
+   * @return the tally of the results
+   */
+  public static SimulationStats runParallel(int games, int numZombies, int maxTurns,
+    Supplier<MoveSource> sources, LongFunction<CollisionMap> maps, int threads, long seed) {
+    // the pool running the games
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    // split into enough batches to keep every thread busy,
+    // without making the batches so small that setup dominates
+    int batchSize = Math.max(MIN_BATCH_SIZE, games / (threads * BATCHES_PER_THREAD));
+    
+    try {
+      return pool.invoke(new SimulationTask(0, games, batchSize, numZombies, maxTurns, 
+        sources, maps, seed));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
   
-  // Sequencer with actual music.
-  private Sequencer musicSeqr;
-  // Output synthesizer. Doubles as a sentinel when closing.
-  private Synthesizer synth;
-  // Current music state. 
-  // 0 = no glockenspiel or snare drum
-  // 1 = glockenspiel
-  // 2 = glockenspiel and snare drum
-  private int transitionState;
-  // Mutex for synchronization.
-  private Semaphore signal;
+  // Smallest number of games in a batch.
+  private static final int MIN_BATCH_SIZE = 64;
+  // Number of batches to aim for per thread, so that fast threads can steal work.
+  private static final int BATCHES_PER_THREAD = 8;
   
   /**
-   * Thread handling transitions.
+   * Task playing a range of games. Splits itself in half until
+   * the range is small enough to play directly.
    */
-  private class FaderThread extends Thread {
+  private static class SimulationTask extends RecursiveTask<SimulationStats> {
     /**
-     * Constructs a new fader thread that fades a specific set of channels.
-     * It will also free this {@link MusicEngine}'s semaphore.
-     * @param fadeTime the time spent fading
-     * @param fadeInChannels the channels to fade in
-     * @param fadeOutChannels the channels to fade out
-     * @param cleanup a function run before releasing the semaphore
+     * I never cared about this. Eclipse is complaining about it though.
      */
-    public FaderThread(long fadeTime, List<Integer> fadeInChannels, 
-      List<Integer> fadeOutChannels, Runnable cleanup) {
-      super();
-      // stores remainder after dividing fadeTime by 100
-      long remainder;
-      
-      // Save references to mutex, synth, fade lists, and cleanup
-      this.fadeInChannels = fadeInChannels;
-      this.fadeOutChannels = fadeOutChannels;
-      this.cleanup = cleanup;
-      
-      // Convert fade time to ms + ns
-      this.intervalMs = fadeTime / 100;
-      // number of 1/100ths of a millisecond to add on to the sleep length
-      remainder = fadeTime % 100;
-      // 0.01 ms = 10 μs = 10 000 ns
-      this.intervalNs = (int) (remainder * 10000);
-    }
+    private static final long serialVersionUID = 1L;
     
     /**
-     * Constructs a new fader thread that fades a specific set of channels.
-     * It will also free this {@link MusicEngine}'s semaphore.
-     * @param fadeTime the time spent fading
-     * @param fadeInChannels the channels to fade in
-     * @param fadeOutChannels the channels to fade out
+     * Constructs a task playing games {@code start} (inclusive) to {@code end} (exclusive).
+     * @param start the first game
+     * @param end one past the last game
+     * @param batchSize the most games to play without splitting
+     * @param numZombies the number of zombies per game
+     * @param maxTurns the number of turns before a game is forfeited
+     * @param sources creates a fresh {@link MoveSource} for each game
+     * @param maps creates the map for each game, or null for the default map
+     * @param seed the seed for game 0
      */
-    public FaderThread(long fadeTime,
-      List<Integer> fadeInChannels, List<Integer> fadeOutChannels) {
-      this(fadeTime, fadeInChannels, fadeOutChannels, null);
+    public SimulationTask(int start, int end, int batchSize, int numZombies, int maxTurns,
+      Supplier<MoveSource> sources, LongFunction<CollisionMap> maps, long seed) {
+      this.start = start;
+      this.end = end;
+      this.batchSize = batchSize;
+      this.numZombies = numZombies;
+      this.maxTurns = maxTurns;
+      this.sources = sources;
+      this.maps = maps;
+      this.seed = seed;
     }
     
-    /**
-     * Implements the actual fading. This has to be done in a separate
-     * thread to avoid clogging up the main thread while the transition
-     * occurs.
-     */
     @Override
-    public void run() {
-      int fadeOutVol;
-      try {
-          
-        // Fade either goes from 1-100 or 99-0
-        for (int vol = 1; vol <= 100; vol++) {
-          fadeOutVol = 100 - vol;
-          try {
-            // sleep based on the computed interval between volume changes
-            Thread.sleep(this.intervalMs, this.intervalNs);
-          } catch (InterruptedException e) {
-            // Stop if interrupted. This still runs the finally block, so
-            // no harm is done
-            return;
-          }
-          
-          // If there are fade in channels, set their volumes
-          if (fadeInChannels != null) {
-            for (Integer fadeIn : fadeInChannels) {
-              MidiUtils.setVolume(MusicEngine.this.synth, fadeIn, vol);
-            }
-          }
-          // Similarly for fade out
-          if (fadeOutChannels != null) {
-            for (Integer fadeOut : fadeOutChannels) {
-              MidiUtils.setVolume(MusicEngine.this.synth, fadeOut, fadeOutVol);
-            }
-          }
-        }
-      }
-      finally {
-        // run any post-fade cleanup
-        if (cleanup != null)
-          cleanup.run();
-        // free the mutex
-        MusicEngine.this.signal.release();
+    protected SimulationStats compute() {
+      // midpoint of the range, if it needs to be split
+      int mid;
+      // the second half of the range
+      SimulationTask right;
+      
+      // Small enough, play the games on this thread
+      if (end - start <= batchSize) {
+        return Simulator.run(start, end - start, numZombies, maxTurns, sources, maps, seed);
       }
+      // Otherwise, split in half: fork the right half and play the left half
+      mid = (start + end) >>> 1;
+      right = new SimulationTask(mid, end, batchSize, numZombies, maxTurns, sources, maps, seed);
+      right.fork();
+      return new SimulationTask(start, mid, batchSize, numZombies, maxTurns, sources, maps, seed)
+        .compute().merge(right.join());
     }
     
-    // List of channels to fade in
-    private List<Integer> fadeInChannels;
-    // List of channels to fade out
-    private List<Integer> fadeOutChannels;
-    
-    // Function to run on cleanup (possibly null, in that case, does nothing).
-    private Runnable cleanup;
-    
-    // Number of milliseconds to wait between volume changes.
-    private long intervalMs;
-    // Number of additional nanoseconds to wait between volume changes.
-    private int intervalNs;
+    // Range of games to play.
+    private int start, end;
+    // Most games to play without splitting.
+    private int batchSize;
+    // Game settings.
+    private int numZombies, maxTurns;
+    // Creates move sources for each game.
+    private Supplier<MoveSource> sources;
+    // Creates the map for each game (null for the default map).
+    private LongFunction<CollisionMap> maps;
+    // Seed for game 0.
+    private long seed;
   }
-  
 }
 
-// LEADERBOARD SYSTEM
-// ==========================
-
 /**
- * Represents a single score record on the leaderboard.
+ * A recording of one game, which can be played again exactly as it happened.
+ * Games are deterministic (see {@link GameState#initGame(String, long)}), so this
+ * only needs the seed, the map, the number of zombies, and the action on each
+ * turn, packed into one byte: 0 to pick up Desmond, or the direction (0-3)
+ * shifted left by 2, plus the distance (1-3) to move. Replays are how scores
+ * on the leaderboard can be checked (see {@link Replay#verify(GameState)}).
+ * Only the game itself may use its random numbers, so games played by a
+ * {@link MoveSource} that uses them (like {@link GreedyMoveSource}) can't be replayed.
+ * 
+ * A replay file has a header:
+ * <pre>
+ * bytes 0-3:   "SDRP"
+ * bytes 4-7:   format version (1)
+ * bytes 8-15:  seed
+ * bytes 16-23: fingerprint of the map (see {@link CollisionMap#fingerprint()})
+ * bytes 24-27: number of zombies
+ * </pre>
+ * followed by the name's length as a varint, the name in UTF-8, the points as a
+ * zigzag varint, the number of turns as a varint, and then the turns. The file
+ * ends with a CRC-32 of everything before it. Everything is little-endian.
  */
-class Score implements Serializable, Comparable<Score> {
-  public static final long serialVersionUID = 1L;
+class Replay {
+  // "SDRP", read as a little-endian int
+  private static final int MAGIC = 0x50524453;
+  // Current version of the format
+  private static final int VERSION = 1;
+  // Size of the header, in bytes
+  private static final int HEADER_SIZE = 28;
+  // Size of the CRC at the end, in bytes
+  private static final int TRAILER_SIZE = 4;
+  // Most bytes a varint can take up
+  private static final int MAX_VARINT_SIZE = 5;
+  // Directory that replays of won games are saved in.
+  static final Path DIR = Paths.get("./replays");
+  // The action for picking up Desmond.
+  static final byte PICKUP = 0;
+  
+  /**
+   * Creates a replay.
+   * @param name the player's name
+   * @param points the points they ended up with
+   * @param seed the game's seed
+   * @param mapId the fingerprint of the map
+   * @param numZombies the number of zombies
+   * @param actions the action on each turn (kept, not copied)
+   */
+  public Replay(String name, int points, long seed, long mapId, int numZombies, byte[] actions) {
+    this.name = name;
+    this.points = points;
+    this.seed = seed;
+    this.mapId = mapId;
+    this.numZombies = numZombies;
+    this.actions = actions;
+  }
+  
+  /**
+   * Packs a move into an action.
+   * @param dir the direction (0-3)
+   * @param dist the distance (1-3)
+   * @return the action
+   */
+  static byte packMove(int dir, int dist) {
+    return (byte) ((dir << 2) | dist);
+  }
+  
+  /**
+   * Returns the direction of a move.
+   * @param action the action, which must be a move
+   * @return the direction (0-3)
+   */
+  static int moveDir(int action) {
+    return (action >> 2) & 3;
+  }
   
-  public Score(String name, int score) {
-    this.name = name;
-    this.points = score;
+  /**
+   * Returns the distance of a move.
+   * @param action the action, which must be a move
+   * @return the distance (1-3)
+   */
+  static int moveDist(int action) {
+    return action & 3;
   }
-
-  @Override
-  public int compareTo(Score that) {
-    // compare the points values first
-    int res = Integer.compare(this.points, that.points);
-    if (res != 0)
-      return res;
-    // if the points values are the same, compare the names
-    return this.name.compareTo(that.name);
+  
+  /**
+   * Checks if a byte is a valid action.
+   * @param action the byte
+   * @return true if it's a pickup, or a move in range
+   */
+  private static boolean isValidAction(byte action) {
+    return action == PICKUP || (action > 0 && action < 16 && moveDist(action) != 0);
   }
+  
   /**
-   * Returns the name associated with this leaderboard entry.
-   * @return the name associated with this leaderboard entry.
+   * Returns the player's name.
+   * @return the player's name
    */
   public String getName() {
     return name;
   }
   
   /**
-   * Returns the point score associated with this leaderboard entry.
-   * @return the point score associated with this leaderboard entry.
+   * Returns the points that the player ended up with.
+   * @return the points
    */
   public int getPoints() {
     return points;
   }
   
-  // name for leaderboard entry
-  private String name;
-  // point score for leaderboard entry
-  private int points;
-}
-
-/**
- * Class implementing a leaderboard. Also handles
- * serialization/deserialization from a file.
- */
-class Leaderboard implements Closeable {
-  
   /**
-   * Reads a leaderboard from a file or creates it if
-   * it does not exist.
-   * @param p the path to save to
-   * @throws IOException if reading the list fails
+   * Returns the game's seed.
+   * @return the seed
    */
-  @SuppressWarnings("unchecked")
-  public Leaderboard(Path p) throws IOException {
-    // set the path
-    this.path = p;
-    if (!Files.exists(p)) {
-      // Create a new empty list (it will be serialized on close)
-      this.list = new ArrayList<>();
-    }
-    else {
-      // Read scoreboard from file
-      try (ObjectInputStream in = new ObjectInputStream(
-        Files.newInputStream(p, StandardOpenOption.READ))) {
-        Object o = in.readObject();
-        if (o.getClass() != ArrayList.class) {
-          throw new IOException("Unexpected object in data file!");
-        }
-        this.list = (ArrayList<Score>) o;
-      }
-      catch (ClassNotFoundException e) {
-        throw new IOException(e);
-      }
-    }
+  public long getSeed() {
+    return seed;
   }
   
   /**
-   * Adds a score to the leaderboard.
-   * @param score the score to add
+   * Returns the fingerprint of the map that the game was played on.
+   * @return the map's fingerprint
    */
-  public void addScore(Score score) {
-    // add this score to the end of the list
-    list.add(score);
-    // perform one iteration of insertion sort,
-    // since the rest is already sorted.
-    for (int i = list.size() - 1; i > 0; i--) {
-      Score s1 = list.get(i), s2 = list.get(i - 1);
-      if (s1.compareTo(s2) <= 0) {
-        return;
-      }
-      list.set(i, s2);
-      list.set(i - 1, s1);
-    }
+  public long getMapId() {
+    return mapId;
   }
   
   /**
-   * Returns all the scores on the leaderboard.
-   * @return the top scores.
+   * Returns the number of zombies in the game.
+   * @return the number of zombies
    */
-  public List<Score> getAllScores() {
-    // Return an immutable list (as a precaution)
-    return Collections.unmodifiableList(list);
+  public int getNumZombies() {
+    return numZombies;
   }
   
-  // List of scores.
-  private ArrayList<Score> list;
-  // Path to save them to on close.
-  private Path path;
-
-  @Override
-  public void close() throws IOException {
-    // Use an ObjectOutputStream to serialize the ArrayList
-    // to a file
-    try (ObjectOutputStream out = new ObjectOutputStream(
-      Files.newOutputStream(path, StandardOpenOption.CREATE, 
-      StandardOpenOption.WRITE))) {
-      out.writeObject(list);
-    }
+  /**
+   * Returns the number of turns in the game.
+   * @return the number of turns
+   */
+  public int getTurns() {
+    return actions.length;
   }
-}
-
-// MAIN GAME STATE CLASS
-// ==========================
-
-/**
- * Class representing the global game state of "Save Desmond".
- */
-class GameState {
+  
   /**
-   * Distance that the player can see.
+   * Returns the action on one turn.
+   * @param turn the turn (0 is the first)
+   * @return the action
    */
-  private static final int SIGHT_DIST = 2;
+  public int getAction(int turn) {
+    return actions[turn];
+  }
+  
   /**
-   * Distance where the game will notify you about Desmond's position.
+   * Returns the score that the replay claims to have earned.
+   * @return the score
    */
-  private static final int WARN_DIST = 5;
+  public Score getScore() {
+    return new Score(name, points);
+  }
+  
   /**
-   * Width and height of the map grid.
+   * Plays the replay, and checks that it really won with the points it says.
+   * @param gs a game state on the same map, with its output going nowhere
+   * @return true if the replay is a win with the right number of points
    */
-  private static final int MAP_SIZE = 20;
+  public boolean verify(GameState gs) {
+    try {
+      return gs.playReplay(this) == GameState.Result.WIN && gs.getPoints() == points;
+    }
+    catch (IllegalArgumentException | IllegalStateException e) {
+      // e.g. it's from a different map
+      return false;
+    }
+  }
+  
   /**
-   * Grid distance from the home point that should be left clear
-   * when spawning.
+   * Reads a replay file.
+   * @param p the path to the file
+   * @return the replay
+   * @throws IOException if the file can't be read or is not a valid replay
    */
-  private static final int CLEAR_ZONE_SIZE = 3;
+  public static Replay read(Path p) throws IOException {
+    // the file
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(p)).order(ByteOrder.LITTLE_ENDIAN);
+    // checks the file, against the CRC stored at the end
+    CRC32 crc = new CRC32();
+    // fields
+    long seed, mapId;
+    int numZombies, points, turns;
+    String name;
+    byte[] bytes;
+    
+    if (buffer.capacity() < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a replay file: " + p);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException(String.format("Unsupported replay file version %d", buffer.getInt(4)));
+    }
+    crc.update(buffer.array(), 0, buffer.capacity() - TRAILER_SIZE);
+    if (buffer.getInt(buffer.capacity() - TRAILER_SIZE) != (int) crc.getValue()) {
+      throw new IOException("Replay file is corrupted: " + p);
+    }
+    seed = buffer.getLong(8);
+    mapId = buffer.getLong(16);
+    numZombies = buffer.getInt(24);
+    
+    buffer.position(HEADER_SIZE);
+    buffer.limit(buffer.capacity() - TRAILER_SIZE);
+    try {
+      name = new String(getBytes(buffer), StandardCharsets.UTF_8);
+      points = ScoreFile.zigzagDecode(ScoreFile.getVarint(buffer));
+      bytes = getBytes(buffer);
+    }
+    catch (BufferUnderflowException | IOException e) {
+      throw new IOException("Replay file is corrupted: " + p, e);
+    }
+    if (numZombies < 0 || buffer.hasRemaining()) {
+      throw new IOException("Replay file is corrupted: " + p);
+    }
+    for (byte action : bytes) {
+      if (!isValidAction(action)) {
+        throw new IOException("Replay file is corrupted: " + p);
+      }
+    }
+    return new Replay(name, points, seed, mapId, numZombies, bytes);
+  }
   
   /**
-   * Map data for the game.
-   * 'x' = wall
-   * '!' = home point
-   * ' ' = empty space
+   * Reads a varint length, then that many bytes.
+   * @param buffer the buffer to read from
+   * @return the bytes
+   * @throws IOException if the length is more than what's left
    */
-  private static final char[][] MAP_BOARD = {
-    {' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', 'x', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', 'x', 'x', 'x', 'x', 'x', 'x'},
-    {' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', 'x', 'x', 'x', 'x', 'x'},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' '},
-    {'x', 'x', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-    {'!', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', 'x', 'x', 'x', 'x'},
-    {'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-    {'x', 'x', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', 'x', 'x', 'x', 'x', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' '},
-    {' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ', 'x', ' ', ' ', 'x', 'x', ' ', ' ', ' ', ' '},
-    {'x', 'x', 'x', 'x', 'x', 'x', 'x', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-    {'x', 'x', 'x', 'x', 'x', 'x', 'x', 'x', ' ', ' ', ' ', 'x', ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' '},
-  };
+  private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+    // the number of bytes
+    int length = ScoreFile.getVarint(buffer);
+    // the bytes
+    byte[] res;
+    
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException(String.format("Invalid length %d", length));
+    }
+    res = new byte[length];
+    buffer.get(res);
+    return res;
+  }
   
   /**
-   * MASTER VARIABLE FOR DEBUG MODE.
-   * SHOULD BE SET TO TRUE FOR THE SUBMITTED PROGRAM.
+   * Writes the replay to a file, replacing it if it exists.
+   * @param p the path to write to
+   * @throws IOException if the file can't be written
    */
-  private static boolean debugEnabled = true;
+  public void write(Path p) throws IOException {
+    // the name, in UTF-8
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    // the whole file
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 3 * MAX_VARINT_SIZE + nameBytes.length + 
+      actions.length + TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // the CRC of the file
+    CRC32 crc = new CRC32();
+    
+    buffer.putInt(MAGIC).putInt(VERSION).putLong(seed).putLong(mapId).putInt(numZombies);
+    ScoreFile.putVarint(buffer, nameBytes.length);
+    buffer.put(nameBytes);
+    ScoreFile.putVarint(buffer, ScoreFile.zigzagEncode(points));
+    ScoreFile.putVarint(buffer, actions.length);
+    buffer.put(actions);
+    crc.update(buffer.array(), 0, buffer.position());
+    buffer.putInt((int) crc.getValue());
+    
+    Files.write(p, Arrays.copyOf(buffer.array(), buffer.position()));
+  }
+  
   /**
-   * The SHA-256 hash of the password.
+   * Saves the replay in {@link Replay#DIR}, named after its seed.
+   * @return the path it was saved to
+   * @throws IOException if the file can't be written
    */
-  private static final byte[] PASSWORD_HASH = {
-    -49, 54, 126, -96, 67, -49, 101, -41, 
-    -30, -91, 40, -58, -20, 104, -97, 42, 
-    -61, 90, -71, -94, 32, -124, -93, 25, 
-    -19, 78, -23, -13, -90, 115, 74, 13
+  public Path save() throws IOException {
+    // the path to save to
+    Path p = DIR.resolve(String.format("%016x.replay", seed));
+    
+    Files.createDirectories(DIR);
+    write(p);
+    return p;
+  }
+  
+  // The player's name, and the points they ended up with.
+  private final String name;
+  private final int points;
+  // The game's seed, the fingerprint of its map, and the number of zombies.
+  private final long seed, mapId;
+  private final int numZombies;
+  // The action on each turn.
+  private final byte[] actions;
+}
+
+// SESSIONS
+// ==========================
+
+/**
+ * One user's trip through the menus and games, played through a pair of streams.
+ * The console is one session, and the server (see {@link GameServer}) runs
+ * one for each connection. Sessions share nothing but the leaderboard.
+ */
+class GameSession implements Runnable {
+  // List of main menu options.
+  private static final String[] mainMenu = {
+      "Play",
+      "Leaderboard",
+      "Enable Debugging",
+      "Exit"
   };
+  // Index of the "Play" option.
+  private static final int PLAY_IDX = 0;
+  // Index of the "Leaderboard" option.
+  private static final int LEADERBOARD_IDX = 1;
   
   /**
-   * Tries to enable debug, using a password.
-   * If debug mode is already enabled, does nothing.
-   * If the password is incorrect, debug mode is not enabled.
-   * @param password the password
-   * @return whether debug mode was enabled.
+   * Constructs a session.
+   * @param in the user's input
+   * @param out the stream to print to
+   * @param gs the game state to play with. It should use the same streams.
+   * @param lb an open {@link Leaderboard} instance to read and save scores
+   * @param me the music engine, or null to play without music
    */
-  public static boolean enableDebug(String password) {
-    if (debugEnabled) {
-      return true;
-    }
-    try {
-      MessageDigest hasher = MessageDigest.getInstance("SHA-256");
-      byte[] hash = hasher.digest(password.getBytes("UTF-8"));
-      // SHA-256 hash is always 32 bytes, no need to check
-      for (int i = 0; i < PASSWORD_HASH.length; i++) {
-        if (hash[i] != PASSWORD_HASH[i]) {
-          return false;
+  public GameSession(BufferedReader in, PrintStream out, GameState gs, Leaderboard lb, MusicEngine me) {
+    this.in = in;
+    this.out = out;
+    this.gs = gs;
+    this.lb = lb;
+    this.me = me;
+  }
+  
+  /**
+   * Shows the title art, then runs the main menu until the user exits.
+   * @throws UncheckedIOException if the user goes away
+   */
+  @Override
+  public void run() {
+    titleArt();
+    while (true) {
+      // main loop
+      int choice = Utils.promptMenu(in, out, "MAIN MENU", mainMenu);
+      
+      // Exit will always be the last option
+      if (choice == mainMenu.length - 1) {
+        break;
+      }
+      // Enable debugging will always be the 2nd last option
+      else if (choice == mainMenu.length - 2) {
+        enableDebug();
+      }
+      else {
+        // select the appropriate option (play, leaderboard, etc.)
+        switch (choice) {
+          case PLAY_IDX: {
+            play();
+          } break;
+          case LEADERBOARD_IDX: {
+            leaderboard();
+          } break;
         }
       }
-      debugEnabled = true;
-      return true;
-    } catch (Exception e) {
-      Utils.printThrowable(e);
-      System.out.println("Cannot enable debug mode.");
-      return false;
     }
   }
   
   /**
-   * Checks if debugging is enabled.
-   * @return true if debugging is enabled, false otherwise
+   * Runs the game, then saves the resultant score to the leaderboard.
    */
-  public static boolean isDebugEnabled() {
-    return debugEnabled;
+  private void play() {
+    String name;
+    
+    // Prompt for the user's name
+    out.print ("What is your name? | ");
+    name = Utils.readLine(in);
+    out.printf("That's a nice name, %1$s.\n\n", name);
+    
+    // Give the user the opportunity to skip the intro
+    out.print("I should tell you what's happened. (type anything to skip) ");
+    
+    // If the user did not say anything, give them the intro
+    if (Utils.readLine(in).isEmpty()) {
+      introText();
+    }
+    // Run the main game loop
+    gs.initGame(name);
+    if (me != null) {
+      me.start();
+    }
+    // Stop the music even if the user goes away mid-game
+    try {
+      while (gs.isRunning()) {
+        gs.gameLoop();
+        if (me != null) {
+          me.transition(gs.getMusicState());
+        }
+      }
+    }
+    finally {
+      if (me != null) {
+        me.stop();
+      }
+    }
+    // Determine how the game ended, and react accordingly
+    switch (gs.getLastResult()) {
+    case WIN: {
+      winScreen();
+    } break;
+    case GAME_OVER: {
+      gameOverScreen();
+    } break;
+    default: {
+      throw new Error("Invalid win?");
+    }
+    }
   }
   
   /**
-   * Enum representing the status of the last win.
+   * Displays the leaderboard, one page at a time. Only the page being shown
+   * is read from the leaderboard, so this doesn't slow down as it grows.
    */
-  public enum Result {
-    WIN,
-    GAME_OVER
-  }
-
-  public GameState() {
-    // Initialize helper objects and states
-    this.running = false;
-    this.lastResult = null;
-    this.collision = initCollision();
-    this.cmdParser = this.initCommandParser();
-    // Don't initialize the game yet
-    this.player = null;
-    this.desmond = null;
-    this.enemies = new ArrayList<>();
+  private void leaderboard() {
+    final int PAGE_SIZE = 10;
+    
+    // position of the first score shown
+    int from = 0;
+    // number of scores on the leaderboard
+    int total;
+    // the user's best score on the leaderboard
+    Score best;
+    // the user's reply
+    String line;
+    
+    do {
+      total = lb.size();
+      best = (lastScore == null) ? null : lb.getBest(lastScore.getName());
+      if (total == 0) {
+        out.println("No leaderboard data available...");
+        return;
+      }
+      from = Math.max(0, Math.min(from, total - 1));
+      printScores(lb.getScores(from, PAGE_SIZE), from, total, best);
+      // Nothing else to see
+      if (total <= PAGE_SIZE && best == null) {
+        return;
+      }
+      
+      out.print("(n)ext page, (p)revious page, (m)y best score, or nothing to go back: ");
+      line = Utils.readLine(in).trim();
+      out.println();
+      if (line.equals("n") && from + PAGE_SIZE < total) {
+        from += PAGE_SIZE;
+      }
+      else if (line.equals("p")) {
+        from -= PAGE_SIZE;
+      }
+      else if (line.equals("m")) {
+        if (best == null) {
+          out.println("You haven't saved Desmond yet.");
+        }
+        else {
+          // Put the user's score in the middle of the page
+          from = lb.getRank(best) - 1 - PAGE_SIZE / 2;
+        }
+      }
+    } while (!line.isEmpty());
   }
-
+  
   /**
-   * Initializes the game.
-   * @param name the name of the user
+   * Prints a table of scores.
+   * @param scores the scores to print
+   * @param from the position of the first score (0 is the best)
+   * @param total the number of scores on the leaderboard
+   * @param best the user's best score, to be marked (or null)
    */
-  public void initGame(String name) {
-    final int NUM_ZOMBIES = 15;
+  private void printScores(List<Score> scores, int from, int total, Score best) {
+    final int RANK_WIDTH = 6;
+    final int NAME_WIDTH = 20;
+    final int POINTS_WIDTH = 5;
     
-    // clear the visited map
-    collision.clearVisited();
-    // Set the home point as visited
-    boolean[][] visited = collision.getVisited();
-    Point homePoint = collision.getHomePoint();
-    visited[homePoint.y][homePoint.x] = true;
+    // the current row's rank and name
+    int rank = from + 1;
+    String currName;
     
-    // Initialize player and Desmond
-    player = new Player(this);
-    desmond = new Desmond(this);
-    // Initialize enemies
-    enemies.clear();
-    for (int i = 0; i < NUM_ZOMBIES; i++) {
-      enemies.add(new Zombie(this));
-    }
+    // table header
+    out.printf("Scores %d-%d of %d\n", from + 1, from + scores.size(), total);
+    out.printf("%-"+RANK_WIDTH+"s | %-"+NAME_WIDTH+"s | %-"+POINTS_WIDTH+"s\n", "Rank", "Name", "Score");
+    out.printf("%s-+-%s-+-%s\n", Utils.repeatString(RANK_WIDTH, "-"), 
+      Utils.repeatString(NAME_WIDTH, "-"), Utils.repeatString(POINTS_WIDTH, "-"));
     
-    // Reset the score and set the "running" flag
-    running = true;
-    points = 0;
-    turnCounter = 0;
-    // Set the user's name
-    this.name = name;
+    // table data (best scores first)
+    for (Score currScore : scores) {
+      currName = currScore.getName();
+      if (currName.length() > NAME_WIDTH) {
+        currName = currName.substring(0, NAME_WIDTH - 3) + "...";
+      }
+      out.printf("%"+RANK_WIDTH+"d | %-"+NAME_WIDTH+"s | %"+POINTS_WIDTH+"d%s\n", rank++, currName, 
+        currScore.getPoints(), (currScore == best) ? " <- you" : "");
+    }
   }
   
   /**
-   * Performs one iteration of the game.
+   * Tries to enable debugging.
    */
-  public void gameLoop() {
-    // the inputted like
+  private void enableDebug() {
     String line;
-    // the result of the last command
-    int cmdResult = -1;
-    // execute ONE command (excluding help)
-    // help commands will not return 0, keeping the loop going
-    do {
-      // Display auxilliary info
-      doAuxilliaryDisplay();
-      // Read a command from the user
-      System.out.print("Input command (\"help\" for help): ");
-      line = Utils.readLine();
-      try {
-        // Try to execute it. If it throws an exception
-        // or returns non-zero, prompt again.
-        cmdResult = this.cmdParser.execute(line);
-        // print a blank line for spacing
-        System.out.println();
-      } catch (CommandException e) {
-        Utils.printThrowable(e);
-        continue;
-      }
-    } while (cmdResult != 0);
     
-    // check if force-win/lose happened
-    if (!running) {
+    // Don't do the password thing if debugging is enabled
+    if (gs.isDebugEnabled()) {
+      out.println("Debugging is already enabled!\n");
       return;
     }
-    
-    // perform update
-    this.updateAllObjects();
-    this.updateCounters();
-    // print a blank line for spacing
-    System.out.println();
+    do {
+      // Prompt for a password
+      out.print("Password (type nothing to exit): ");
+      line = Utils.readLine(in);
+      // If the user typed nothing, exit
+      if (line.isEmpty()) {
+        break;
+      }
+      // Try to enable debugging, and if it succeeds, exit
+      if (gs.enableDebug(line)) {
+        out.println("Debugging is enabled");
+        break;
+      }
+    } while (true);
   }
   
   /**
-   * Triggers a game-over screen.
+   * Displays the lore and instructions.
    */
-  public void triggerGameOver() {
-    // Clear the running flag and set the last result
-    // for a game over
-    running = false;
-    lastResult = Result.GAME_OVER;
+  private void introText() {
+    // first paragraph
+    out.println("The year is 21XX. A zombie apocalypse has befallen humanity. You're lucky -- ");
+    out.println("you made it to a safety shelter in time and have not been plagued. We've still");
+    out.println("been on the lookout for more survivors though, and we have our sights set on a");
+    out.println("local daycare. While most were evacuated from the daycare, one kid named Des-");
+    out.println("-mond was on the potty at the time and missed the call. I'm convinced he's ");
+    out.println("alive though. ");
+    out.print("(Press Enter to continue)");
+    Utils.readLine(in);
+    out.println();
+    
+    // second paragraph
+    out.println("You will be guiding a robot that we've dropped off at the front of the daycare.");
+    out.println("Your job is to find Desmond, pick him up, and bring him back to the front of ");
+    out.println("the daycare; all while avoiding the zombies inside the building. Points in this");
+    out.println("game are added based on a) how many turns you take and b) how close you are to ");
+    out.println("Desmond on each turn. The lower your score is, the better.");
+    out.print("(Press Enter to continue)");
+    Utils.readLine(in);
+    out.println();
+    
+    // third paragraph
+    out.println("To move the robot around, just use \"w\", \"a\", \"s\", and \"d\". Adding a number af-");
+    out.println("-terwards, like \"s 2\" or \"d 3\", allow the robot to clear 2 or 3 tiles in one ");
+    out.println("quick sprint. To pick up Desmond, move on top of him, then use\"p\".");
+    out.print("(Press Enter to continue)");
+    Utils.readLine(in);
+    out.println();
   }
   
   /**
-   * Triggers a win screen.
+   * Displays the title art.
    */
-  public void triggerWin() {
-    // Clear the running flag and set the last result
-    // for a win
-    running = false;
-    lastResult = Result.WIN;
+  private void titleArt() {
+    /*
+     * Title art looks like this. The escapes messed it up.
+     * ==========================================================================
+     * /----   8   |   | +-----      +---\  +----- /---- \   /  /=\  |\  | +---\  
+     * |      / \  |   | |           |    | |      |     |\ /| /   \ | | | |    |
+     * \---\ /   \ \   / +-----      |    | +----- \---\ | v | |   | | | | |    |
+     *     | |---|  \ /  |           |    | |          | |   | \   / | | | |    |
+     * ----/ |   |   v   +-----      +---/  +----- ----/ |   |  \=/  |  \| +---/ 
+     * ==========================================================================
+     */
+    
+    // Display the title art.
+    out.println("==========================================================================");
+    out.println("/----   8   |   | +-----      +---\\  +----- /---- \\   /  /=\\  |\\  | +---\\ ");
+    out.println("|      / \\  |   | |           |    | |      |     |\\ /| /   \\ | | | |    |");
+    out.println("\\---\\ /   \\ \\   / +-----      |    | +----- \\---\\ | v | |   | | | | |    |");
+    out.println("    | |---|  \\ /  |           |    | |          | |   | \\   / | | | |    |");
+    out.println("----/ |   |   v   +-----      +---/  +----- ----/ |   |  \\=/  |  \\| +---/ ");
+    out.println("==========================================================================");
+    out.println("                               By Jacky Guo                               ");
+    out.println();
   }
-  
+
   /**
-   * Checks if the game is running.
-   * @return true if the game is running, false otherwise
+   * Displays a win screen, then saves the current score to the leaderboard.
    */
-  public boolean isRunning() {
-    return running;
+  private void winScreen() {
+    /*
+    This is what it should look like:
+    \   /  /=\  |   |      |   |  /=\  |\  |
+     \ /  /   \ |   |      |   | /   \ | | |
+      Y   |   | |   |      | 8 | |   | | | |
+      |   \   / |   |      |/ \| \   / | | |
+      |    \=/   \=/       /   \  \=/  |  \|
+    */
+    out.println("=========================================");
+    out.println("\\   /  /=\\  |   |      |   |  /=\\  |\\  |");
+    out.println(" \\ /  /   \\ |   |      |   | /   \\ | | |");
+    out.println("  Y   |   | |   |      | 8 | |   | | | |");
+    out.println("  |   \\   / |   |      |/ \\| \\   / | | |");
+    out.println("  |    \\=/   \\=/       /   \\  \\=/  |  \\|");
+    out.println("=========================================");
+    out.printf("Score: %d\n", gs.getPoints());
+    
+    // Give a short epilogue
+    out.printf("Thank you for getting him out safely, %s. His parents have been\n", gs.getName());
+    out.println("waiting for so long, and they've been anxiously waiting to see him.");
+    out.println("(You hear Desmond rushing towards his parents, anxious to hug his mom and dad.)");
+    // add score to leaderboard
+    lastScore = gs.createScore();
+    lb.addScore(lastScore);
+    // and keep the replay, so that the score can be checked
+    try {
+      gs.getReplay().save();
+    }
+    catch (IOException e) {
+      Utils.printThrowable(System.err, e);
+    }
   }
   
   /**
-   * Returns the result of the last game. May be null if
-   * no game has been played yet.
-   * @return the result of the last game, or null if no games have been played
+   * Displays a game over screen.
    */
-  public Result getLastResult() {
-    return lastResult;
+  private void gameOverScreen() {
+    /*
+    This is what it should look like:
+     /---   8   \   / +-----       /=\  |   | +----- +===\
+    /      / \  |\ /| |           /   \ |   | |      |   |
+    |   + /   \ | V | +-----      |   | \   / +----- +===/
+    \   | |---| |   | |           \   /  \ /  |      |\__ 
+     \--+ |   | |   | +-----       \=/    V   +----- |   \
+    */
+    // Display the game over screen.
+    out.println("======================================================");
+    out.println(" /---   8   \\   / +-----       /=\\  |   | +----- +===\\");
+    out.println("/      / \\  |\\ /| |           /   \\ |   | |      |   |");
+    out.println("|   + /   \\ | v | +-----      |   | \\   / +----- +===/");
+    out.println("\\   | |---| |   | |           \\   /  \\ /  |      |\\__ ");
+    out.println(" \\--+ |   | |   | +-----       \\=/    v   +----- |   \\");
+    out.println("======================================================");
   }
   
+  // the user's input
+  private BufferedReader in;
+  // the stream to print to
+  private PrintStream out;
+  // the game state for this session
+  private GameState gs;
+  // the leaderboard, shared with every other session
+  private Leaderboard lb;
+  // the music engine, or null if there's no music
+  private MusicEngine me;
+  // the user's last score this session, or null if they haven't won yet
+  private Score lastScore;
+}
+
+/**
+ * Plays games over TCP. Each connection gets its own {@link GameSession}
+ * and {@link GameState}, running on a thread from a fixed pool. Connections
+ * past the pool's size wait until a session ends. Sessions start with debug
+ * mode off, and "debug quit" only ends that session.
+ */
+class GameServer implements Closeable {
   /**
-   * Returns the {@link CommandParser} for this game state.
-   * @return the {@link CommandParser} for this game state.
+   * Stack size for session threads. Sessions don't recurse, so they don't need
+   * much, and a small stack lets thousands of them run at once.
    */
-  public CommandParser getParser() {
-    return cmdParser;
-  }
-  
+  private static final long SESSION_STACK_SIZE = 256 * 1024;
   /**
-   * Returns the {@link CollisionMap} for this game state.
-   * @return the {@link CollisionMap} for this game state.
+   * Connections that can be waiting to be accepted. The default is too small
+   * for lots of players connecting at once.
    */
-  public CollisionMap getCollision() {
-    return collision;
-  }
+  static final int ACCEPT_BACKLOG = 1024;
   
   /**
-   * Returns the {@link GameEntity} representing the player.
-   * @return the {@link GameEntity} representing the player.
+   * Starts listening for connections. Nothing is accepted until
+   * {@link GameServer#serve()} is called.
+   * @param port the port to listen on, or 0 for any free port
+   * @param maxSessions the most sessions to run at once
+   * @param lb an open {@link Leaderboard} instance, shared by all sessions
+   * @throws IOException if the port can't be listened on
    */
-  public Player getPlayer() {
-    return player;
+  public GameServer(int port, int maxSessions, Leaderboard lb) throws IOException {
+    // the number of session threads created so far, for naming them
+    final AtomicInteger threadCount = new AtomicInteger();
+    
+    if (maxSessions <= 0) {
+      String errorMessage = String.format("Server needs at least 1 session (got %d)", maxSessions);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    this.lb = lb;
+    this.sockets = ConcurrentHashMap.newKeySet();
+    this.pool = Executors.newFixedThreadPool(maxSessions, r -> {
+      Thread t = new Thread(null, r, "session-" + threadCount.incrementAndGet(), SESSION_STACK_SIZE);
+      t.setDaemon(true);
+      return t;
+    });
+    this.serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
   }
   
   /**
-   * Returns the {@link GameEntity} representing Desmond.
-   * @return the {@link GameEntity} representing Desmond.
+   * Returns the port that the server is listening on.
+   * @return the port
    */
-  public Desmond getDesmond() {
-    return desmond;
+  public int getPort() {
+    return serverSocket.getLocalPort();
   }
   
   /**
-   * Returns the current saved name.
-   * @return the current saved name.
+   * Accepts connections until the server is closed, starting a session for each one.
    */
-  public String getName() {
-    return name;
+  public void serve() {
+    // the connection just accepted
+    Socket socket;
+    
+    while (!serverSocket.isClosed()) {
+      try {
+        socket = serverSocket.accept();
+      }
+      catch (IOException e) {
+        // accept() fails when the server is closed, which is how this stops
+        if (!serverSocket.isClosed()) {
+          Utils.printThrowable(System.err, e);
+        }
+        continue;
+      }
+      sockets.add(socket);
+      final Socket session = socket;
+      pool.execute(() -> runSession(session));
+    }
   }
   
   /**
-   * Returns the current saved score.
-   * @return the score.
+   * Runs a session over a connection, then closes it.
+   * @param socket the connection
    */
-  public int getPoints() {
-    return points;
+  private void runSession(Socket socket) {
+    // the session's streams
+    BufferedReader in;
+    PrintStream out;
+    // the session's game state
+    GameState gs;
+    
+    try {
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      // Every print is sent right away, so the player sees the prompt
+      out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, "UTF-8");
+      gs = new GameState(in, out);
+      gs.disableDebug();
+      // Closing the socket makes the session's next read fail, which ends it
+      gs.setQuitAction(() -> closeQuietly(socket));
+      new GameSession(in, out, gs, lb, null).run();
+    }
+    catch (IOException e) {
+      // The connection broke before the session started
+    }
+    catch (UncheckedIOException e) {
+      // The player went away, which is fine. Anything else (like failing
+      // to save a score) is a real problem, so it gets logged.
+      if (!(e.getCause() instanceof EOFException || e.getCause() instanceof SocketException)) {
+        Utils.printThrowable(System.err, e);
+      }
+    }
+    catch (RuntimeException e) {
+      // Don't let one broken session take down the server
+      Utils.printThrowable(System.err, e);
+    }
+    finally {
+      sockets.remove(socket);
+      closeQuietly(socket);
+    }
   }
   
   /**
-   * Creates a new {@link Score} object using the last name and score
-   * in this GameState.
-   * @return the new Score object
+   * Closes a socket, ignoring errors.
+   * @param socket the socket to close
    */
-  public Score createScore() {
-    return new Score(this.name, this.points);
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    }
+    catch (IOException e) {
+      // it's being thrown away anyway
+    }
   }
   
   /**
-   * Checks if an enemy is at a particular position, and returns it if there is.
-   * @param p the point to check.
-   * @return the enemy at that position, or null if there is no enemy
+   * Stops accepting connections and ends every session. Sessions that are
+   * part-way through saving a score are given a moment to finish.
+   * @throws IOException if the server socket can't be closed
    */
-  public GameEntity checkEnemies(Point p) {
-    // iterate over all enemies
-    for (GameEntity enemy : enemies) {
-      // If the current enemy is at the specified position, return it
-      if (enemy.getPos().equals(p)) {
-        return enemy;
-      }
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket socket : sockets) {
+      closeQuietly(socket);
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(5, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    return null;
   }
   
+  // socket accepting connections
+  private ServerSocket serverSocket;
+  // threads running sessions
+  private ExecutorService pool;
+  // connections with a session running
+  private Set<Socket> sockets;
+  // the leaderboard, shared by all sessions
+  private Leaderboard lb;
+}
+
+/**
+ * Plays games over TCP without a thread per connection. One thread waits on all
+ * the connections with a selector, splitting what they send into lines, and a
+ * small pool of workers runs each line through that connection's
+ * {@link GameState}. A player who is thinking about their next move costs
+ * a little memory, but no thread.
+ * 
+ * There are no menus: each connection is asked for a name, then plays
+ * game after game, with wins going on the shared leaderboard. Like
+ * {@link GameServer}, debug mode starts off and "debug quit" only
+ * ends that connection.
+ */
+class NioGameServer implements Closeable {
   /**
-   * Generates a spawning point that:
-   * <ul>
-   * <li>won't be on top of any walls</li>
-   * <li>won't collide with any other spawned entities</li>
-   * <li>won't be too close to the home point</li>
-   * </ul>
-   * @return a suitable spawning point.
+   * Longest line a player can send. Connections sending anything longer are closed.
    */
-  public Point genSpawnPoint() {
-    // home position
-    int homeX = collision.getHomePoint().x, homeY = collision.getHomePoint().y;
-    // width and height of the map
-    int width = collision.width(), height = collision.height();
-    // prospective spawning position
-    int spawnX, spawnY;
-    
-    do {
-      spawnX = Utils.randomInt(0, width);
-      spawnY = Utils.randomInt(0, height);
-      // There are lots of spawning conditions here...
-      // should this be a function?
-      // - out of the cle
-    } while (!(
-      Math.abs(spawnX - homeX) > CLEAR_ZONE_SIZE && 
-      Math.abs(spawnY - homeY) > CLEAR_ZONE_SIZE &&
-      !collision.collides(spawnX, spawnY) && 
-      this.checkEnemies(new Point(spawnX, spawnY)) == null));
-    
-    return new Point(spawnX, spawnY);
-  }
-  
-  public int getMusicState() {
-    // absolute difference in X and Y between the player and Desmond
-    int absDiffX, absDiffY;
-    absDiffX = Math.abs(player.getPos().x - desmond.getPos().x);
-    absDiffY = Math.abs(player.getPos().y - desmond.getPos().y);
-    
-    if (absDiffX > WARN_DIST || absDiffY > WARN_DIST) {
-      // Desmond is outside warning distance
-    	return 0;
-    }
-    else if (player.isHolding()) {
-    	// Desmond is being carried
-    	return 2;
-    }
-    else {
-    	// Desmond is close, but not picked up
-    	return 1;
+  private static final int MAX_LINE_LENGTH = 1024;
+  /**
+   * Most lines from one player that can be waiting to be run. Past this,
+   * nothing more is read from them until the workers catch up.
+   */
+  private static final int MAX_QUEUED_LINES = 256;
+  /**
+   * Most bytes of replies that can be waiting to be sent to one player. Past
+   * this, their lines aren't run until the player reads some of the replies.
+   */
+  private static final int MAX_QUEUED_BYTES = 256 * 1024;
+  /**
+   * Size of the buffer that every connection is read into.
+   */
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  /**
+   * What a player is sent when they connect.
+   */
+  private static final ByteBuffer GREETING = ByteBuffer.wrap(
+    "What is your name? | ".getBytes(StandardCharsets.UTF_8));
+  
+  /**
+   * Starts listening for connections. Nothing is accepted until
+   * {@link NioGameServer#start()} is called.
+   * @param port the port to listen on, or 0 for any free port
+   * @param workers the number of threads running commands
+   * @param lb an open {@link Leaderboard} instance, shared by all players
+   * @throws IOException if the port can't be listened on
+   */
+  public NioGameServer(int port, int workers, Leaderboard lb) throws IOException {
+    // the number of worker threads created so far, for naming them
+    final AtomicInteger threadCount = new AtomicInteger();
+    
+    if (workers <= 0) {
+      String errorMessage = String.format("Server needs at least 1 worker (got %d)", workers);
+      throw new IllegalArgumentException(errorMessage);
     }
+    this.lb = lb;
+    this.workers = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "worker-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    // Games print into their worker's buffer, so idle players don't need one
+    this.replyBuffers = ThreadLocal.withInitial(ReplyBuffer::new);
+    this.pendingUpdates = new ConcurrentLinkedQueue<>();
+    this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(port), GameServer.ACCEPT_BACKLOG);
+    this.serverChannel.configureBlocking(false);
+    this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    this.selectorThread = new Thread(this::selectLoop, "selector");
+    this.selectorThread.setDaemon(true);
+    this.running = true;
   }
   
-  // collision map: handles interactions with walls
-  private CollisionMap collision;
-  // command parser: handles user input and translates it into actions
-  private CommandParser cmdParser;
-  
-  // player: game entity for the robot
-  private Player player;
-  // desmond: game entity for Desmond
-  private Desmond desmond;
-  // enemies: list of game entites containing all zombies
-  // and other enemies/dynamic obstacles
-  private List<GameEntity> enemies;
-  
-  // true if the game is running
-  private boolean running;
-  // the result of the last game.
-  private Result lastResult;
-  
-  // number of points scored
-  private int points;
-  // number of turns taken
-  private int turnCounter;
-  // user's name
-  private String name;
+  /**
+   * Returns the port that the server is listening on.
+   * @return the port
+   */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
   
-  // Internal functions
-  // =========================================
+  /**
+   * Starts accepting connections, on a thread of its own.
+   */
+  public void start() {
+    selectorThread.start();
+  }
   
   /**
-   * Creates and fills a 2D array of map tiles.
-   * @return the 2D array of map tiles.
+   * Waits for connections to do something, then deals with it,
+   * until the server is closed. Runs on the selector thread.
    */
-  private char[][] buildMap() {
-    // player X and Y position
-    int playerX = this.player.getPos().x, playerY = this.player.getPos().y;
-    // object X and Y position (this applies to whatever point is getting content)
-    int objX, objY;
-    // reference to the collision data.
-    char[][] map = collision.getMap();
-    // reference to the visited map used.
-    boolean[][] visited = collision.getVisited();
-    
-    // the result array.
-    char[][] result = new char[collision.height()][collision.width()];
-    
-    // Render tiles
-    for (int y = 0; y < collision.height(); y++) {
-      for (int x = 0; x < collision.width(); x++) {
-        if (Math.abs(x - playerX) > SIGHT_DIST || Math.abs(y - playerY) > SIGHT_DIST) {
-          // The tile is out of sight
-          // Visited tiles render as $, unvisited tiles render as ?
-          if (visited[y][x]) {
-            result[y][x] = '$';
+  private void selectLoop() {
+    // the connection being dealt with
+    Connection conn;
+    
+    while (running) {
+      try {
+        // Catch up with connections that workers have replied to
+        while ((conn = pendingUpdates.poll()) != null) {
+          if (conn.closing && conn.replies.isEmpty()) {
+            disconnect(conn);
           }
-          else {
-            result[y][x] = '?';
+          else if (conn.key.isValid()) {
+            updateInterest(conn);
           }
         }
-        else {
-          // anything in sight can be used as-is (either ' ' or 'x')
-          result[y][x] = map[y][x];
+        selector.select();
+        for (SelectionKey key : selector.selectedKeys()) {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          conn = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              read(conn);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(conn);
+            }
+          }
+          catch (IOException e) {
+            // The player went away, which is fine
+            disconnect(conn);
+          }
         }
+        selector.selectedKeys().clear();
       }
-    }
-    
-    // Render home point
-    objX = collision.getHomePoint().x;
-    objY = collision.getHomePoint().y;
-    // check if home point is within the sight range
-    if (Math.abs(objX - playerX) <= SIGHT_DIST && Math.abs(objY - playerY) <= SIGHT_DIST) {
-      result[objY][objX] = '!';
-    }
-    
-    // Render enemies
-    for (GameEntity enemy : enemies) {
-      objX = enemy.getPos().x;
-      objY = enemy.getPos().y;
-      // check if this enemy is within the sight range
-      if (Math.abs(objX - playerX) <= SIGHT_DIST && Math.abs(objY - playerY) <= SIGHT_DIST) {
-        result[objY][objX] = 'E';
+      catch (IOException e) {
+        Utils.printThrowable(System.err, e);
       }
     }
-    
-    // Render Desmond
-    objX = desmond.getPos().x;
-    objY = desmond.getPos().y;
-    // check if Desmond is within the sight range
-    if (Math.abs(objX - playerX) <= SIGHT_DIST && Math.abs(objY - playerY) <= SIGHT_DIST) {
-      result[objY][objX] = 'D';
-    }
-    
-    // Render player
-    // Player is always in sight range, since it defines the sight range
-    result[playerY][playerX] = 'R';
-    
-    return result;
   }
   
   /**
-   * Calls {@link GameState#buildMap()} to build a map, then displays it.
+   * Accepts a connection and greets the player.
+   * @throws IOException if accepting fails
    */
-  private void displayMap() {
-    // the array from buildMap
-    char[][] partMap = buildMap();
-    // true if the player can pick up (or has picked up) Desmond
-    boolean canPickUp = player.getPos().equals(desmond.getPos());
-    
-    // print column header
-    System.out.print("   ");
-    // print each column label
-    for (int x = 0; x < partMap[0].length; x++) {
-      System.out.printf("%2d ", x);
-    }
-    // end of line
-    System.out.println();
+  private void accept() throws IOException {
+    // the new connection
+    SocketChannel channel = serverChannel.accept();
+    // its state
+    Connection conn;
     
-    // main map printing loop
-    for (int y = 0; y < partMap.length; y++) {
-      // print the row label
-      System.out.printf("%2d ", y);
-      for (int x = 0; x < partMap[0].length; x++) {
-        if (player.getPos().equals(new Point(x, y)) && canPickUp) {
-          // Use curly brackets when the robot can pick up Desmond
-          System.out.printf("{%c}", partMap[y][x]);
-        }
-        else if (collision.getVisited()[y][x]) {
-          // Use round brackets when the player has visited this space.
-          System.out.printf("(%c)", partMap[y][x]);
-        }
-        else {
-          // Just print with square brackets
-          System.out.printf("[%c]", partMap[y][x]);
-        }
-      }
-      System.out.println();
+    // Someone else may have got to it first
+    if (channel == null) {
+      return;
     }
+    channel.configureBlocking(false);
+    conn = new Connection(channel);
+    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    conn.queue(GREETING.duplicate());
+    updateInterest(conn);
   }
   
   /**
-   * Displays relevant information before the command prompt is shown.
+   * Reads what a player has sent, and hands any complete lines to a worker.
+   * @param conn the connection
+   * @throws IOException if reading fails
    */
-  private void doAuxilliaryDisplay() {
-    // absolute difference in X and Y between the player and Desmond
-    int absDiffX, absDiffY;
-    absDiffX = Math.abs(player.getPos().x - desmond.getPos().x);
-    absDiffY = Math.abs(player.getPos().y - desmond.getPos().y);
+  private void read(Connection conn) throws IOException {
+    // the byte being looked at, and where the current line started
+    int pos, lineStart;
     
-    // If the player is on top of Desmond and can pick him up
-    if (absDiffX == 0 && absDiffY == 0) {
-      if (player.isHolding()) {
-        // Desmond follows the player, so this will always show when the player has Desmond
-        System.out.println("You have Desmond! Get back to the front door.");
-      }
-      else {
-        // Let the user know that Desmond can be picked up
-        System.out.println("You can now pick up Desmond! Use the 'p' command.");
-      }
+    readBuffer.clear();
+    if (conn.channel.read(readBuffer) < 0) {
+      disconnect(conn);
+      return;
     }
-    // If Desmond is within "warning range" (out of sight, but still close-ish)
-    else if ((absDiffX <= WARN_DIST) && (absDiffY <= WARN_DIST)) {
-      // If Desmond is in "sight range" (visible on the map)
-      if ((absDiffX <= SIGHT_DIST) && (absDiffY <= SIGHT_DIST)) {
-        System.out.println("Desmond is in view. Look for the 'D' symbol on the map.");
-      }
-      else {
-        // otherwise, he's outside
-        System.out.println("Desmond is close, but not quite within sight.");
+    readBuffer.flip();
+    
+    // Split off each line, keeping anything after the last newline for later
+    lineStart = 0;
+    for (pos = 0; pos < readBuffer.limit(); pos++) {
+      if (readBuffer.get(pos) != '\n') {
+        continue;
       }
+      conn.appendPartial(readBuffer, lineStart, pos);
+      conn.lines.add(conn.takeLine());
+      conn.queuedLines.incrementAndGet();
+      lineStart = pos + 1;
     }
-    else {
-      // Desmond is not in the area you've been searching.
-      System.out.println("Desmond isn't around these parts.");
+    conn.appendPartial(readBuffer, lineStart, readBuffer.limit());
+    if (conn.partialLength() > MAX_LINE_LENGTH) {
+      disconnect(conn);
+      return;
     }
-    // Display other auxilliary info
-    System.out.println("Current coordinates: " + player.getPos());
-    System.out.println("Home point: " + collision.getHomePoint());
-    System.out.println("Turn number: " + turnCounter);
-    // Display the map
-    this.displayMap();
+    
+    schedule(conn);
+    updateInterest(conn);
   }
   
   /**
-   * Updates the game state of all objects.
+   * Sends as many of a player's replies as the connection will take,
+   * all in one go.
+   * @param conn the connection
+   * @throws IOException if writing fails
    */
-  public void updateAllObjects() {
-    // update the player
-    player.doTick(this);
-    // update Desmond
-    desmond.doTick(this);
-    // update the enemies
-    for (GameEntity enemy : enemies) {
-      enemy.doTick(this);
+  private void write(Connection conn) throws IOException {
+    // the replies waiting to be sent
+    ByteBuffer[] replies = conn.replies.toArray(new ByteBuffer[0]);
+    
+    conn.queuedBytes.addAndGet((int) -conn.channel.write(replies));
+    // Drop the replies that have been sent completely
+    for (ByteBuffer reply : replies) {
+      if (reply.hasRemaining()) {
+        break;
+      }
+      conn.replies.poll();
+    }
+    if (conn.closing && conn.replies.isEmpty()) {
+      disconnect(conn);
+      return;
     }
+    // There may be room for more replies now
+    schedule(conn);
+    updateInterest(conn);
   }
   
   /**
-   * Updates the score and turn counter.
+   * Sets what the selector watches a connection for: writing if it has
+   * replies to send, and reading unless it has too many lines waiting.
+   * Runs on the selector thread.
+   * @param conn the connection
    */
-  private void updateCounters() {
-    // playerPos: player's position
-    // desmondPos: Desmond's position
-    // diffPos: Vector subtraction between the two
-    Point playerPos, desmondPos, diffPos;
-    // turnValue: the points contributed by the current turn.
-    int turnValue;
-    
-    playerPos = player.getPos();
-    desmondPos = desmond.getPos();
-    diffPos = playerPos.sub(desmondPos);
-    
-    // Turn value is set according to Manhattan distance,
-    // as this represents the minimum number of single-tile
-    // moves needed to reach Desmond.
-    turnValue = Math.abs(diffPos.x) + Math.abs(diffPos.y);
-    this.points += turnValue;
+  private void updateInterest(Connection conn) {
+    // the operations to watch for
+    int ops = 0;
     
-    // add one to the turn counter
-    this.turnCounter++;
+    if (!conn.replies.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    if (conn.queuedLines.get() < MAX_QUEUED_LINES && !conn.closing) {
+      ops |= SelectionKey.OP_READ;
+    }
+    conn.key.interestOps(ops);
   }
   
   /**
-   * Initializes the collision map and home point.
-   * @return the collision map.
+   * Hands a connection to a worker, if it has lines to run, isn't
+   * waiting on the player to read, and no worker has it already.
+   * @param conn the connection
    */
-  private static CollisionMap initCollision() {
-    // the eventual collision map
-    CollisionMap cMap = new CollisionMap(MAP_SIZE, MAP_SIZE);
-    // This returns the collision map used by cMap.
-    char[][] map = cMap.getMap();
-    
-    Point homePoint = null;
-    
-    // Copy pre-mapped walls
-    for (int y = 0; y < map.length; y++) {
-      for (int x = 0; x < map[y].length; x++) {
-        // Special handling for '!', as it represents the home point
-        if (MAP_BOARD[y][x] == '!') {
-          map[y][x] = ' ';
-          // if the home point wasn't set earlier, this is what it is.
-          if (homePoint == null)
-            homePoint = new Point(x, y);
-        }
-        else {
-          // Copy the tile from the map verbatim.
-          map[y][x] = MAP_BOARD[y][x];
-        }
-      }
+  private void schedule(Connection conn) {
+    if (!conn.closing && !conn.closed && conn.queuedLines.get() > 0 &&
+      conn.queuedBytes.get() < MAX_QUEUED_BYTES && conn.scheduled.compareAndSet(false, true)) {
+      workers.execute(() -> runLines(conn));
     }
-    // Set the home point found earlier
-    cMap.setHomePoint(homePoint);
-    
-    return cMap;
   }
   
-  // COMMAND IMPLEMENTATIONS
-  // =========================================
-  
   /**
-   * Initializes the default command parser, where commands modify game state.
-   * @return
+   * Closes a connection.
+   * @param conn the connection
    */
-  private CommandParser initCommandParser() {
-    // Create the command parser
-    CommandParser res = new CommandParser();
-    // Register all commands.
-    // this::method is a method reference: Java automatically
-    // converts it to an appropriate anonymous class calling
-    // the method.
-    res.registerCommand("help", this::cmdHelp);
-    res.registerCommand("w", this::cmdMove);
-    res.registerCommand("a", this::cmdMove);
-    res.registerCommand("s", this::cmdMove);
-    res.registerCommand("d", this::cmdMove);
-    res.registerCommand("p", this::cmdPickup);
-    res.registerCommand("debug", this::cmdDebug);
-    res.registerCommand("give-up", this::cmdGiveUp);
-    
-    return res;
+  private void disconnect(Connection conn) {
+    conn.closed = true;
+    conn.key.cancel();
+    try {
+      conn.channel.close();
+    }
+    catch (IOException e) {
+      // it's being thrown away anyway
+    }
   }
   
   /**
-   * Implementation of the "help" command.
-   * @param args the arguments to the command
-   * @return 1
+   * Runs a player's lines through their game until there are none left, or
+   * the player has too many replies to read. Runs on a worker thread.
+   * @param conn the connection
    */
-  private int cmdHelp(String[] args) {
-    // sub-commands for help
-    if (args.length == 2) {
-      // Debugging help (only works if debugging is enabled)
-      if (args[1].equals("debug")) {
-        if (!debugEnabled) {
-          System.out.println("Debugging is NOT enabled.");
-          return 1;
-        }
-        System.out.println("Here's a list of commands for debugging:");
-        System.out.println("========================================");
-        System.out.println("debug desmond");
-        System.out.println("  Prints Desmond's current grid coordinates.");
-        System.out.println("debug force-win");
-        System.out.println("  Magically causes you to win.");
-        System.out.println("debug quit");
-        System.out.println("  Immediately shuts down the program.");
-        System.out.println("========================================");
-        return 1;
+  private void runLines(Connection conn) {
+    // this worker's buffer, which the game prints into
+    ReplyBuffer buffer = replyBuffers.get();
+    // the line being run
+    String line;
+    
+    while (!conn.closing && !conn.closed && conn.queuedBytes.get() < MAX_QUEUED_BYTES &&
+      (line = conn.lines.poll()) != null) {
+      conn.queuedLines.decrementAndGet();
+      try {
+        conn.handle(line, buffer.out, lb);
       }
-      // Legend for the map
-      if (args[1].equals("legend")) {
-        System.out.println("Here's a legend:");
-        System.out.println("============================================================");
-        System.out.println("BRACKETS");
-        System.out.println("[ ] - unvisited");
-        System.out.println("( ) - visited");
-        System.out.println("{ } - interactable (i.e. robot can or has picked up Desmond)");
-        System.out.println();
-        System.out.println("TILES");
-        System.out.println("? - unvisited and out of sight");
-        System.out.println("$ - visited, but out of sight");
-        System.out.println();
-        System.out.println("R - robot");
-        System.out.println("x - wall");
-        System.out.println("! - front door");
-        System.out.println("D - Desmond");
-        System.out.println("E - enemy");
-        System.out.println("============================================================");
-        return 1;
+      catch (RuntimeException e) {
+        // Don't let one broken game take down the server
+        Utils.printThrowable(System.err, e);
+        conn.closing = true;
+      }
+      buffer.out.flush();
+      if (buffer.size() > 0) {
+        conn.queue(buffer.take());
       }
     }
-    // regular help (commands)
-    System.out.println("Here's a list of commands that you can issue to the robot:");
-    System.out.println("==========================================================");
-    System.out.println("w <dist>");
-    System.out.println("  Try to move north by <dist> metres.");
-    System.out.println("a <dist>");
-    System.out.println("  Try to move west by <dist> metres.");
-    System.out.println("s <dist>");
-    System.out.println("  Try to move south by <dist> metres.");
-    System.out.println("d <dist>");
-    System.out.println("  Try to move east by <dist> metres.");
-    System.out.println("NOTE 0: the robot can only move up to 3 metres at a time.");
-    System.out.println("NOTE 1: if no distance is specified, the default is 1.");
-    System.out.println();
-    System.out.println("p");
-    System.out.println("  Pick up Desmond. This only works if the robot and Desmond ");
-    System.out.println("  are on the same tile (indicated using curly brackets {})");
-    System.out.println();
-    System.out.println("give-up");
-    System.out.println("  Give up on this game. (then again, why would you??)");
-    System.out.println();
-    System.out.println("help");
-    System.out.println("  Show the command list again, in case you forget.");
-    System.out.println("help legend");
-    System.out.println("  Show a legend of the map, in case you are confused.");
-    System.out.println("help debug");
-    System.out.println("  Show a list of debugging commands.");
-    System.out.println("  (e.g. forcing a win, showing Desmond's position, etc...)");
-    System.out.println("==========================================================");
-    
-    return 1;
+    conn.scheduled.set(false);
+    // Get the selector to send the replies, read more lines,
+    // and hand the connection out again if there are lines left
+    pendingUpdates.add(conn);
+    selector.wakeup();
+    schedule(conn);
   }
   
   /**
-   * Implementation of the "w", "a", "s", and "d" commands.
-   * @param args the arguments to the command
-   * @return 0
+   * Stops accepting connections, and closes every connection. Lines
+   * that are already being run are given a moment to finish.
+   * @throws IOException if the server can't be closed
    */
-  private void cmdMove(String[] args) {
-    final int MIN_DIST = 1;
-    final int MAX_DIST = 3;
-    
-    int dist;
-    // check if there are too many arguments
-    if (args.length > 2) {
-      String errorMessage = String.format(
-        "Command %1$s only takes one argument (%1$s <dist>)", args[0]);
-      throw new IllegalArgumentException(errorMessage);
-    }
-    
-    // check if there are exactly two arguments
-    // note that args[0] is always the command name
-    if (args.length == 2) {
-      // ensure that the specified distance is in range
-      dist = Integer.parseInt(args[1]);
-      if (dist < MIN_DIST || dist > MAX_DIST) {
-        String errorMessage = String.format("The robot can only move %d-%d tiles. (got %d)", MIN_DIST, MAX_DIST, dist);
-        throw new IllegalArgumentException(errorMessage);
-      }
-    }
-    else {
-      // default distance is 1, since that's intuitive
-      dist = 1;
-    }
-    
-    // use args[0] to check which direction to move
-    // set the player's action accordingly
-    switch (args[0].charAt(0)) {
-    case 'w': {
-      player.setAction(Player.Action.MOVE, 0, dist);
-    } break;
-    case 'a': {
-      player.setAction(Player.Action.MOVE, 1, dist);  
-    } break;
-    case 's': {
-      player.setAction(Player.Action.MOVE, 2, dist);
-    } break;
-    case 'd': {
-      player.setAction(Player.Action.MOVE, 3, dist);
-    } break;
+  @Override
+  public void close() throws IOException {
+    running = false;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+      workers.shutdown();
+      workers.awaitTermination(5, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
     }
+    selector.close();
   }
   
   /**
-   * Implementation of the "p" command.
-   * @param args the arguments to the command
-   * @return 0
+   * A worker's buffer that games print into.
    */
-  private int cmdPickup(String[] args) {
-    // check if there are too many arguments
-    if (args.length != 1) {
-      String errorMessage = String.format(
-        "Command %1$s takes no arguments", args[0]);
-      throw new IllegalArgumentException(errorMessage);
+  private static class ReplyBuffer extends ByteArrayOutputStream {
+    /**
+     * Creates an empty buffer.
+     */
+    ReplyBuffer() {
+      try {
+        this.out = new PrintStream(this, false, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+        // every JVM has UTF-8
+        throw new AssertionError(e);
+      }
     }
     
-    // set the player's action to pick up
-    player.setAction(Player.Action.PICKUP);
-    return 0;
+    /**
+     * Takes everything printed so far, leaving the buffer empty.
+     * @return what was printed
+     */
+    ByteBuffer take() {
+      ByteBuffer res = ByteBuffer.wrap(toByteArray());
+      reset();
+      return res;
+    }
+    
+    // prints into this buffer
+    final PrintStream out;
   }
   
   /**
-   * Implementation of the "debug" command.
-   * @param args the arguments to the command
-   * @return 0 or 1, depending on whether the sub-command needs to advance gameplay
+   * One player's connection and game. Lines are only run by one worker at a
+   * time, so the game itself doesn't need to be thread-safe.
    */
-  private int cmdDebug(String[] args) {
-    // Debug mode is a privilege, not a right (haha)
-    if (!debugEnabled) {
-      throw new IllegalStateException("Debug mode is not enabled.");
+  private static class Connection {
+    /**
+     * Sets up a connection that is waiting for the player's name.
+     * @param channel the connection's channel
+     */
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+      this.lines = new ConcurrentLinkedQueue<>();
+      this.replies = new ConcurrentLinkedQueue<>();
+      this.queuedLines = new AtomicInteger();
+      this.queuedBytes = new AtomicInteger();
+      this.scheduled = new AtomicBoolean();
     }
     
-    // Debug mode always takes a 2nd option
-    if (args.length != 2) {
-      String errorMessage = String.format(
-        "Command %1$s only takes two arguments (%1$s <option...>); "
-        + "see 'help debug' for more info", args[0]);
-      throw new IllegalArgumentException(errorMessage);
+    /**
+     * Adds a reply to be sent.
+     * @param reply the reply
+     */
+    void queue(ByteBuffer reply) {
+      queuedBytes.addAndGet(reply.remaining());
+      replies.add(reply);
     }
     
-    if (args[1].equals("desmond")) {
-      // print Desmond's position
-      System.out.printf("Desmond's position is %s\n", desmond.getPos());
-      return 1;
+    /**
+     * Adds part of the read buffer to the line being read.
+     * @param buf the read buffer
+     * @param start the index of the first byte to add
+     * @param end the index after the last byte to add
+     */
+    void appendPartial(ByteBuffer buf, int start, int end) {
+      if (start == end) {
+        return;
+      }
+      if (partial == null) {
+        partial = new ByteArrayOutputStream();
+      }
+      for (int i = start; i < end; i++) {
+        partial.write(buf.get(i));
+      }
     }
-    else if (args[1].equals("quit")) {
-      // exit the game forcefully
-      System.exit(0);
+    
+    /**
+     * Returns the number of bytes of the line being read.
+     * @return the number of bytes read so far
+     */
+    int partialLength() {
+      return (partial == null) ? 0 : partial.size();
     }
-    else if (args[1].equals("force-win")) {
-      // instantly win the game
-      this.triggerWin();
-      return 0;
+    
+    /**
+     * Finishes the line being read.
+     * @return the line, without its line ending
+     */
+    String takeLine() {
+      // the line's bytes
+      byte[] bytes;
+      // the number of bytes, minus any carriage return
+      int length;
+      
+      if (partial == null) {
+        return "";
+      }
+      bytes = partial.toByteArray();
+      length = bytes.length;
+      if (length > 0 && bytes[length - 1] == '\r') {
+        length--;
+      }
+      // Most lines are short, so don't keep the buffer around
+      partial = null;
+      return new String(bytes, 0, length, StandardCharsets.UTF_8);
     }
     
-    return 1;
+    /**
+     * Runs a line from the player. The first line is their name, and the
+     * rest are commands. Once a game ends, the next line starts another one.
+     * @param line the line
+     * @param out the stream to print to
+     * @param lb the leaderboard to add wins to
+     */
+    void handle(String line, PrintStream out, Leaderboard lb) {
+      if (gs == null) {
+        gs = new GameState(out);
+        gs.disableDebug();
+        gs.setQuitAction(() -> closing = true);
+        name = line;
+      }
+      gs.setOutput(out);
+      if (!gs.isRunning()) {
+        gs.initGame(name);
+        gs.showPrompt();
+        return;
+      }
+      if (!gs.submitLine(line) || gs.isRunning()) {
+        // If the player has sent more commands already, run them
+        // before drawing the map again, unless something happened
+        if (!closing && (gs.isRedrawDue() || queuedLines.get() == 0)) {
+          gs.showPrompt();
+        }
+        return;
+      }
+      
+      // The game just ended
+      if (gs.getLastResult() == GameState.Result.WIN) {
+        out.printf("You saved Desmond! Score: %d\n", gs.getPoints());
+        lb.addScore(gs.createScore());
+        try {
+          gs.getReplay().save();
+        }
+        catch (IOException e) {
+          Utils.printThrowable(System.err, e);
+        }
+      }
+      else {
+        out.println("Game over.");
+      }
+      out.print("(Press Enter to play again)");
+    }
+    
+    // the connection's channel, and its key in the selector
+    SocketChannel channel;
+    SelectionKey key;
+    // lines waiting to be run, and how many there are
+    Queue<String> lines;
+    AtomicInteger queuedLines;
+    // replies waiting to be sent, and how many bytes they add up to
+    Queue<ByteBuffer> replies;
+    AtomicInteger queuedBytes;
+    // true while a worker is running this connection's lines
+    AtomicBoolean scheduled;
+    // true once the connection should be closed after sending its replies
+    volatile boolean closing;
+    // true once the connection has been closed
+    volatile boolean closed;
+    // the line being read, or null if nothing has been read
+    ByteArrayOutputStream partial;
+    // the player's game (null until they give a name), and their name
+    GameState gs;
+    String name;
   }
   
-  private void cmdGiveUp(String[] args) {
-    System.out.println("You just gave up on poor Desmond. How could you??");
-    this.triggerGameOver();
-  }
+  // channel accepting connections
+  private ServerSocketChannel serverChannel;
+  // selector watching every connection, and the thread waiting on it
+  private Selector selector;
+  private Thread selectorThread;
+  // false once the server is closing
+  private volatile boolean running;
+  // buffer that every connection is read into (only used by the selector thread)
+  private ByteBuffer readBuffer;
+  // each worker's buffer for replies
+  private ThreadLocal<ReplyBuffer> replyBuffers;
+  // connections that workers have replied to
+  private Queue<Connection> pendingUpdates;
+  // threads running commands
+  private ExecutorService workers;
+  // the leaderboard, shared by all players
+  private Leaderboard lb;
 }
 
-
 /**
  * Main class. Does not contain instance methods, as it
  * should not need to be instantiated.
  */
 public class SaveDesmond {
-  // List of main menu options.
-  private static final String[] mainMenu = {
-      "Play",
-      "Leaderboard",
-      "Enable Debugging",
-      "Exit"
-  };
-  // Index of the "Play" option.
-  private static final int PLAY_IDX = 0;
-  // Index of the "Leaderboard" option.
-  private static final int LEADERBOARD_IDX = 1;
   // Path to the leaderboard.
   private static final Path LEADERBOARD_PATH = Paths.get("./leaderboard.bin");
-  // the global GameState instance.
-  private static GameState gs = null;
+  // Number of turns before a simulated game is forfeited.
+  private static final int SIM_MAX_TURNS = 1000;
+  // Default port and session limit for the server.
+  private static final int DEFAULT_PORT = 2323, DEFAULT_MAX_SESSIONS = 1000;
   
   /**
    * Main method.
-   * @param args command-line arguments, which will not be useful
+   * @param args command-line arguments. Only used to turn on ANSI drawing
+   * ({@code --ansi}), the simulation mode
+   * ({@code --simulate <games> [zombies] [script] [threads] [seed] [map] [chunks]}),
+   * the map maker ({@code --make-map <file> [size] [seed]}),
+   * the replay checker ({@code --verify-replays [path...]})
+   * and the servers ({@code --server [port] [sessions] [scores]},
+   * {@code --nio-server [port] [workers] [scores]}).
    */
   public static void main(String[] args) {
-    gs = new GameState();
-    titleArt();
+    // Simulation mode skips the menus entirely
+    if (args.length >= 1 && args[0].equals("--simulate")) {
+      simulate(args);
+      return;
+    }
+    if (args.length >= 1 && args[0].equals("--make-map")) {
+      makeMap(args);
+      return;
+    }
+    if (args.length >= 1 && args[0].equals("--verify-replays")) {
+      verifyReplays(args);
+      return;
+    }
+    if (args.length >= 1 && (args[0].equals("--server") || args[0].equals("--nio-server"))) {
+      serve(args);
+      return;
+    }
+    
+    // the console's input, read by this session only
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    GameState gs = new GameState(in, System.out);
+    gs.setAnsiRendering(args.length >= 1 && args[0].equals("--ansi"));
     
     // try-with-resources to managed lifetimes:
     // leaderboard (saved on close)
@@ -2590,30 +8327,7 @@ public class SaveDesmond {
       Leaderboard lb = new Leaderboard(LEADERBOARD_PATH);
       MusicEngine me = new MusicEngine();
     ) {
-      while (true) {
-        // main loop
-        int choice = Utils.promptMenu("MAIN MENU", mainMenu);
-        
-        // Exit will always be the last option
-        if (choice == mainMenu.length - 1) {
-          break;
-        }
-        // Enable debugging will always be the 2nd last option
-        else if (choice == mainMenu.length - 2) {
-          enableDebug();
-        }
-        else {
-          // select the appropriate option (play, leaderboard, etc.)
-          switch (choice) {
-            case PLAY_IDX: {
-              play(lb, me);
-            } break;
-            case LEADERBOARD_IDX: {
-              leaderboard(lb);
-            } break;
-          }
-        }
-      }
+      new GameSession(in, System.out, gs, lb, me).run();
     }
     catch (IOException e) {
       throw new IOError(e);
@@ -2621,220 +8335,281 @@ public class SaveDesmond {
   }
   
   /**
-   * Runs the game, then saves the resultant score to the leaderboard.
-   * @param lb an open {@link Leaderboard} instance to save the score to
+   * Runs a game server until "stop" is typed into the console.
+   * @param args command-line arguments: {@code --server [port] [sessions] [scores]}
+   * or {@code --nio-server [port] [workers] [scores]}. The NIO server uses a worker
+   * per core by default. Scores can be {@code all} (the default) or {@code best},
+   * to keep only each player's best score.
    */
-  private static void play(Leaderboard lb, MusicEngine me) {
-    String name;
-    
-    // Prompt for the user's name
-    System.out.print ("What is your name? | ");
-    name = Utils.readLine();
-    System.out.printf("That's a nice name, %1$s.\n\n", name);
-    
-    // Give the user the opportunity to skip the intro
-    System.out.print("I should tell you what's happened. (type anything to skip) ");
+  private static void serve(String[] args) {
+    // true to use the NIO server, false to use a thread per session
+    boolean nio = args[0].equals("--nio-server");
+    // port to listen on, and the most sessions (or workers) to run at once
+    int port = DEFAULT_PORT, threads = nio ? Runtime.getRuntime().availableProcessors() : DEFAULT_MAX_SESSIONS;
+    // true to keep only each player's best score
+    boolean bestOnly = false;
+    // the console's input
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
     
-    // If the user did not say anything, give them the intro
-    if (Utils.readLine().isEmpty()) {
-      introText();
-    }
-    // Run the main game loop
-    gs.initGame(name);
-    me.start();
-    while (gs.isRunning()) {
-      gs.gameLoop();
-      me.transition(gs.getMusicState());
-    }
-    me.stop();
-    // Determine how the game ended, and react accordingly
-    switch (gs.getLastResult()) {
-    case WIN: {
-      winScreen(lb);
-    } break;
-    case GAME_OVER: {
-      gameOverScreen();
-    } break;
-    default: {
-      throw new Error("Invalid win?");
-    }
+    try {
+      if (args.length >= 2)
+        port = Integer.parseInt(args[1]);
+      if (args.length >= 3)
+        threads = Integer.parseInt(args[2]);
+      if (args.length >= 4) {
+        if (!args[3].equals("all") && !args[3].equals("best")) {
+          String errorMessage = String.format("Scores must be \"all\" or \"best\", not \"%s\"", args[3]);
+          throw new IllegalArgumentException(errorMessage);
+        }
+        bestOnly = args[3].equals("best");
+      }
     }
-  }
-  
-  /**
-   * Displays the leaderboard.
-   * @param lban open {@link Leaderboard} instance to read from
-   */
-  private static void leaderboard(Leaderboard lb) {
-    final int NAME_WIDTH = 20;
-    final int POINTS_WIDTH = 5;
-    
-    Score currScore;
-    String currName;
-    int currPoints;
-    List<Score> scores;
-    
-    scores = lb.getAllScores();
-    if (scores.isEmpty()) {
-      System.out.println("No leaderboard data available...");
+    catch (IllegalArgumentException e) {
+      Utils.printThrowable(e);
+      System.out.printf("Usage: java SaveDesmond %s [port] [%s] [all|best]\n", args[0], nio ? "workers" : "sessions");
       return;
     }
     
-    // table header
-    System.out.printf("%-"+NAME_WIDTH+"s | %-"+POINTS_WIDTH+"s\n", "Name", "Score");
-    System.out.printf("%s-+-%s\n", Utils.repeatString(NAME_WIDTH, "-"), 
-      Utils.repeatString(POINTS_WIDTH, "-"));
-    
-    // table data
-    for (int i = scores.size() - 1; i >= 0; i--) {
-      currScore = scores.get(i);
-      currName = currScore.getName();
-      if (currName.length() > NAME_WIDTH) {
-        currName = currName.substring(0, NAME_WIDTH - 3) + "...";
+    // The server is closed first, so that sessions finish adding their scores
+    // before the leaderboard is saved
+    try (Leaderboard lb = new Leaderboard(LEADERBOARD_PATH, bestOnly)) {
+      if (nio) {
+        try (NioGameServer server = new NioGameServer(port, threads, lb)) {
+          server.start();
+          System.out.printf("Serving on port %d (%d workers). Type \"stop\" to stop.\n", 
+            server.getPort(), threads);
+          waitForStop(in);
+        }
+      }
+      else {
+        try (GameServer server = new GameServer(port, threads, lb)) {
+          Thread acceptor = new Thread(server::serve, "accept");
+          acceptor.setDaemon(true);
+          acceptor.start();
+          System.out.printf("Serving on port %d (up to %d sessions). Type \"stop\" to stop.\n", 
+            server.getPort(), threads);
+          waitForStop(in);
+        }
       }
-      currPoints = currScore.getPoints();
-      System.out.printf("%-"+NAME_WIDTH+"s | %"+POINTS_WIDTH+"d\n", currName, currPoints);
+    }
+    catch (IOException e) {
+      throw new IOError(e);
     }
   }
   
   /**
-   * Tries to enable debugging.
+   * Waits until "stop" is typed into the console, or the console is closed.
+   * @param in the console's input
+   * @throws IOException if reading fails
    */
-  private static void enableDebug() {
+  private static void waitForStop(BufferedReader in) throws IOException {
+    // the last line typed into the console
     String line;
     
-    // Don't do the password thing if debugging is enabled
-    if (GameState.isDebugEnabled()) {
-      System.out.println("Debugging is already enabled!\n");
-      return;
-    }
     do {
-      // Prompt for a password
-      System.out.print("Password (type nothing to exit): ");
-      line = Utils.readLine();
-      // If the user typed nothing, exit
-      if (line.isEmpty()) {
-        break;
-      }
-      // Try to enable debugging, and if it succeeds, exit
-      if (GameState.enableDebug(line)) {
-        System.out.println("Debugging is enabled");
-        break;
-      }
-    } while (true);
+      line = in.readLine();
+    } while (line != null && !line.trim().equals("stop"));
   }
   
   /**
-   * Displays the lore and instructions.
+   * Plays many games without the console, then prints the results.
+   * The games are played by a {@link GreedyMoveSource}, unless
+   * a script is given, in which case every game plays the script.
+   * @param args command-line arguments: 
+   * {@code --simulate <games> [zombies] [script] [threads] [seed] [map] [chunks]}. Use "-" as the
+   * script to use the AI. All cores are used by default. The same seed will
+   * always give the same results. The map is either a size to generate a new map
+   * for each game, or a map file.
    */
-  private static void introText() {
-    // first paragraph
-    System.out.println("The year is 21XX. A zombie apocalypse has befallen humanity. You're lucky -- ");
-    System.out.println("you made it to a safety shelter in time and have not been plagued. We've still");
-    System.out.println("been on the lookout for more survivors though, and we have our sights set on a");
-    System.out.println("local daycare. While most were evacuated from the daycare, one kid named Des-");
-    System.out.println("-mond was on the potty at the time and missed the call. I'm convinced he's ");
-    System.out.println("alive though. ");
-    System.out.print("(Press Enter to continue)");
-    Utils.readLine();
-    System.out.println();
+  private static void simulate(String[] args) {
+    // number of games and zombies per game
+    int games = 100000, zombies = 15;
+    // number of threads to play on
+    int threads = Runtime.getRuntime().availableProcessors();
+    // seed for the first game
+    long seed = Utils.randomSeed();
+    // size of the generated maps, or 0 for the default map
+    int mapSize = 0;
+    // map file to play on, or null
+    Path mapFile = null;
+    // most chunks to keep loaded, or 0 to keep the whole map in memory
+    int chunks = 0;
+    // creates the map for each game
+    LongFunction<CollisionMap> maps;
+    // the script's lines, or null to use the greedy AI
+    List<String> script = null;
+    // the tally of results
+    SimulationStats stats;
+    // start time, in nanoseconds
+    long start;
     
-    // second paragraph
-    System.out.println("You will be guiding a robot that we've dropped off at the front of the daycare.");
-    System.out.println("Your job is to find Desmond, pick him up, and bring him back to the front of ");
-    System.out.println("the daycare; all while avoiding the zombies inside the building. Points in this");
-    System.out.println("game are added based on a) how many turns you take and b) how close you are to ");
-    System.out.println("Desmond on each turn. The lower your score is, the better.");
-    System.out.print("(Press Enter to continue)");
-    Utils.readLine();
-    System.out.println();
+    try {
+      if (args.length >= 2)
+        games = Integer.parseInt(args[1]);
+      if (args.length >= 3)
+        zombies = Integer.parseInt(args[2]);
+      if (zombies < 0)
+        throw new IllegalArgumentException("Cannot have less than 0 zombies");
+      if (args.length >= 4 && !args[3].equals("-"))
+        script = Files.readAllLines(Paths.get(args[3]));
+      if (args.length >= 5)
+        threads = Integer.parseInt(args[4]);
+      if (threads <= 0) {
+        String errMsg = String.format("Need at least 1 thread, not %d", threads);
+        throw new IllegalArgumentException(errMsg);
+      }
+      if (args.length >= 6)
+        seed = Long.parseLong(args[5]);
+      // the map is a file unless it's a number
+      if (args.length >= 7 && args[6].matches("\\d+"))
+        mapSize = Integer.parseInt(args[6]);
+      else if (args.length >= 7)
+        mapFile = Paths.get(args[6]);
+      if (args.length >= 8)
+        chunks = Integer.parseInt(args[7]);
+      // Check the map settings now, rather than on every thread
+      if (mapFile != null)
+        GameState.checkSpawnRoom(MapFile.open(mapFile), zombies);
+      else if (chunks == 0 && mapSize == 0)
+        new GameState(Utils.nullPrintStream()).setNumZombies(zombies);
+      else {
+        if (chunks != 0)
+          new RoomChunkLoader(mapSize, mapSize, seed).createMap(chunks);
+        else
+          new MapGenerator(mapSize, mapSize, seed);
+        // Every game gets a different map, so the zombies have to fit on any of them
+        if (zombies + 1L > MapGenerator.minSpawnTiles(mapSize, mapSize)) {
+          String errMsg = String.format("A %1$dx%1$d map is only sure to have room for %2$d zombies", 
+            mapSize, MapGenerator.minSpawnTiles(mapSize, mapSize) - 1);
+          throw new IllegalArgumentException(errMsg);
+        }
+      }
+    }
+    catch (IllegalArgumentException | IOException e) {
+      Utils.printThrowable(e);
+      System.out.println("Usage: java SaveDesmond --simulate <games> [zombies] [script] [threads] [seed] [map] [chunks]");
+      return;
+    }
     
-    // third paragraph
-    System.out.println("To move the robot around, just use \"w\", \"a\", \"s\", and \"d\". Adding a number af-");
-    System.out.println("-terwards, like \"s 2\" or \"d 3\", allow the robot to clear 2 or 3 tiles in one ");
-    System.out.println("quick sprint. To pick up Desmond, move on top of him, then use\"p\".");
-    System.out.print("(Press Enter to continue)");
-    Utils.readLine();
-    System.out.println();
+    // the script and map settings are final, so that the lambdas can capture them
+    final List<String> lines = script;
+    final int size = mapSize, maxChunks = chunks;
+    final Path file = mapFile;
+    if (file != null)
+      // Each game maps the file again, which shares the same pages
+      maps = mapSeed -> {
+        try {
+          return MapFile.open(file);
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      };
+    else if (maxChunks != 0)
+      maps = mapSeed -> new RoomChunkLoader(size, size, mapSeed).createMap(maxChunks);
+    else if (size != 0)
+      maps = mapSeed -> new MapGenerator(size, size, mapSeed).generate();
+    else
+      maps = null;
+    System.out.printf("Simulating %d games with %d zombies on %d threads (seed %d)...\n", 
+      games, zombies, threads, seed);
+    start = System.nanoTime();
+    stats = Simulator.runParallel(games, zombies, SIM_MAX_TURNS, () -> (lines == null) ?
+      new GreedyMoveSource() : new ScriptedMoveSource(lines), maps, threads, seed);
+    stats.print(System.out, System.nanoTime() - start);
   }
   
   /**
-   * Displays the title art.
+   * Writes a map file, either of the built-in map or of a generated map.
+   * @param args command-line arguments: {@code --make-map <file> [size] [seed]}.
+   * The built-in map is written if no size is given.
    */
-  private static void titleArt() {
-    /*
-     * Title art looks like this. The escapes messed it up.
-     * ==========================================================================
-     * /----   8   |   | +-----      +---\  +----- /---- \   /  /=\  |\  | +---\  
-     * |      / \  |   | |           |    | |      |     |\ /| /   \ | | | |    |
-     * \---\ /   \ \   / +-----      |    | +----- \---\ | v | |   | | | | |    |
-     *     | |---|  \ /  |           |    | |          | |   | \   / | | | |    |
-     * ----/ |   |   v   +-----      +---/  +----- ----/ |   |  \=/  |  \| +---/ 
-     * ==========================================================================
-     */
+  private static void makeMap(String[] args) {
+    // the map to write
+    CollisionMap map;
     
-    // Display the title art.
-    System.out.println("==========================================================================");
-    System.out.println("/----   8   |   | +-----      +---\\  +----- /---- \\   /  /=\\  |\\  | +---\\ ");
-    System.out.println("|      / \\  |   | |           |    | |      |     |\\ /| /   \\ | | | |    |");
-    System.out.println("\\---\\ /   \\ \\   / +-----      |    | +----- \\---\\ | v | |   | | | | |    |");
-    System.out.println("    | |---|  \\ /  |           |    | |          | |   | \\   / | | | |    |");
-    System.out.println("----/ |   |   v   +-----      +---/  +----- ----/ |   |  \\=/  |  \\| +---/ ");
-    System.out.println("==========================================================================");
-    System.out.println("                               By Jacky Guo                               ");
-    System.out.println();
+    try {
+      if (args.length < 2)
+        throw new IllegalArgumentException("No file given");
+      if (args.length >= 3)
+        map = new MapGenerator(Integer.parseInt(args[2]), Integer.parseInt(args[2]), 
+          (args.length >= 4) ? Long.parseLong(args[3]) : Utils.randomSeed()).generate();
+      else
+        map = GameState.boardCollision();
+      // Map files are played with the default number of zombies, so check that they fit
+      new GameState(Utils.nullPrintStream(), map);
+      MapFile.write(Paths.get(args[1]), map);
+    }
+    catch (IllegalArgumentException | IOException e) {
+      Utils.printThrowable(e);
+      System.out.println("Usage: java SaveDesmond --make-map <file> [size] [seed]");
+      return;
+    }
+    System.out.printf("Wrote %dx%d map to %s\n", map.width(), map.height(), args[1]);
   }
-
+  
   /**
-   * Displays a win screen, then saves the current score to the leaderboard.
-   * @param lb an open {@link Leaderboard} instance to save the score to
+   * Plays back replays, to check that they really earned their scores.
+   * @param args command-line arguments: {@code --verify-replays [path...]}.
+   * Each path is a replay file or a directory of them. By default, every
+   * replay in {@link Replay#DIR} is checked.
    */
-  private static void winScreen(Leaderboard lb) {
-    /*
-    This is what it should look like:
-    \   /  /=\  |   |      |   |  /=\  |\  |
-     \ /  /   \ |   |      |   | /   \ | | |
-      Y   |   | |   |      | 8 | |   | | | |
-      |   \   / |   |      |/ \| \   / | | |
-      |    \=/   \=/       /   \  \=/  |  \|
-    */
-    System.out.println("=========================================");
-    System.out.println("\\   /  /=\\  |   |      |   |  /=\\  |\\  |");
-    System.out.println(" \\ /  /   \\ |   |      |   | /   \\ | | |");
-    System.out.println("  Y   |   | |   |      | 8 | |   | | | |");
-    System.out.println("  |   \\   / |   |      |/ \\| \\   / | | |");
-    System.out.println("  |    \\=/   \\=/       /   \\  \\=/  |  \\|");
-    System.out.println("=========================================");
-    System.out.printf("Score: %d\n", gs.getPoints());
+  private static void verifyReplays(String[] args) {
+    // the replay files to check
+    List<Path> files = new ArrayList<>();
+    // a game on the same map as the console, which prints nothing
+    GameState gs = new GameState(Utils.nullPrintStream());
+    // the replay being checked
+    Replay replay;
+    // number of replays that passed
+    int passed = 0;
+    // when checking started
+    long start;
     
-    // Give a short epilogue
-    System.out.printf("Thank you for getting him out safely, %s. His parents have been\n", gs.getName());
-    System.out.println("waiting for so long, and they've been anxiously waiting to see him.");
-    System.out.println("(You hear Desmond rushing towards his parents, anxious to hug his mom and dad.)");
-    // add score to leaderboard
-    lb.addScore(gs.createScore());
+    try {
+      for (int i = 1; i < Math.max(args.length, 2); i++) {
+        Path p = (i < args.length) ? Paths.get(args[i]) : Replay.DIR;
+        if (!Files.isDirectory(p)) {
+          files.add(p);
+          continue;
+        }
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(p, "*.replay")) {
+          for (Path file : dir) {
+            files.add(file);
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      Utils.printThrowable(e);
+      System.out.println("Usage: java SaveDesmond --verify-replays [path...]");
+      return;
+    }
+    Collections.sort(files);
+    
+    start = System.nanoTime();
+    for (Path file : files) {
+      try {
+        replay = Replay.read(file);
+      }
+      catch (IOException e) {
+        System.out.printf("%s: couldn't be read\n", file);
+        Utils.printThrowable(e);
+        continue;
+      }
+      if (replay.verify(gs)) {
+        System.out.printf("%s: OK (%s, %d points in %d turns)\n", file, 
+          replay.getName(), replay.getPoints(), replay.getTurns());
+        passed++;
+      }
+      else {
+        System.out.printf("%s: FAILED (%s claims %d points, but the replay doesn't win with that)\n", file,
+          replay.getName(), replay.getPoints());
+      }
+    }
+    System.out.printf("%d of %d replays verified in %.3f s\n", passed, files.size(), 
+      (System.nanoTime() - start) / 1e9);
   }
   
-  /**
-   * Displays a game over screen.
-   */
-  private static void gameOverScreen() {
-    /*
-    This is what it should look like:
-     /---   8   \   / +-----       /=\  |   | +----- +===\
-    /      / \  |\ /| |           /   \ |   | |      |   |
-    |   + /   \ | V | +-----      |   | \   / +----- +===/
-    \   | |---| |   | |           \   /  \ /  |      |\__ 
-     \--+ |   | |   | +-----       \=/    V   +----- |   \
-    */
-    // Display the game over screen.
-    System.out.println("======================================================");
-    System.out.println(" /---   8   \\   / +-----       /=\\  |   | +----- +===\\");
-    System.out.println("/      / \\  |\\ /| |           /   \\ |   | |      |   |");
-    System.out.println("|   + /   \\ | v | +-----      |   | \\   / +----- +===/");
-    System.out.println("\\   | |---| |   | |           \\   /  \\ /  |      |\\__ ");
-    System.out.println(" \\--+ |   | |   | +-----       \\=/    v   +----- |   \\");
-    System.out.println("======================================================");
-  }
 
 }
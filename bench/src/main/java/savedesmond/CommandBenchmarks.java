@@ -0,0 +1,66 @@
+package savedesmond;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for the command engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmarks {
+  /**
+   * The command line to split: a plain movement command, a command with
+   * a sub-command, and one using quotes and escapes.
+   */
+  @Param({"w 3", "help legend", "debug \"force-win\" a\\ b"})
+  public String cmdLine;
+  
+  /**
+   * Splitting a command line into arguments.
+   */
+  @Benchmark
+  public String[] splitArgs() throws CommandException {
+    return CommandParser.splitArgs(cmdLine);
+  }
+  
+  /**
+   * Running a command line on a game, from parsing it to setting the
+   * player's action.
+   */
+  @Benchmark
+  public int execute(Game game) throws CommandException {
+    return game.parser.execute(game.gameCmdLine);
+  }
+  
+  /**
+   * A game to run commands on.
+   */
+  @State(Scope.Thread)
+  public static class Game {
+    /**
+     * The command line to run: movement with and without a distance
+     * (which take the fast path), and a command that has to be split.
+     */
+    @Param({"w 3", "a", "help legend"})
+    public String gameCmdLine;
+    
+    /**
+     * Sets up a game on the built-in map.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      GameState gs = new GameState(Utils.nullPrintStream());
+      gs.initGame("benchmark", 1);
+      parser = gs.getParser();
+    }
+    
+    // The game's command parser.
+    CommandParser parser;
+  }
+}
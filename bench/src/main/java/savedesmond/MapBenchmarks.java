@@ -0,0 +1,35 @@
+package savedesmond;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for generating maps, which happens once per game
+ * when playing on generated maps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class MapBenchmarks {
+  /**
+   * Width and height of the map.
+   */
+  @Param({"100", "1000", "10000"})
+  public int mapSize;
+  
+  /**
+   * Generating a map, including the connectivity check. The seed changes
+   * every time, so that the same map isn't generated over and over.
+   */
+  @Benchmark
+  public CollisionMap generate() {
+    return new MapGenerator(mapSize, mapSize, seed++).generate();
+  }
+  
+  // Seed for the next map.
+  private long seed;
+}
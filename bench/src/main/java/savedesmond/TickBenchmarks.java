@@ -0,0 +1,161 @@
+package savedesmond;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the code that runs on every turn of the game.
+ * Every benchmark is run for each combination of map size and zombie count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TickBenchmarks {
+  // Fraction of the map covered by walls, in percent
+  private static final int WALL_PERCENT = 15;
+  // Number of precomputed probe points (a power of 2)
+  private static final int NUM_PROBES = 1024;
+  // Seed used for everything, so that runs are comparable
+  private static final long SEED = 20230120L;
+  
+  /**
+   * Width and height of the map.
+   */
+  @Param({"50", "200", "1000"})
+  public int mapSize;
+  
+  /**
+   * Number of zombies spawned on the map.
+   */
+  @Param({"15", "150", "1500"})
+  public int zombies;
+  
+  /**
+   * Sets up a game on a randomly walled map, along with some random
+   * points and directions to probe with.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    // RNG for the probes
+    SplittableRandom rng = new SplittableRandom(SEED);
+    
+    collision = scatteredWalls(mapSize, SEED);
+    gs = new GameState(Utils.nullPrintStream(), collision);
+    gs.setNumZombies(zombies);
+    gs.initGame("benchmark", SEED);
+    // keep the player moving, so that the tick has something to do
+    gs.getPlayer().setAction(Player.Action.MOVE, 3, 1);
+    
+    probes = new Point[NUM_PROBES];
+    packedProbes = new int[NUM_PROBES];
+    dirs = new int[NUM_PROBES];
+    for (int i = 0; i < NUM_PROBES; i++) {
+      probes[i] = new Point(rng.nextInt(mapSize), rng.nextInt(mapSize));
+      packedProbes[i] = probes[i].pack();
+      dirs[i] = rng.nextInt(4);
+    }
+    probeIndex = 0;
+  }
+  
+  /**
+   * One full turn's worth of entity updates.
+   */
+  @Benchmark
+  public void updateAllObjects() {
+    gs.updateAllObjects();
+  }
+  
+  /**
+   * A 3-tile move from a random point, in a random direction.
+   */
+  @Benchmark
+  public Point tryMove() {
+    int i = nextProbe();
+    return collision.tryMove(probes[i], dirs[i], 3);
+  }
+  
+  /**
+   * Same as {@link TickBenchmarks#tryMove()}, using packed positions.
+   */
+  @Benchmark
+  public int tryMovePacked() {
+    int i = nextProbe();
+    return collision.tryMovePacked(packedProbes[i], dirs[i], 3);
+  }
+  
+  /**
+   * Looking up the enemy on a random tile.
+   */
+  @Benchmark
+  public GameEntity checkEnemies() {
+    return gs.checkEnemies(probes[nextProbe()]);
+  }
+  
+  /**
+   * Finding a spawn point with all the zombies already spawned.
+   */
+  @Benchmark
+  public Point genSpawnPoint() {
+    return gs.genSpawnPoint();
+  }
+  
+  /**
+   * Building the player's view of the map.
+   */
+  @Benchmark
+  public void buildMap(Blackhole bh) {
+    bh.consume(gs.buildMap());
+  }
+  
+  /**
+   * Returns the index of the next probe point and direction.
+   * @return the index of the next probe
+   */
+  private int nextProbe() {
+    probeIndex = (probeIndex + 1) & (NUM_PROBES - 1);
+    return probeIndex;
+  }
+  
+  /**
+   * Creates a square map with randomly scattered walls. The home point is
+   * the top-left corner, and the area around it is kept clear.
+   * @param size the width and height of the map
+   * @param seed the seed for placing walls
+   * @return the map
+   */
+  static CollisionMap scatteredWalls(int size, long seed) {
+    // keeps walls off the home point and its neighbours
+    final int CLEAR_SIZE = 2;
+    // RNG for placing walls
+    SplittableRandom rng = new SplittableRandom(seed);
+    // the eventual collision map
+    DenseCollisionMap cMap = new DenseCollisionMap(size, size);
+    
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        if ((x > CLEAR_SIZE || y > CLEAR_SIZE) && rng.nextInt(100) < WALL_PERCENT) {
+          cMap.setWall(x, y, true);
+        }
+      }
+    }
+    cMap.setHomePoint(new Point(0, 0));
+    return cMap;
+  }
+  
+  // The game being benchmarked.
+  private GameState gs;
+  // The game's map.
+  private CollisionMap collision;
+  // Random points and directions to probe with.
+  private Point[] probes;
+  private int[] packedProbes;
+  private int[] dirs;
+  // Index of the last probe used.
+  private int probeIndex;
+}